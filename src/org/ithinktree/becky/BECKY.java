@@ -14,8 +14,13 @@ import org.ithinktree.becky.xml.CophylogenyLikelihoodParser;
 import org.ithinktree.becky.xml.CophylogenySetupParser;
 import org.ithinktree.becky.xml.CospeciationOperatorParser;
 import org.ithinktree.becky.xml.CospeciationSimulatorParser;
+import org.ithinktree.becky.xml.EmpiricalHostTreeModelParser;
+import org.ithinktree.becky.xml.EmpiricalHostTreeOperatorParser;
+import org.ithinktree.becky.xml.EpochDLTRSModelParser;
 import org.ithinktree.becky.xml.HostSwitchOperatorParser;
 import org.ithinktree.becky.xml.HostSwitchingWilsonBaldingParser;
+import org.ithinktree.becky.xml.MarginalCophylogenyLikelihoodParser;
+import org.ithinktree.becky.xml.MultiSymbiontCophylogenyLikelihoodParser;
 import org.ithinktree.becky.xml.NodeRefProviderParser;
 import org.ithinktree.becky.xml.PreAnnotatorParser;
 import org.ithinktree.becky.xml.SimpleCophylogenyModelParser;
@@ -37,7 +42,10 @@ public class BECKY implements Plugin {
 		Set<XMLObjectParser> parsers = new HashSet<XMLObjectParser>();
 		parsers.add(new SimpleCophylogenyModelParser());
 		parsers.add(new SimpleStochasticCophylogenyModelParser());
+		parsers.add(new EpochDLTRSModelParser());
 		parsers.add(new CophylogenyLikelihoodParser());
+		parsers.add(new MultiSymbiontCophylogenyLikelihoodParser());
+		parsers.add(new MarginalCophylogenyLikelihoodParser());
 		parsers.add(new HostSwitchOperatorParser());
 		parsers.add(new TipHostSwitchOperatorParser());
 		parsers.add(new CospeciationOperatorParser());
@@ -49,6 +57,8 @@ public class BECKY implements Plugin {
 		parsers.add(new PreAnnotatorParser());
 		parsers.add(new TugOperatorParser());
 		parsers.add(new HostSwitchingWilsonBaldingParser());
+		parsers.add(new EmpiricalHostTreeModelParser());
+		parsers.add(new EmpiricalHostTreeOperatorParser());
 		return parsers;
 	}
 
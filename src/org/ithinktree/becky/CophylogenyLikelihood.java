@@ -7,6 +7,11 @@
 
 package org.ithinktree.becky;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import org.ithinktree.becky.xml.CophylogenyLikelihoodParser;
 
 import dr.evolution.tree.BranchRates;
@@ -17,6 +22,7 @@ import dr.evolution.tree.TreeTrait;
 import dr.evolution.tree.TreeTrait.DefaultBehavior;
 import dr.evolution.tree.TreeTraitProvider;
 import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeModel;
 import dr.inference.model.AbstractModelLikelihood;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
@@ -35,12 +41,14 @@ import dr.inference.model.Variable.ChangeType;
 public class CophylogenyLikelihood extends AbstractModelLikelihood implements TreeTraitProvider, Units {
 
 	public static final int NO_HOST = -1;
+	public static final int DEFAULT_GRAIN_SIZE = 64;
 	
 	final private Tree hostTree;
 	final private MutableTree symbiontTree;
 	final private CophylogenyModel cophylogenyModel;
 	final private BranchRates branchRates;
 	final private Parameter originHeight;
+	final private CophylogenyModel.EvaluationContext context;
 	
 	final private TreeTraitProvider.Helper treeTraits = new Helper();
 		
@@ -78,7 +86,39 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 		
 		reconstructedStates = new int[symbiontTree.getNodeCount()];
 		storedReconstructedStates = new int[reconstructedStates.length];
-		cophylogenyModel.initialize(symbiontTree);
+		nodeLogLikelihoods = new double[reconstructedStates.length];
+		storedNodeLogLikelihoods = new double[reconstructedStates.length];
+		updateNode = new boolean[reconstructedStates.length];
+		storedUpdateNode = new boolean[reconstructedStates.length];
+		Arrays.fill(updateNode, true);
+		nodeHeights = new double[reconstructedStates.length];
+		storedNodeHeights = new double[reconstructedStates.length];
+		branchLengths = new double[reconstructedStates.length];
+		storedBranchLengths = new double[reconstructedStates.length];
+		nodeRates = new double[reconstructedStates.length];
+		storedNodeRates = new double[reconstructedStates.length];
+		updateSnapshot = new boolean[reconstructedStates.length];
+		storedUpdateSnapshot = new boolean[reconstructedStates.length];
+		Arrays.fill(updateSnapshot, true);
+		postorder = new int[symbiontTree.getInternalNodeCount()];
+		parents = new int[reconstructedStates.length];
+		children = new int[reconstructedStates.length][2];
+		cladeSizes = new int[reconstructedStates.length];
+		inClade = new boolean[reconstructedStates.length];
+		dependsOnAllHostLineages = new boolean[reconstructedStates.length];
+		storedDependsOnAllHostLineages = new boolean[reconstructedStates.length];
+		Arrays.fill(dependsOnAllHostLineages, true);
+		firstMapped = new int[hostTree.getNodeCount()];
+		storedFirstMapped = new int[firstMapped.length];
+		nextMapped = new int[reconstructedStates.length];
+		storedNextMapped = new int[reconstructedStates.length];
+		previousMapped = new int[reconstructedStates.length];
+		storedPreviousMapped = new int[reconstructedStates.length];
+		// Every node starts out on the first host
+		Arrays.fill(firstMapped, NO_HOST);
+		for (int i = reconstructedStates.length - 1; i >= 0; --i)
+			addMapping(i, 0);
+		context = cophylogenyModel.createContext(symbiontTree);
 		
 		
 		treeTraits.addTrait(reconstructionTagName, new NodeRefTrait() {
@@ -104,9 +144,20 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 		cophylogenyModel = null;
 		branchRates = null;
 		originHeight = null;
+		context = null;
 		final int[] empty = new int[0];
 		reconstructedStates = empty;
 		storedReconstructedStates = empty;
+		nodeLogLikelihoods = storedNodeLogLikelihoods = new double[0];
+		updateNode = storedUpdateNode = new boolean[0];
+		nodeHeights = storedNodeHeights = branchLengths = storedBranchLengths = nodeRates = storedNodeRates = nodeLogLikelihoods;
+		updateSnapshot = storedUpdateSnapshot = updateNode;
+		postorder = parents = empty;
+		children = new int[0][];
+		cladeSizes = empty;
+		inClade = updateNode;
+		dependsOnAllHostLineages = storedDependsOnAllHostLineages = updateNode;
+		firstMapped = storedFirstMapped = nextMapped = storedNextMapped = previousMapped = storedPreviousMapped = empty;
 	}
 
 	@Override
@@ -127,46 +178,350 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 		return logLikelihood;
 	}
 
+	/**
+	 * Sums the per-node log likelihoods in postorder, recalculating only those
+	 * nodes flagged for update. A node whose reconstructed events changed in the
+	 * process flags its parent, which depends on them.
+	 */
 	protected double calculateLogLikelihood() {
 		double logL = 0.0;
 		cophylogenyModel.updateVariables();
-		NodeRef self, child1, child2;
-		NodeRef selfHost, child1Host, child2Host;
-		self = symbiontTree.getRoot();
-		do {
-			self = Tree.Utils.postorderSuccessor(symbiontTree, self);
-			if (!symbiontTree.isExternal(self)) {
-				
-				child1 = symbiontTree.getChild(self, 0);
-				child2 = symbiontTree.getChild(self, 1);
-				
-				selfHost = getStatesForNode(self);
-				child1Host = getStatesForNode(child1);
-				child2Host = getStatesForNode(child2);
-				
-				logL += cophylogenyModel.calculateNodeLogLikelihood(symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates);
+		updateSnapshots();
+		if (!topologyKnown) updateTopology();
+		
+		if (cladeTasks.isEmpty()) {
+			for (int k = 0; k < postorder.length && logL != Double.NEGATIVE_INFINITY; ++k) {
+				final int i = postorder[k];
+				if (updateNode[i]) updateNodeLogLikelihood(i);
+				logL += nodeLogLikelihoods[i];
+			}
+		} else {
+			// The clades are independent of each other, and the nodes above them only depend on them
+			if (updateClades()) {
+				for (int k = 0; k < postorder.length; ++k) {
+					final int i = postorder[k];
+					if (!inClade[i] && updateNode[i] && updateNodeLogLikelihood(i) == Double.NEGATIVE_INFINITY) break;
+				}
 			}
-		} while (!symbiontTree.isRoot(self) && logL != Double.NEGATIVE_INFINITY);
+			// Summed in the same order as when calculated serially
+			for (int k = 0; k < postorder.length && logL != Double.NEGATIVE_INFINITY; ++k)
+				logL += nodeLogLikelihoods[postorder[k]];
+		}
 		
-		if (logL != Double.NEGATIVE_INFINITY) logL += cophylogenyModel.calculateOriginLogLikelihood(symbiontTree, originHeight.getValue(0), self, hostTree, hostTree.getRoot(), getStatesForNode(self), branchRates);
+		final NodeRef root = symbiontTree.getRoot();
+		if (logL != Double.NEGATIVE_INFINITY) logL += cophylogenyModel.calculateOriginLogLikelihood(context, symbiontTree, originHeight.getValue(0), root, hostTree, hostTree.getRoot(), getStatesForNode(root), branchRates);
 				
 		return logL;
 	}
-
+	
+	private double updateNodeLogLikelihood(final int i) {
+		
+		final NodeRef self = symbiontTree.getNode(i);
+		final NodeRef child1 = symbiontTree.getNode(children[i][0]);
+		final NodeRef child2 = symbiontTree.getNode(children[i][1]);
+		
+		final NodeRef selfHost = getStatesForNode(self);
+		final NodeRef child1Host = getStatesForNode(child1);
+		final NodeRef child2Host = getStatesForNode(child2);
+		
+		nodeLogLikelihoods[i] = cophylogenyModel.calculateNodeLogLikelihood(context, symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates, nodeHeights, branchLengths, nodeRates);
+		
+		if (nodeLogLikelihoods[i] == Double.NEGATIVE_INFINITY) {
+			// The node's reconstruction may be incomplete, so leave it (and its parent) flagged
+			updateParent(i);
+		} else {
+			updateNode[i] = false;
+			if (cophylogenyModel.haveNodePartialsChanged(context, self))
+				updateParent(i);
+		}
+		dependsOnAllHostLineages[i] = cophylogenyModel.dependsOnAllHostLineages(context, self);
+		return nodeLogLikelihoods[i];
+		
+	}
+	
+	/**
+	 * Calculates the flagged nodes of the clades, one clade per thread.
+	 * @return false if any of them is impossible
+	 */
+	private boolean updateClades() {
+		
+		pendingClades.clear();
+		for (CladeTask task : cladeTasks) {
+			if (task.isFlagged())
+				pendingClades.add(task);
+		}
+		if (pendingClades.isEmpty())
+			return true;
+		
+		boolean possible = true;
+		for (boolean cladePossible : SharedExecutor.invokeAll(pendingClades, threadCount))
+			possible &= cladePossible;
+		return possible;
+		
+	}
+	
+	/**
+	 * Calculates the nodes of a clade, a contiguous range of the postorder.
+	 */
+	private final class CladeTask implements Callable<Boolean> {
+		
+		private final int start;
+		private final int end;
+		
+		private CladeTask(final int start, final int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		private boolean isFlagged() {
+			for (int k = start; k < end; ++k) {
+				if (updateNode[postorder[k]])
+					return true;
+			}
+			return false;
+		}
+		
+		public Boolean call() {
+			for (int k = start; k < end; ++k) {
+				final int i = postorder[k];
+				if (updateNode[i] && updateNodeLogLikelihood(i) == Double.NEGATIVE_INFINITY)
+					return false;
+			}
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * Calculates the likelihoods of clades of up to grainSize internal nodes concurrently,
+	 * on up to threadCount threads including the calling one, if the model allows it.
+	 * Trees with no more internal nodes than that are calculated serially.
+	 * @param threadCount the number of threads
+	 * @param grainSize the largest number of internal nodes in a clade calculated by one thread
+	 */
+	public void setParallelism(final int threadCount, final int grainSize) {
+		if (threadCount < 1 || grainSize < 1)
+			throw new IllegalArgumentException("The thread count and grain size must be positive.");
+		this.threadCount = threadCount;
+		this.grainSize = grainSize;
+		topologyKnown = false;
+	}
+	
+	/**
+	 * Divides the symbiont tree into the largest clades with at most grainSize internal
+	 * nodes, unless it is to be calculated serially.
+	 */
+	private void updateCladeTasks() {
+		cladeTasks.clear();
+		Arrays.fill(inClade, false);
+		if (threadCount < 2 || postorder.length <= grainSize || !cophylogenyModel.isThreadSafe())
+			return;
+		Arrays.fill(cladeSizes, 0);
+		for (int k = 0; k < postorder.length; ++k) {
+			final int i = postorder[k];
+			cladeSizes[i] = 1 + cladeSizes[children[i][0]] + cladeSizes[children[i][1]];
+			if (cladeSizes[i] > grainSize) {
+				// Its children are the roots of clades if they are small enough and not leaves;
+				// the clade of the second child ends just before it, preceded by that of the first
+				final int child1 = children[i][0];
+				final int child2 = children[i][1];
+				if (cladeSizes[child1] > 0 && cladeSizes[child1] <= grainSize)
+					addCladeTask(k - cladeSizes[child2] - cladeSizes[child1], k - cladeSizes[child2]);
+				if (cladeSizes[child2] > 0 && cladeSizes[child2] <= grainSize)
+					addCladeTask(k - cladeSizes[child2], k);
+			}
+		}
+	}
+	
+	private void addCladeTask(final int start, final int end) {
+		for (int k = start; k < end; ++k)
+			inClade[postorder[k]] = true;
+		cladeTasks.add(new CladeTask(start, end));
+	}
+	
+	/**
+	 * Reads the postorder of the internal nodes and the parents and children of all
+	 * nodes from the symbiont tree, which is only needed after its topology changed.
+	 */
+	private void updateTopology() {
+		final int root = symbiontTree.getRoot().getNumber();
+		parents[root] = -1;
+		int k = 0;
+		// Walk the tree with an explicit stack, pushing the second child under the first
+		// so that each node is emitted after both of its subtrees
+		final int[] stack = new int[parents.length];
+		final boolean[] expanded = new boolean[parents.length];
+		int top = 0;
+		stack[0] = root;
+		while (top >= 0) {
+			final int i = stack[top];
+			final NodeRef node = symbiontTree.getNode(i);
+			if (symbiontTree.isExternal(node)) {
+				--top;
+			} else if (expanded[i]) {
+				postorder[k++] = i;
+				--top;
+			} else {
+				expanded[i] = true;
+				final int child1 = symbiontTree.getChild(node, 0).getNumber();
+				final int child2 = symbiontTree.getChild(node, 1).getNumber();
+				children[i][0] = child1;
+				children[i][1] = child2;
+				parents[child1] = parents[child2] = i;
+				stack[++top] = child2;
+				stack[++top] = child1;
+			}
+		}
+		updateCladeTasks();
+		topologyKnown = true;
+	}
+	
+	/**
+	 * Reads the heights, branch lengths and branch rates of the nodes flagged since the
+	 * last evaluation, so that the model need not go through the trees and rate model.
+	 */
+	private void updateSnapshots() {
+		if (!anySnapshotUpdated) return;
+		for (int i = 0; i < updateSnapshot.length; ++i) {
+			if (updateSnapshot[i]) {
+				final NodeRef node = symbiontTree.getNode(i);
+				nodeHeights[i] = symbiontTree.getNodeHeight(node);
+				if (symbiontTree.isRoot(node)) {
+					branchLengths[i] = 0.0;
+					nodeRates[i] = Double.NaN;
+				} else {
+					branchLengths[i] = symbiontTree.getBranchLength(node);
+					nodeRates[i] = branchRates.getBranchRate(symbiontTree, node);
+				}
+				updateSnapshot[i] = false;
+			}
+		}
+		anySnapshotUpdated = false;
+	}
+	
+	private void updateSnapshotAndChildren(final NodeRef node) {
+		updateSnapshot[node.getNumber()] = true;
+		for (int i = 0; i < symbiontTree.getChildCount(node); ++i)
+			updateSnapshot[symbiontTree.getChild(node, i).getNumber()] = true;
+		anySnapshotUpdated = true;
+	}
+	
 	@Override
 	public void makeDirty() {
+		updateAllNodes();
+		topologyKnown = false;
+	}
+	
+	/**
+	 * Flags every node for update, without assuming the topology changed.
+	 */
+	private void updateAllNodes() {
 		likelihoodKnown = false;
+		Arrays.fill(updateNode, true);
+		Arrays.fill(updateSnapshot, true);
+		anySnapshotUpdated = true;
+	}
+	
+	private void updateNodeAndParent(final NodeRef node) {
+		updateNode[node.getNumber()] = true;
+		if (!symbiontTree.isRoot(node))
+			updateNode[symbiontTree.getParent(node).getNumber()] = true;
+	}
+	
+	private void updateParent(final int i) {
+		if (parents[i] != -1)
+			updateNode[parents[i]] = true;
+	}
+	
+	/**
+	 * Flags the nodes whose likelihoods depend on the height or children of a host node:
+	 * those mapped onto its ancestors, itself or its children, and those that depend on the
+	 * whole host tree. Since a rearrangement reports every node that lost or gained a child,
+	 * this covers the clades on both sides of it.
+	 */
+	private void updateNodesForHostNode(final NodeRef hostNode) {
+		for (NodeRef n = hostNode; n != null; n = hostTree.getParent(n))
+			updateMappedNodes(n.getNumber());
+		for (int i = 0; i < hostTree.getChildCount(hostNode); ++i)
+			updateMappedNodes(hostTree.getChild(hostNode, i).getNumber());
+		for (int i = 0; i < dependsOnAllHostLineages.length; ++i) {
+			if (dependsOnAllHostLineages[i])
+				updateNode[i] = true;
+		}
+	}
+	
+	private void updateMappedNodes(final int host) {
+		for (int i = firstMapped[host]; i != NO_HOST; i = nextMapped[i])
+			updateNode[i] = true;
+	}
+	
+	private void addMapping(final int node, final int host) {
+		previousMapped[node] = NO_HOST;
+		nextMapped[node] = firstMapped[host];
+		if (firstMapped[host] != NO_HOST)
+			previousMapped[firstMapped[host]] = node;
+		firstMapped[host] = node;
+	}
+	
+	private void removeMapping(final int node, final int host) {
+		if (previousMapped[node] == NO_HOST)
+			firstMapped[host] = nextMapped[node];
+		else
+			nextMapped[previousMapped[node]] = nextMapped[node];
+		if (nextMapped[node] != NO_HOST)
+			previousMapped[nextMapped[node]] = previousMapped[node];
 	}
 	
 	@Override
 	protected void handleModelChangedEvent(Model model, Object object, int index) {
-		makeDirty();
+		if (model == symbiontTree && object instanceof TreeModel.TreeChangedEvent) {
+			final TreeModel.TreeChangedEvent event = (TreeModel.TreeChangedEvent) object;
+			if (event.isNodeChanged() && event.isNodeParameterChanged()) {
+				// A height (or other node parameter) only enters the node itself and its parent's branch
+				likelihoodKnown = false;
+				updateNodeAndParent(event.getNode());
+				// ...and the lengths of its own and its children's branches
+				updateSnapshotAndChildren(event.getNode());
+			} else {
+				updateAllNodes();
+				topologyKnown = false;
+				topologyChanged = true;
+			}
+		} else if (model == hostTree && object instanceof TreeModel.TreeChangedEvent && ((TreeModel.TreeChangedEvent) object).isNodeChanged()) {
+			likelihoodKnown = false;
+			updateNodesForHostNode(((TreeModel.TreeChangedEvent) object).getNode());
+		} else if (model == hostTree && object instanceof EmpiricalHostTreeModel.TreeSwappedEvent) {
+			remapStates((EmpiricalHostTreeModel.TreeSwappedEvent) object);
+			updateAllNodes();
+		} else if (model == branchRates && index >= 0 && index < updateNode.length) {
+			likelihoodKnown = false;
+			updateNodeAndParent(symbiontTree.getNode(index));
+			updateSnapshot[index] = true;
+			anySnapshotUpdated = true;
+		} else {
+			updateAllNodes();
+		}
+	}
+
+	/**
+	 * Moves every node onto the corresponding node of a newly drawn host tree. The map is
+	 * one to one, so that swapping back restores the states.
+	 */
+	private void remapStates(final EmpiricalHostTreeModel.TreeSwappedEvent event) {
+		Arrays.fill(firstMapped, NO_HOST);
+		for (int i = reconstructedStates.length - 1; i >= 0; --i) {
+			if (reconstructedStates[i] != NO_HOST) {
+				reconstructedStates[i] = event.getNode(reconstructedStates[i]);
+				addMapping(i, reconstructedStates[i]);
+			}
+		}
 	}
 
 	@SuppressWarnings("rawtypes")
 	@Override
 	protected void handleVariableChangedEvent(Variable variable, int index, ChangeType type) {
-		makeDirty();
+		// Only the origin height is registered here, which is accounted for on every evaluation
+		likelihoodKnown = false;
 	}
 
 	@Override
@@ -176,6 +531,19 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 		storedLogLikelihood = logLikelihood;
 		
 		System.arraycopy(reconstructedStates, 0, storedReconstructedStates, 0, reconstructedStates.length);
+		System.arraycopy(nodeLogLikelihoods, 0, storedNodeLogLikelihoods, 0, nodeLogLikelihoods.length);
+		System.arraycopy(updateNode, 0, storedUpdateNode, 0, updateNode.length);
+		System.arraycopy(nodeHeights, 0, storedNodeHeights, 0, nodeHeights.length);
+		System.arraycopy(branchLengths, 0, storedBranchLengths, 0, branchLengths.length);
+		System.arraycopy(nodeRates, 0, storedNodeRates, 0, nodeRates.length);
+		System.arraycopy(updateSnapshot, 0, storedUpdateSnapshot, 0, updateSnapshot.length);
+		storedAnySnapshotUpdated = anySnapshotUpdated;
+		topologyChanged = false;
+		System.arraycopy(dependsOnAllHostLineages, 0, storedDependsOnAllHostLineages, 0, dependsOnAllHostLineages.length);
+		System.arraycopy(firstMapped, 0, storedFirstMapped, 0, firstMapped.length);
+		System.arraycopy(nextMapped, 0, storedNextMapped, 0, nextMapped.length);
+		System.arraycopy(previousMapped, 0, storedPreviousMapped, 0, previousMapped.length);
+		if (context != null) context.storeState();
 		
 	}
 
@@ -186,6 +554,23 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 		logLikelihood = storedLogLikelihood;
 		
 		System.arraycopy(storedReconstructedStates, 0, reconstructedStates, 0, storedReconstructedStates.length);
+		System.arraycopy(storedNodeLogLikelihoods, 0, nodeLogLikelihoods, 0, storedNodeLogLikelihoods.length);
+		System.arraycopy(storedUpdateNode, 0, updateNode, 0, storedUpdateNode.length);
+		System.arraycopy(storedNodeHeights, 0, nodeHeights, 0, storedNodeHeights.length);
+		System.arraycopy(storedBranchLengths, 0, branchLengths, 0, storedBranchLengths.length);
+		System.arraycopy(storedNodeRates, 0, nodeRates, 0, storedNodeRates.length);
+		System.arraycopy(storedUpdateSnapshot, 0, updateSnapshot, 0, storedUpdateSnapshot.length);
+		anySnapshotUpdated = storedAnySnapshotUpdated;
+		System.arraycopy(storedDependsOnAllHostLineages, 0, dependsOnAllHostLineages, 0, storedDependsOnAllHostLineages.length);
+		System.arraycopy(storedFirstMapped, 0, firstMapped, 0, storedFirstMapped.length);
+		System.arraycopy(storedNextMapped, 0, nextMapped, 0, storedNextMapped.length);
+		System.arraycopy(storedPreviousMapped, 0, previousMapped, 0, storedPreviousMapped.length);
+		if (context != null) context.restoreState();
+		// The symbiont tree restores its topology without an event
+		if (topologyChanged) {
+			topologyKnown = false;
+			topologyChanged = false;
+		}
 		
 	}
 
@@ -196,6 +581,50 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 	private final int[] reconstructedStates;
 	private final int[] storedReconstructedStates;
 	
+	private final double[] nodeLogLikelihoods;
+	private final double[] storedNodeLogLikelihoods;
+	private final boolean[] updateNode;
+	private final boolean[] storedUpdateNode;
+	
+	// Snapshots of the symbiont tree and rate model, by node number
+	private final double[] nodeHeights;
+	private final double[] storedNodeHeights;
+	private final double[] branchLengths;
+	private final double[] storedBranchLengths;
+	private final double[] nodeRates;
+	private final double[] storedNodeRates;
+	private final boolean[] updateSnapshot;
+	private final boolean[] storedUpdateSnapshot;
+	private boolean anySnapshotUpdated = true;
+	private boolean storedAnySnapshotUpdated = true;
+	
+	// The symbiont tree's internal nodes in postorder, and every node's parent (-1 for the root) and children
+	private final int[] postorder;
+	private final int[] parents;
+	private final int[][] children;
+	private boolean topologyKnown = false;
+	private boolean topologyChanged = false;
+	
+	// Optional parallel calculation of disjoint clades
+	private int threadCount = 1;
+	private int grainSize = DEFAULT_GRAIN_SIZE;
+	private final int[] cladeSizes;
+	private final boolean[] inClade;
+	private final List<CladeTask> cladeTasks = new ArrayList<CladeTask>();
+	private final List<CladeTask> pendingClades = new ArrayList<CladeTask>();
+	
+	// Whether each node's likelihood was found to depend on the whole host tree when last calculated
+	private final boolean[] dependsOnAllHostLineages;
+	private final boolean[] storedDependsOnAllHostLineages;
+	
+	// The nodes mapped onto each host node, as doubly linked lists through the node numbers
+	private final int[] firstMapped;
+	private final int[] storedFirstMapped;
+	private final int[] nextMapped;
+	private final int[] storedNextMapped;
+	private final int[] previousMapped;
+	private final int[] storedPreviousMapped;
+	
 	private double logLikelihood;
 	private double storedLogLikelihood;
 	private boolean likelihoodKnown = false;
@@ -222,12 +651,32 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 	
 	public void setStatesForNode(NodeRef node, NodeRef state) {
 		
-		makeDirty();
-		reconstructedStates[node.getNumber()] = state == null ? NO_HOST : state.getNumber();
+		likelihoodKnown = false;
+		updateNodeAndParent(node);
+		final int i = node.getNumber();
+		final int host = state == null ? NO_HOST : state.getNumber();
+		if (reconstructedStates[i] != NO_HOST)
+			removeMapping(i, reconstructedStates[i]);
+		if (host != NO_HOST)
+			addMapping(i, host);
+		reconstructedStates[i] = host;
 		fireModelChanged();
 
 	}
 	
+	/**
+	 * Lists the nodes mapped onto a host node, in no particular order.
+	 * @param hostNode the host node
+	 * @param buffer receives the node numbers; must have room for every node of the symbiont tree
+	 * @return the number of nodes written
+	 */
+	public int getNodesMappedTo(final NodeRef hostNode, final int[] buffer) {
+		int count = 0;
+		for (int i = firstMapped[hostNode.getNumber()]; i != NO_HOST; i = nextMapped[i])
+			buffer[count++] = i;
+		return count;
+	}
+	
 	public abstract class NodeRefTrait extends DefaultBehavior implements TreeTrait<NodeRef> {
 		
 		@SuppressWarnings("rawtypes")
@@ -257,6 +706,18 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 		return originHeight.getParameterValue(0);
 	}
 	
+	public Tree getHostTree() {
+		return hostTree;
+	}
+	
+	public MutableTree getSymbiontTree() {
+		return symbiontTree;
+	}
+	
+	public CophylogenyModel getCophylogenyModel() {
+		return cophylogenyModel;
+	}
+	
 	@SuppressWarnings("rawtypes")
 	@Override
 	public TreeTrait[] getTreeTraits() {
@@ -273,7 +734,7 @@ public class CophylogenyLikelihood extends AbstractModelLikelihood implements Tr
 	
 	public void setOriginHeight(double d) {
 		originHeight.setParameterValue(0, d);
-		makeDirty();
+		likelihoodKnown = false;
 	}
 	
 }
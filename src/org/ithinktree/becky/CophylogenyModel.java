@@ -119,44 +119,31 @@ public abstract class CophylogenyModel extends SpeciationModel {
 				if (self == null || relation == null)
 //					return new NodalRelationship(COUSIN, 0);
 					throw new IllegalArgumentException();
-					
+				
+				final HostTreeIndex index = HostTreeIndex.forTree(tree);
 				final int selfN = self.getNumber();
 				final int relationN = relation.getNumber();
 				
-				if (selfN == relationN)
-					return new NodalRelationship(Utils.Relationship.SELF, 0);
-							
-				if (!tree.isRoot(self) && !tree.isRoot(relation) && tree.getParent(self).getNumber() == tree.getParent(relation).getNumber())
-					return new NodalRelationship(Utils.Relationship.SISTER, 0);
-				
-				List<NodeRef> lostLineages = new ArrayList<NodeRef>();
-				
-				NodeRef temp = tree.getParent(relation);
-				lostLineages.add(relation);
-				for (int g = 1; temp != null; ++g, temp = tree.getParent(temp)) {
-					if (selfN == temp.getNumber()) {
-						return new NodalRelationship(Utils.Relationship.DESCENDANT, g, lostLineages.toArray(EMPTY_NODE_REF_ARRAY));
-					}
-					lostLineages.addAll(getSisters(tree, temp));
-				}
-				
-				lostLineages.clear();
-				
-				temp = tree.getParent(self);
-				lostLineages.add(self);
-				for (int g = 1; temp != null; ++g, temp = tree.getParent(temp)) {
-					if (relationN == temp.getNumber()) {
-						return new NodalRelationship(Utils.Relationship.ANCESTOR, g, lostLineages.toArray(EMPTY_NODE_REF_ARRAY));
-					}
-                lostLineages.addAll(getSisters(tree, temp));
-
+				switch (index.getRelationship(selfN, relationN)) {
+				case SELF:
+					return SELF_RELATIONSHIP;
+				case SISTER:
+					return SISTER_RELATIONSHIP;
+				case DESCENDANT:
+					return new NodalRelationship(Utils.Relationship.DESCENDANT, index.getDepth(relationN) - index.getDepth(selfN), index.getLostLineages(selfN, relationN));
+				case ANCESTOR:
+					return new NodalRelationship(Utils.Relationship.ANCESTOR, index.getDepth(selfN) - index.getDepth(relationN), index.getLostLineages(relationN, selfN));
+				default:
+					// Otherwise must be a cousin
+					return COUSIN_RELATIONSHIP;
 				}
-				
-				// Otherwise must be a cousin
-				return new NodalRelationship(Utils.Relationship.COUSIN, 0);
 			}
 			
 			private static final NodeRef[] EMPTY_NODE_REF_ARRAY = new NodeRef[0];
+			// Relationships without lost lineages are immutable, so they can be shared
+			private static final NodalRelationship SELF_RELATIONSHIP = new NodalRelationship(Utils.Relationship.SELF, 0);
+			private static final NodalRelationship SISTER_RELATIONSHIP = new NodalRelationship(Utils.Relationship.SISTER, 0);
+			private static final NodalRelationship COUSIN_RELATIONSHIP = new NodalRelationship(Utils.Relationship.COUSIN, 0);
 			private static final List<NodeRef> EMPTY_NODE_LIST = new ArrayList<NodeRef>(0);
 			public static final List<NodeRef> getSisters(Tree t, NodeRef n) {
 				if (t.isRoot(n)) return EMPTY_NODE_LIST;
@@ -180,13 +167,14 @@ public abstract class CophylogenyModel extends SpeciationModel {
 			 */
 			public static final NodeRef[] lostLineagesToTime(final Tree t, NodeRef n, final double d) {
 				
-				List<NodeRef> lostLineages = new ArrayList<NodeRef>();
-				while (!t.isRoot(n) && t.getNodeHeight(t.getParent(n)) <= d) {
-					lostLineages.addAll(getSisters(t, n));
-					n = t.getParent(n);
-				}
-	//			lostLineages.add(n);
-				return lostLineages.toArray(EMPTY_NODE_REF_ARRAY);
+				final HostTreeIndex index = HostTreeIndex.forTree(t);
+				final int[] buffer = new int[index.getNodeCount()];
+				final int count = index.getLostLineagesToHeight(n.getNumber(), d, buffer, 0);
+				if (count == 0) return EMPTY_NODE_REF_ARRAY;
+				final NodeRef[] lostLineages = new NodeRef[count];
+				for (int i = 0; i < count; ++i)
+					lostLineages[i] = index.getNode(buffer[i]);
+				return lostLineages;
 			
 			}
 		
@@ -211,7 +199,7 @@ public abstract class CophylogenyModel extends SpeciationModel {
 			if (approachFromPresent) {
 				return getContemporaneousLineageCountApproachingFromPresent(tree, tree.getRoot(), height);
 			} else {
-				return getContemporaneousLineageCountApproachingFromPast(tree, tree.getRoot(), height);
+				return HostTreeIndex.forTree(tree).getEpochs().getLineageCountAtHeight(height);
 			}
 		}
 
@@ -251,38 +239,27 @@ public abstract class CophylogenyModel extends SpeciationModel {
 //		}
 		
 		public static final Set<NodeRef> getContemporaneousLineages(final Tree tree, final double height) {
+			final HostTreeIndex index = HostTreeIndex.forTree(tree);
+			final HostEpochIndex epochs = index.getEpochs();
+			final int epoch = epochs.getEpoch(height);
 			Set<NodeRef> lineages = new HashSet<NodeRef>(tree.getExternalNodeCount());
-			getContemporaneousLineages(tree, tree.getRoot(), height, lineages);
+			if (epoch < 0)
+				return lineages;
+			final int[] epochLineages = epochs.getLineages();
+			for (int i = epochs.getLineagesStart(epoch); i < epochs.getLineagesEnd(epoch); ++i)
+				lineages.add(index.getNode(epochLineages[i]));
 			return lineages;
 		}
-	
-		private static final void getContemporaneousLineages(final Tree tree, final NodeRef node, final double height, Set<NodeRef> lineages) {
-			if (isContemporaneous(tree, node, height)) {
-				lineages.add(node);
-			} else {
-				for (int i = 0; i < tree.getChildCount(node); ++i)
-					getContemporaneousLineages(tree, tree.getChild(node, i), height, lineages);
-			}
-		}
 
         public static final List<NodeRef> getLineagesInTimeRange(final Tree tree, final double startHeight, final double stopHeight) {
-            List<NodeRef> lineages = new ArrayList<NodeRef>(tree.getExternalNodeCount());
-            getLineagesInTimeRange(tree, tree.getRoot(), startHeight, stopHeight, lineages);
-            return lineages;
-        }
-    
-        private static final void getLineagesInTimeRange(final Tree tree, final NodeRef node, final double startHeight, final double stopHeight, final List<NodeRef> lineages) {
             // requires that startHeight > stopHeight
-            if (startHeight >= tree.getNodeHeight(node)) {
-                if (tree.isRoot(node) || (tree.getNodeHeight(tree.getParent(node)) > stopHeight)) {
-                    lineages.add(node);
-                } else {
-                    return;
-                }
-            }
-            for (int i = 0; i < tree.getChildCount(node); ++i)
-                getLineagesInTimeRange(tree, tree.getChild(node, i), startHeight, stopHeight, lineages);
-            
+            final HostTreeIndex index = HostTreeIndex.forTree(tree);
+            final int[] buffer = new int[index.getNodeCount()];
+            final int count = index.getLineagesInTimeRange(startHeight, stopHeight, buffer);
+            List<NodeRef> lineages = new ArrayList<NodeRef>(count);
+            for (int i = 0; i < count; ++i)
+                lineages.add(index.getNode(buffer[i]));
+            return lineages;
         }
 
         public static final boolean isContemporaneous(final Tree tree, final NodeRef node, final double height) {
@@ -295,10 +272,97 @@ public abstract class CophylogenyModel extends SpeciationModel {
 			final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
 			final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates);
 	
+	/**
+	 * As {@link #calculateNodeLogLikelihood(MutableTree, NodeRef, NodeRef, NodeRef, Tree, NodeRef, NodeRef, NodeRef, BranchRates)},
+	 * but with the heights, branch lengths and branch rates of the symbiont tree already read into arrays
+	 * indexed by node number. The rate of the root is NaN, since rate models need not define one.
+	 * Models that do not use the arrays need not override this.
+	 */
+	public double calculateNodeLogLikelihood(final MutableTree symbiontTree, final NodeRef self,
+			final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
+			final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates,
+			final double[] nodeHeights, final double[] branchLengths, final double[] nodeRates) {
+		return calculateNodeLogLikelihood(symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates);
+	}
+	
 	public abstract double calculateOriginLogLikelihood(final Tree symbiontTree, final double originHeight, final NodeRef root, final Tree hostTree, final NodeRef originHost, final NodeRef rootHost, final BranchRates branchRates);
 	
 	public abstract void initialize(final Tree tree);
 	
+	/**
+	 * What a model keeps while calculating the likelihoods of one symbiont tree, such as
+	 * the partial likelihoods passed from children to parents. Whoever calculates with a
+	 * context stores and restores it, so that one model can serve several symbiont trees.
+	 */
+	public static class EvaluationContext {
+		
+		public void storeState() {}
+		
+		public void restoreState() {}
+		
+	}
+	
+	/**
+	 * Creates a context for calculating the likelihoods of a symbiont tree. Models that keep
+	 * their own state for a single tree, initialized by {@link #initialize(Tree)}, need not
+	 * override this or the methods taking a context, which then ignore it.
+	 * @param tree the symbiont tree
+	 * @return the context
+	 */
+	public EvaluationContext createContext(final Tree tree) {
+		initialize(tree);
+		return new EvaluationContext();
+	}
+	
+	public double calculateNodeLogLikelihood(final EvaluationContext context, final MutableTree symbiontTree, final NodeRef self,
+			final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
+			final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates,
+			final double[] nodeHeights, final double[] branchLengths, final double[] nodeRates) {
+		return calculateNodeLogLikelihood(symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates, nodeHeights, branchLengths, nodeRates);
+	}
+	
+	public double calculateOriginLogLikelihood(final EvaluationContext context, final Tree symbiontTree, final double originHeight, final NodeRef root, final Tree hostTree, final NodeRef originHost, final NodeRef rootHost, final BranchRates branchRates) {
+		return calculateOriginLogLikelihood(symbiontTree, originHeight, root, hostTree, originHost, rootHost, branchRates);
+	}
+	
+	public boolean haveNodePartialsChanged(final EvaluationContext context, final NodeRef node) {
+		return haveNodePartialsChanged(node);
+	}
+	
+	public boolean dependsOnAllHostLineages(final EvaluationContext context, final NodeRef node) {
+		return dependsOnAllHostLineages(node);
+	}
+	
+	/**
+	 * Whether the partial likelihoods kept for a node changed during its last
+	 * calculation, in which case the likelihood of its parent must be recalculated.
+	 * @param node the node
+	 * @return true unless the model knows the partials to be unchanged
+	 */
+	public boolean haveNodePartialsChanged(final NodeRef node) {
+		return true;
+	}
+	
+	/**
+	 * Whether the likelihood last calculated at a node may depend on host heights other
+	 * than those of its host, the host's parent and the host's clade, such as through the
+	 * number of hosts a host-switch could have chosen from.
+	 * @param node the node
+	 * @return true unless the model knows the likelihood to depend only on that part of the host tree
+	 */
+	public boolean dependsOnAllHostLineages(final NodeRef node) {
+		return true;
+	}
+	
+	/**
+	 * Whether the likelihoods of nodes in disjoint clades, or of different contexts, may be
+	 * calculated concurrently, once {@link #updateVariables()} has been called.
+	 * @return false unless the model keeps no shared scratch space
+	 */
+	public boolean isThreadSafe() {
+		return false;
+	}
+	
 	@Override
 	public double calculateTreeLogLikelihood(Tree arg0) {
 		throw new UnsupportedOperationException();
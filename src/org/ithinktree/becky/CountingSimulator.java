@@ -0,0 +1,188 @@
+/**
+ * CountingSimulator.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+/**
+ * Simulates the same duplication, host-switch and loss process as
+ * {@link org.ithinktree.becky.tools.CoevolutionSimulator}, but only to tell whether a
+ * symbiont lineage leaves any descendant, so it keeps nothing but the number of
+ * symbionts in each host lineage. A replicate stops as soon as one symbiont
+ * reaches a host tip, or as soon as all are lost.
+ * <p/>
+ * Each simulator draws from its own SplitMix64 stream, so that several of them can
+ * run concurrently and reproducibly from the seeds given by {@link #setSeed(long, int)}.
+ * Each replicate draws from its own stretch of the stream, given by {@link #setReplicate(long, boolean)},
+ * where it can be replayed with all its uniform draws reflected, as the antithetic of another,
+ * or have its first draw, the time of its first event, given.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+final class CountingSimulator {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	// Draws between the starts of successive replicates, far more than any replicate makes
+	private static final long REPLICATE_STRIDE = 1L << 32;
+
+	private long start;
+	private long state;
+	private boolean antithetic = false;
+	// The next uniform draw, if given, or else negative
+	private double nextUniform = -1.0;
+	private int[] counts = new int[0];
+
+	/**
+	 * Starts the stream of this simulator.
+	 * @param seed the seed shared by all streams of a run
+	 * @param stream the number of the stream
+	 */
+	void setSeed(final long seed, final int stream) {
+		start = mix(seed + (stream + 1) * GOLDEN_GAMMA);
+		setReplicate(0, false);
+	}
+
+	/**
+	 * Moves the stream to where the draws of a replicate begin, so that a replicate that draws
+	 * more or fewer numbers, as under other rates, leaves the draws of the others as they were.
+	 * @param replicate the number of the replicate within the stream
+	 * @param antithetic whether to reflect the uniform draws u to about 1 - u
+	 */
+	void setReplicate(final long replicate, final boolean antithetic) {
+		state = start + replicate * REPLICATE_STRIDE * GOLDEN_GAMMA;
+		this.antithetic = antithetic;
+		nextUniform = -1.0;
+	}
+
+	/**
+	 * Gives the first uniform draw of the next replicate, which sets the time of its first event.
+	 * @param u in [0, 1)
+	 */
+	void setFirstUniform(final double u) {
+		nextUniform = u;
+	}
+
+	/**
+	 * Draws a uniform number from the stream, not reflected even if antithetic.
+	 * @return in [0, 1)
+	 */
+	double nextUniform() {
+		return (next() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Simulates a symbiont lineage starting in a host lineage.
+	 * @param index the index of the host tree
+	 * @param host the host node at the bottom of the lineage
+	 * @param height the starting height, between the heights of the host node and its parent
+	 * @param duplicationRate
+	 * @param hostSwitchRate
+	 * @param lossRate
+	 * @return whether any descendant of the symbiont reached a host tip
+	 */
+	boolean survives(final HostTreeIndex index, final int host, final double height, final double duplicationRate, final double hostSwitchRate, final double lossRate) {
+
+		if (counts.length < index.getNodeCount())
+			counts = new int[index.getNodeCount()];
+		final HostEpochIndex epochs = index.getEpochs();
+		final int[] lineages = epochs.getLineages();
+		final double totalRate = duplicationRate + hostSwitchRate + lossRate;
+
+		int k = epochs.getEpoch(height);
+		// Starting at the top of its branch, the lineage belongs to the epoch below
+		if (height > index.getHeight(host) && epochs.getEpochHeight(k) == height)
+			--k;
+		double h = height;
+		int n = 1;
+		counts[host] = 1;
+
+		while (true) {
+
+			final double bottom = epochs.getEpochHeight(k);
+			final int start = epochs.getLineagesStart(k);
+			final int end = epochs.getLineagesEnd(k);
+
+			final double t = -Math.log(1.0 - nextDouble()) / (n * totalRate);
+			if (h - t > bottom) {
+				h -= t;
+				// The symbiont undergoing the event
+				int r = (int) (nextDouble() * n);
+				int j = start;
+				while (r >= counts[lineages[j]])
+					r -= counts[lineages[j++]];
+				final double u = nextDouble() * totalRate;
+				if (u < duplicationRate) {
+					++counts[lineages[j]];
+					++n;
+				} else if (u < duplicationRate + hostSwitchRate) {
+					// With no other lineage, a switch leaves the tree and is never observed
+					if (end - start > 1) {
+						int other = start + (int) (nextDouble() * (end - start - 1));
+						if (other >= j)
+							++other;
+						++counts[lineages[other]];
+						++n;
+					}
+				} else {
+					--counts[lineages[j]];
+					if (--n == 0)
+						return false;
+				}
+				continue;
+			}
+
+			h = bottom;
+			for (int j = start; j < end; ++j) {
+				final int node = lineages[j];
+				if (counts[node] > 0 && index.getHeight(node) == bottom && index.isExternal(node)) {
+					for (int i = start; i < end; ++i)
+						counts[lineages[i]] = 0;
+					return true;
+				}
+			}
+			// Cospeciations
+			for (int j = start; j < end; ++j) {
+				final int node = lineages[j];
+				final int c = counts[node];
+				if (c == 0 || index.getHeight(node) != bottom)
+					continue;
+				counts[node] = 0;
+				n -= c;
+				for (int i = 0; i < index.getChildCount(node); ++i) {
+					counts[index.getChild(node, i)] += c;
+					n += c;
+				}
+			}
+			--k;
+
+		}
+
+	}
+
+	private double nextDouble() {
+		if (nextUniform >= 0.0) {
+			final double u = nextUniform;
+			nextUniform = -1.0;
+			return u;
+		}
+		final double u = nextUniform();
+		// Reflected within [0, 1), as both are multiples of 2^-53
+		return antithetic ? (1.0 - 0x1.0p-53) - u : u;
+	}
+
+	private long next() {
+		return mix(state += GOLDEN_GAMMA);
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
@@ -0,0 +1,423 @@
+/**
+ * EmpiricalHostTreeModel.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ithinktree.becky.xml.EmpiricalHostTreeModelParser;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.model.Variable.ChangeType;
+
+/**
+ * A host tree drawn from an empirical set of trees, such as a posterior sample, by an
+ * integer index parameter.
+ * <p/>
+ * Every tree query is answered by the current tree. The trees are never changed, so the
+ * {@link HostTreeIndex} of each is built once and kept, together with anything models
+ * derive from the tree alone, in a least recently used cache of bounded size; swapping
+ * back to a recently visited tree costs nothing. All trees must share one set of taxa.
+ * <p/>
+ * When the index changes a {@link TreeSwappedEvent} is fired, which maps the node numbers
+ * of the previous tree onto the current one: tips by taxon, internal nodes to those with the
+ * same clade if both trees have it, and the remaining internal nodes of both trees to each
+ * other in order of height. The map is one to one, and that of swapping back its inverse.
+ * It is meant for a {@link MarginalCophylogenyLikelihood}, which samples no hosts for the
+ * internal symbiont nodes; a {@link CophylogenyLikelihood} maps its sampled hosts along, but
+ * would reject nearly every swap.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+@SuppressWarnings("serial")
+public class EmpiricalHostTreeModel extends TreeModel {
+
+	public static final int DEFAULT_CACHE_SIZE = 16;
+
+	private final Tree[] trees;
+	private final Parameter treeIndex;
+	private final Map<String,Integer> taxonNumbers;
+	private final Map<Integer,CachedTree> cache;
+
+	private CachedTree current;
+	private CachedTree storedCurrent;
+
+	public EmpiricalHostTreeModel(final Tree[] trees, final Parameter treeIndex, final int cacheSize) {
+
+		super(EmpiricalHostTreeModelParser.EMPIRICAL_HOST_TREE_MODEL);
+
+		if (cacheSize < 1)
+			throw new IllegalArgumentException("The cache size must be positive.");
+
+		this.trees = trees;
+		this.treeIndex = treeIndex;
+		addVariable(treeIndex);
+		treeIndex.addBounds(new Parameter.DefaultBounds(trees.length - 1, 0.0, 1));
+
+		final Tree reference = trees[0];
+		taxonNumbers = new HashMap<String,Integer>(reference.getExternalNodeCount());
+		for (int i = 0; i < reference.getExternalNodeCount(); ++i)
+			taxonNumbers.put(reference.getNodeTaxon(reference.getExternalNode(i)).getId(), i);
+		for (Tree tree : trees) {
+			if (tree.getExternalNodeCount() != taxonNumbers.size())
+				throw new IllegalArgumentException("All host trees must have the same taxa.");
+			// Otherwise their nodes cannot be mapped one to one
+			if (tree.getNodeCount() != reference.getNodeCount())
+				throw new IllegalArgumentException("All host trees must be binary.");
+		}
+
+		cache = new LinkedHashMap<Integer,CachedTree>(2 * cacheSize, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Integer,CachedTree> eldest) {
+				return size() > cacheSize;
+			}
+		};
+
+		current = getCachedTree(getTreeIndex());
+		storedCurrent = current;
+
+	}
+
+	/**
+	 * The structures of one tree of the set.
+	 */
+	private final class CachedTree {
+
+		private final int number;
+		private final Tree tree;
+		private final HostTreeIndex index;
+		// Node numbers by taxon, and taxa by node number (-1 for internal nodes)
+		private final int[] taxonNodes;
+		private final int[] nodeTaxa;
+		// The taxa below each node, and the internal nodes by their clades
+		private final BitSet[] clades;
+		private final Map<BitSet,Integer> cladeNodes;
+		private final Map<Object,Object> attachments = new HashMap<Object,Object>(4);
+
+		private CachedTree(final int number) {
+			this.number = number;
+			tree = trees[number];
+			index = HostTreeIndex.create(tree);
+			taxonNodes = new int[taxonNumbers.size()];
+			nodeTaxa = new int[tree.getNodeCount()];
+			clades = new BitSet[nodeTaxa.length];
+			cladeNodes = new HashMap<BitSet,Integer>(2 * tree.getInternalNodeCount());
+			// Children come after their parents in preorder, so visit it backwards
+			for (int j = nodeTaxa.length - 1; j >= 0; --j) {
+				final int i = index.getPreorderNode(j);
+				final NodeRef node = tree.getNode(i);
+				clades[i] = new BitSet(taxonNodes.length);
+				if (tree.isExternal(node)) {
+					final Integer taxon = taxonNumbers.get(tree.getNodeTaxon(node).getId());
+					if (taxon == null)
+						throw new IllegalArgumentException("All host trees must have the same taxa.");
+					taxonNodes[taxon] = i;
+					nodeTaxa[i] = taxon;
+					clades[i].set(taxon);
+				} else {
+					nodeTaxa[i] = -1;
+					for (int c = 0; c < index.getChildCount(i); ++c)
+						clades[i].or(clades[index.getChild(i, c)]);
+					cladeNodes.put(clades[i], i);
+				}
+			}
+		}
+
+		/**
+		 * @param other another tree
+		 * @return the internal nodes whose clades the other tree lacks, from the lowest to the highest
+		 */
+		private List<Integer> getUnmatchedNodes(final CachedTree other) {
+			final List<Integer> nodes = new ArrayList<Integer>();
+			for (int i = 0; i < nodeTaxa.length; ++i) {
+				if (nodeTaxa[i] == -1 && !other.cladeNodes.containsKey(clades[i]))
+					nodes.add(i);
+			}
+			// Ties are broken by node number, the same whichever tree is swapped in
+			Collections.sort(nodes, new Comparator<Integer>() {
+				public int compare(final Integer n, final Integer m) {
+					final int c = Double.compare(index.getHeight(n), index.getHeight(m));
+					return c != 0 ? c : n.compareTo(m);
+				}
+			});
+			return nodes;
+		}
+
+	}
+
+	private CachedTree getCachedTree(final int number) {
+		CachedTree cachedTree = cache.get(number);
+		if (cachedTree == null) {
+			cachedTree = new CachedTree(number);
+			cache.put(number, cachedTree);
+		}
+		return cachedTree;
+	}
+
+	/**
+	 * Signals that another tree of the set became current.
+	 */
+	public final class TreeSwappedEvent {
+
+		private final int[] nodeMap;
+
+		private TreeSwappedEvent(final int[] nodeMap) {
+			this.nodeMap = nodeMap;
+		}
+
+		/**
+		 * @param previousNode the number of a node of the previous tree
+		 * @return the number of the corresponding node of the current tree
+		 */
+		public int getNode(final int previousNode) {
+			return nodeMap[previousNode];
+		}
+
+	}
+
+	private int[] mapNodes(final CachedTree from, final CachedTree to) {
+		final int[] nodeMap = new int[from.nodeTaxa.length];
+		for (int n = 0; n < nodeMap.length; ++n) {
+			if (from.nodeTaxa[n] != -1)
+				nodeMap[n] = to.taxonNodes[from.nodeTaxa[n]];
+			else if (to.cladeNodes.containsKey(from.clades[n]))
+				nodeMap[n] = to.cladeNodes.get(from.clades[n]);
+		}
+		// Both trees have as many internal nodes left over, which are paired up by rank
+		final List<Integer> fromNodes = from.getUnmatchedNodes(to);
+		final List<Integer> toNodes = to.getUnmatchedNodes(from);
+		for (int i = 0; i < fromNodes.size(); ++i)
+			nodeMap[fromNodes.get(i)] = toNodes.get(i);
+		return nodeMap;
+	}
+
+	public int getTreeCount() {
+		return trees.length;
+	}
+
+	public int getTreeIndex() {
+		return (int) treeIndex.getParameterValue(0);
+	}
+
+	public Parameter getTreeIndexParameter() {
+		return treeIndex;
+	}
+
+	public Tree getCurrentTree() {
+		return current.tree;
+	}
+
+	HostTreeIndex getHostTreeIndex() {
+		return current.index;
+	}
+
+	/**
+	 * Looks up an object cached alongside the current tree, which is dropped with it.
+	 * @param owner the owner of the object
+	 * @return the object, or null if there is none
+	 */
+	public Object getCachedObject(final Object owner) {
+		return current.attachments.get(owner);
+	}
+
+	/**
+	 * Caches an object alongside the current tree. It must depend on that tree alone.
+	 * @param owner the owner of the object
+	 * @param object the object
+	 */
+	public void putCachedObject(final Object owner, final Object object) {
+		current.attachments.put(owner, object);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected void handleVariableChangedEvent(final Variable variable, final int index, final ChangeType type) {
+		// The index is the only variable; the node parameters of a tree model are never built
+		final CachedTree previous = current;
+		current = getCachedTree(getTreeIndex());
+		if (current != previous)
+			fireModelChanged(new TreeSwappedEvent(mapNodes(previous, current)));
+	}
+
+	// Not those of the tree model, which copy its node structure, never built here
+	@Override
+	protected void storeState() {
+		storedCurrent = current;
+	}
+
+	@Override
+	protected void restoreState() {
+		// The index parameter is restored without an event
+		current = storedCurrent;
+		if (cache.get(current.number) == null)
+			cache.put(current.number, current);
+	}
+
+	@Override
+	public NodeRef getRoot() {
+		return current.tree.getRoot();
+	}
+
+	@Override
+	public int getNodeCount() {
+		return current.tree.getNodeCount();
+	}
+
+	@Override
+	public NodeRef getNode(final int i) {
+		return current.tree.getNode(i);
+	}
+
+	@Override
+	public NodeRef getInternalNode(final int i) {
+		return current.tree.getInternalNode(i);
+	}
+
+	@Override
+	public NodeRef getExternalNode(final int i) {
+		return current.tree.getExternalNode(i);
+	}
+
+	@Override
+	public int getExternalNodeCount() {
+		return current.tree.getExternalNodeCount();
+	}
+
+	@Override
+	public int getInternalNodeCount() {
+		return current.tree.getInternalNodeCount();
+	}
+
+	@Override
+	public Taxon getNodeTaxon(final NodeRef node) {
+		return current.tree.getNodeTaxon(node);
+	}
+
+	@Override
+	public boolean hasNodeHeights() {
+		return current.tree.hasNodeHeights();
+	}
+
+	@Override
+	public double getNodeHeight(final NodeRef node) {
+		return current.tree.getNodeHeight(node);
+	}
+
+	@Override
+	public boolean hasBranchLengths() {
+		return current.tree.hasBranchLengths();
+	}
+
+	@Override
+	public double getBranchLength(final NodeRef node) {
+		return current.tree.getBranchLength(node);
+	}
+
+	@Override
+	public double getNodeRate(final NodeRef node) {
+		return current.tree.getNodeRate(node);
+	}
+
+	@Override
+	public Object getNodeAttribute(final NodeRef node, final String name) {
+		return current.tree.getNodeAttribute(node, name);
+	}
+
+	@Override
+	public boolean isExternal(final NodeRef node) {
+		return current.tree.isExternal(node);
+	}
+
+	@Override
+	public boolean isRoot(final NodeRef node) {
+		return current.tree.isRoot(node);
+	}
+
+	@Override
+	public int getChildCount(final NodeRef node) {
+		return current.tree.getChildCount(node);
+	}
+
+	@Override
+	public NodeRef getChild(final NodeRef node, final int i) {
+		return current.tree.getChild(node, i);
+	}
+
+	@Override
+	public NodeRef getParent(final NodeRef node) {
+		return current.tree.getParent(node);
+	}
+
+	@Override
+	public int getTaxonCount() {
+		return current.tree.getTaxonCount();
+	}
+
+	@Override
+	public Taxon getTaxon(final int i) {
+		return current.tree.getTaxon(i);
+	}
+
+	@Override
+	public String getTaxonId(final int i) {
+		return current.tree.getTaxonId(i);
+	}
+
+	@Override
+	public int getTaxonIndex(final String id) {
+		return current.tree.getTaxonIndex(id);
+	}
+
+	@Override
+	public int getTaxonIndex(final Taxon taxon) {
+		return current.tree.getTaxonIndex(taxon);
+	}
+
+	@Override
+	public void setNodeHeight(final NodeRef node, final double height) {
+		throw new UnsupportedOperationException("Empirical host trees cannot be changed.");
+	}
+
+	@Override
+	public void setNodeRate(final NodeRef node, final double rate) {
+		throw new UnsupportedOperationException("Empirical host trees cannot be changed.");
+	}
+
+	@Override
+	public void setBranchLength(final NodeRef node, final double length) {
+		throw new UnsupportedOperationException("Empirical host trees cannot be changed.");
+	}
+
+	@Override
+	public void addChild(final NodeRef parent, final NodeRef child) {
+		throw new UnsupportedOperationException("Empirical host trees cannot be changed.");
+	}
+
+	@Override
+	public void removeChild(final NodeRef parent, final NodeRef child) {
+		throw new UnsupportedOperationException("Empirical host trees cannot be changed.");
+	}
+
+	@Override
+	public void setRoot(final NodeRef root) {
+		throw new UnsupportedOperationException("Empirical host trees cannot be changed.");
+	}
+
+}
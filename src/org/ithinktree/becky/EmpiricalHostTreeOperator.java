@@ -0,0 +1,63 @@
+/**
+ * EmpiricalHostTreeOperator.java
+ * 
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ * 
+ */
+package org.ithinktree.becky;
+
+import org.ithinktree.becky.xml.EmpiricalHostTreeOperatorParser;
+
+import dr.inference.operators.OperatorFailedException;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.math.MathUtils;
+
+/**
+ * Proposes another tree of an empirical host tree set, uniformly at random.
+ * <p/>
+ * Nothing else is changed: the likelihoods move the hosts of the symbiont nodes onto the
+ * new tree by its one-to-one {@link EmpiricalHostTreeModel.TreeSwappedEvent}, which swapping
+ * back undoes, so the move is reversible and symmetric. It requires a
+ * {@link MarginalCophylogenyLikelihood}, which only needs the hosts of the tips, mapped by
+ * taxon. With the hosts of internal nodes sampled, as by a {@link CophylogenyLikelihood},
+ * nearly every swap would leave some of them not contemporaneous with their nodes and so be
+ * rejected, and the parser of that likelihood refuses an empirical host tree set.
+ * 
+ * @author Arman D. Bilge
+ *
+ */
+public class EmpiricalHostTreeOperator extends SimpleMCMCOperator {
+
+	private final EmpiricalHostTreeModel hostTree;
+	
+	public EmpiricalHostTreeOperator(final EmpiricalHostTreeModel hostTree, final double weight) {
+		this.hostTree = hostTree;
+		setWeight(weight);
+	}
+
+	@Override
+	public String getPerformanceSuggestion() {
+		return "No performance suggestion";
+	}
+
+	@Override
+	public String getOperatorName() {
+		return EmpiricalHostTreeOperatorParser.EMPIRICAL_HOST_TREE_OPERATOR + "(" + hostTree.getId() + ")";
+	}
+
+	@Override
+	public double doOperation() throws OperatorFailedException {
+		
+		final int treeCount = hostTree.getTreeCount();
+		if (treeCount < 2) throw new OperatorFailedException("No change in state");
+		
+		// Any tree but the current one, so the proposal is symmetric
+		final int current = hostTree.getTreeIndex();
+		int next = MathUtils.nextInt(treeCount - 1);
+		if (next >= current) ++next;
+		hostTree.getTreeIndexParameter().setParameterValue(0, next);
+		
+		return 0.0;
+	}
+
+}
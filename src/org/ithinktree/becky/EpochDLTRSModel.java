@@ -0,0 +1,768 @@
+/**
+ * EpochDLTRSModel.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.ithinktree.becky.xml.EpochDLTRSModelParser;
+
+import dr.evolution.tree.BranchRates;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.inference.model.Parameter;
+import dr.math.MachineAccuracy;
+
+/**
+ * The duplication-loss-transfer model of DLTRS, calculated natively over an epoch
+ * discretisation of the host tree.
+ * <p/>
+ * Symbiont lineages duplicate, are lost and transfer to a uniformly chosen contemporaneous
+ * host lineage at constant rates per unit of host time, and follow their hosts through
+ * speciations. Every epoch between consecutive host node heights is cut into slices, over
+ * which the probabilities of extinction of a lineage on each host are integrated from the
+ * present into the past, together with the probabilities that a lineage leaves exactly one
+ * descendant on a given host at the bottom of the slice, all others going extinct. These
+ * are kept in flat arrays, by epoch, and an epoch is recalculated only if it or one below it
+ * changed; the slices of an epoch are calculated in parallel if threads are given. The
+ * stem above the host root holds a single lineage and is solved in closed form.
+ * <p/>
+ * A branch of the symbiont tree is the one-to-one probability from its host at its parent
+ * down to its host at its node, and a node is a cospeciation if it is at the height of its
+ * host's speciation, and otherwise a duplication or a transfer, summed over. The rates are
+ * per unit of host time, so every symbiont branch must have a rate of one, as under a
+ * strict clock of rate one; any other rate is refused rather than ignored.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+@SuppressWarnings("serial")
+public class EpochDLTRSModel extends CophylogenyModel {
+
+	public static final int DEFAULT_MINIMUM_SLICES = 3;
+	public static final double DEFAULT_TIMESTEP = 0.02;
+
+	final protected Parameter duplicationRateParameter;
+	final protected Parameter hostSwitchRateParameter;
+	final protected Parameter lossRateParameter;
+	private double duplicationRate;
+	private double hostSwitchRate;
+	private double lossRate;
+
+	private final int minimumSlices;
+	private final double timestep;
+	private final boolean normalize;
+	private final int threadCount;
+
+	/**
+	 * @param minimumSlices the fewest slices an epoch is cut into
+	 * @param timestep the greatest length of a slice, as a fraction of the height of the host root
+	 * @param normalize whether to condition on the survival of the symbiont lineage at the origin
+	 * @param threadCount the number of threads to calculate the slices of an epoch on, including the calling one
+	 */
+	public EpochDLTRSModel(final Parameter duplicationRateParameter, final Parameter hostSwitchRateParameter, final Parameter lossRateParameter, final int minimumSlices, final double timestep, final boolean normalize, final int threadCount, final Type units) {
+
+		super(EpochDLTRSModelParser.EPOCH_DLTRS_MODEL, units);
+
+		if (minimumSlices < 1)
+			throw new IllegalArgumentException("Every epoch needs at least one slice.");
+		if (!(timestep > 0.0))
+			throw new IllegalArgumentException("The timestep must be positive.");
+
+		this.minimumSlices = minimumSlices;
+		this.timestep = timestep;
+		this.normalize = normalize;
+		this.threadCount = threadCount;
+
+		this.duplicationRateParameter = duplicationRateParameter;
+		addVariable(duplicationRateParameter);
+		duplicationRateParameter.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
+
+		this.hostSwitchRateParameter = hostSwitchRateParameter;
+		addVariable(hostSwitchRateParameter);
+		hostSwitchRateParameter.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
+
+		this.lossRateParameter = lossRateParameter;
+		addVariable(lossRateParameter);
+		lossRateParameter.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
+
+	}
+
+	public EpochDLTRSModel(final Parameter duplicationRateParameter, final Parameter hostSwitchRateParameter, final Parameter lossRateParameter, final Type units) {
+		this(duplicationRateParameter, hostSwitchRateParameter, lossRateParameter, DEFAULT_MINIMUM_SLICES, DEFAULT_TIMESTEP, false, 1, units);
+	}
+
+	@Override
+	protected synchronized void updateVariables() {
+		duplicationRate = duplicationRateParameter.getParameterValue(0);
+		hostSwitchRate = hostSwitchRateParameter.getParameterValue(0);
+		lossRate = lossRateParameter.getParameterValue(0);
+		overallRate = duplicationRate + hostSwitchRate + lossRate;
+		dirty = false;
+	}
+
+	public double getDuplicationRate() {
+		return duplicationRateParameter.getParameterValue(0);
+	}
+
+	public double getHostSwitchRate() {
+		return hostSwitchRateParameter.getParameterValue(0);
+	}
+
+	public double getLossRate() {
+		return lossRateParameter.getParameterValue(0);
+	}
+
+	/**
+	 * The probabilities of a host tree under the current rates, by epoch. Epoch k of
+	 * {@link HostEpochIndex} for k below the last, which is the stem, is cut into
+	 * sliceCounts[k] slices of length steps[k]. Its extinction probabilities are at every half
+	 * slice, by point and then lineage, from extinctions[extinctionOffsets[k]]; the one-to-one
+	 * probabilities of slice i, from each lineage at its top to each at its bottom, by top and
+	 * then bottom lineage, are from oneToOnes[oneToOneOffsets[k] + i * n * n].
+	 */
+	private final class EpochTables {
+
+		private int epochCount = 0;
+		private int hostNodeCount = 0;
+		private double[] bottoms = new double[0];
+		private double[] tops = new double[0];
+		private double[] steps = new double[0];
+		private int[] sliceCounts = new int[0];
+		private int[] lineageCounts = new int[0];
+		private int[] lineageOffsets = new int[1];
+		private int[] lineages = new int[0];
+		// The position of each host node among the lineages of each epoch, or -1
+		private int[] positions = new int[0];
+		private int[] extinctionOffsets = new int[1];
+		private double[] extinctions = new double[0];
+		private int[] oneToOneOffsets = new int[1];
+		private double[] oneToOnes = new double[0];
+		private double rootHeight;
+		private double rootSurvival;
+		private int maximumLineageCount = 1;
+
+		// What the tables were calculated with
+		private double tablesDuplicationRate = Double.NaN;
+		private double tablesHostSwitchRate = Double.NaN;
+		private double tablesLossRate = Double.NaN;
+		private HostTreeIndex tablesIndex = null;
+		private int tablesVersion;
+
+		private int getPosition(final int epoch, final int node) {
+			return positions[epoch * hostNodeCount + node];
+		}
+
+		private double getTopExtinction(final int epoch, final int position) {
+			return extinctions[extinctionOffsets[epoch] + 2 * sliceCounts[epoch] * lineageCounts[epoch] + position];
+		}
+
+		/**
+		 * Finds the epoch of a height, that whose top it is if it is at a boundary.
+		 * @return the epoch, or epochCount for the stem
+		 */
+		private int getEpochBelow(final double height) {
+			int lo = 0;
+			int hi = epochCount;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (tops[mid] < height)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		private void update(final HostTreeIndex index) {
+
+			if (index == tablesIndex && index.getVersion() == tablesVersion && duplicationRate == tablesDuplicationRate && hostSwitchRate == tablesHostSwitchRate && lossRate == tablesLossRate)
+				return;
+
+			final HostEpochIndex epochs = index.getEpochs();
+			final int newEpochCount = epochs.getEpochCount() - 1;
+			final int newHostNodeCount = index.getNodeCount();
+			final int[] epochLineages = epochs.getLineages();
+			final double newRootHeight = epochs.getEpochHeight(newEpochCount);
+			final double maximumStep = timestep * (newRootHeight - epochs.getEpochHeight(0));
+
+			// Epochs are kept as long as they and all below them are as they were
+			int kept = 0;
+			if (duplicationRate == tablesDuplicationRate && hostSwitchRate == tablesHostSwitchRate && lossRate == tablesLossRate && newHostNodeCount == hostNodeCount) {
+				for (; kept < Math.min(epochCount, newEpochCount); ++kept) {
+					final int start = epochs.getLineagesStart(kept);
+					final int n = epochs.getLineagesEnd(kept) - start;
+					final double bottom = epochs.getEpochHeight(kept);
+					final double top = epochs.getEpochHeight(kept + 1);
+					if (bottom != bottoms[kept] || top != tops[kept] || n != lineageCounts[kept] || getSliceCount(top - bottom, maximumStep) != sliceCounts[kept])
+						break;
+					boolean same = true;
+					for (int l = 0; l < n && same; ++l)
+						same = epochLineages[start + l] == lineages[lineageOffsets[kept] + l];
+					if (!same)
+						break;
+				}
+			}
+
+			if (newEpochCount != epochCount || newHostNodeCount != hostNodeCount) {
+				bottoms = Arrays.copyOf(bottoms, newEpochCount);
+				tops = Arrays.copyOf(tops, newEpochCount);
+				steps = Arrays.copyOf(steps, newEpochCount);
+				sliceCounts = Arrays.copyOf(sliceCounts, newEpochCount);
+				lineageCounts = Arrays.copyOf(lineageCounts, newEpochCount);
+				lineageOffsets = Arrays.copyOf(lineageOffsets, newEpochCount + 1);
+				extinctionOffsets = Arrays.copyOf(extinctionOffsets, newEpochCount + 1);
+				oneToOneOffsets = Arrays.copyOf(oneToOneOffsets, newEpochCount + 1);
+				positions = new int[newEpochCount * newHostNodeCount];
+				kept = 0;
+			}
+			epochCount = newEpochCount;
+			hostNodeCount = newHostNodeCount;
+			rootHeight = newRootHeight;
+
+			// Lay out the epochs that changed after those kept
+			maximumLineageCount = 1;
+			for (int k = 0; k < kept; ++k)
+				maximumLineageCount = Math.max(maximumLineageCount, lineageCounts[k]);
+			for (int k = kept; k < epochCount; ++k) {
+				final int start = epochs.getLineagesStart(k);
+				final int n = epochs.getLineagesEnd(k) - start;
+				bottoms[k] = epochs.getEpochHeight(k);
+				tops[k] = epochs.getEpochHeight(k + 1);
+				sliceCounts[k] = getSliceCount(tops[k] - bottoms[k], maximumStep);
+				steps[k] = (tops[k] - bottoms[k]) / sliceCounts[k];
+				lineageCounts[k] = n;
+				lineageOffsets[k + 1] = lineageOffsets[k] + n;
+				extinctionOffsets[k + 1] = extinctionOffsets[k] + (2 * sliceCounts[k] + 1) * n;
+				oneToOneOffsets[k + 1] = oneToOneOffsets[k] + sliceCounts[k] * n * n;
+				maximumLineageCount = Math.max(maximumLineageCount, n);
+			}
+			if (lineages.length < lineageOffsets[epochCount])
+				lineages = Arrays.copyOf(lineages, lineageOffsets[epochCount]);
+			if (extinctions.length < extinctionOffsets[epochCount])
+				extinctions = Arrays.copyOf(extinctions, extinctionOffsets[epochCount]);
+			if (oneToOnes.length < oneToOneOffsets[epochCount])
+				oneToOnes = Arrays.copyOf(oneToOnes, oneToOneOffsets[epochCount]);
+			for (int k = kept; k < epochCount; ++k) {
+				System.arraycopy(epochLineages, epochs.getLineagesStart(k), lineages, lineageOffsets[k], lineageCounts[k]);
+				Arrays.fill(positions, k * hostNodeCount, (k + 1) * hostNodeCount, -1);
+				for (int l = 0; l < lineageCounts[k]; ++l)
+					positions[k * hostNodeCount + lineages[lineageOffsets[k] + l]] = l;
+			}
+
+			final double[] derivatives = new double[maximumLineageCount];
+			for (int k = kept; k < epochCount; ++k) {
+				updateExtinctions(index, k, derivatives);
+				updateOneToOnes(k);
+			}
+
+			final int root = index.getRoot();
+			rootSurvival = 1.0 - (epochCount == 0 ? 0.0 : getChildrenExtinction(index, epochCount - 1, root));
+
+			tablesDuplicationRate = duplicationRate;
+			tablesHostSwitchRate = hostSwitchRate;
+			tablesLossRate = lossRate;
+			tablesIndex = index;
+			tablesVersion = index.getVersion();
+
+		}
+
+		private int getSliceCount(final double length, final double maximumStep) {
+			return Math.max(minimumSlices, (int) Math.ceil(length / maximumStep));
+		}
+
+		/**
+		 * The probability that a lineage on a host node just above its height goes extinct, from those of its children.
+		 */
+		private double getChildrenExtinction(final HostTreeIndex index, final int epochBelow, final int node) {
+			double q = 1.0;
+			for (int i = 0; i < index.getChildCount(node); ++i)
+				q *= getTopExtinction(epochBelow, getPosition(epochBelow, index.getChild(node, i)));
+			return q;
+		}
+
+		private void updateExtinctions(final HostTreeIndex index, final int k, final double[] derivatives) {
+
+			final int n = lineageCounts[k];
+			final int offset = extinctionOffsets[k];
+
+			// Lineages carry on from the epoch below, begin at a speciation, or begin at a tip, where nothing is extinct
+			for (int l = 0; l < n; ++l) {
+				final int node = lineages[lineageOffsets[k] + l];
+				final double q;
+				if (k == 0 || index.isExternal(node) && getPosition(k - 1, node) == -1)
+					q = 0.0;
+				else if (getPosition(k - 1, node) != -1)
+					q = getTopExtinction(k - 1, getPosition(k - 1, node));
+				else
+					q = getChildrenExtinction(index, k - 1, node);
+				extinctions[offset + l] = q;
+			}
+
+			// Fourth-order Runge-Kutta at every half slice
+			final double h = steps[k] / 2;
+			final double[] k1 = new double[n], k2 = new double[n], k3 = new double[n], k4 = new double[n], y = new double[n];
+			for (int j = 0; j < 2 * sliceCounts[k]; ++j) {
+				final int from = offset + j * n;
+				final int to = from + n;
+				extinctionDerivatives(extinctions, from, n, k1);
+				for (int l = 0; l < n; ++l) y[l] = extinctions[from + l] + h / 2 * k1[l];
+				extinctionDerivatives(y, 0, n, k2);
+				for (int l = 0; l < n; ++l) y[l] = extinctions[from + l] + h / 2 * k2[l];
+				extinctionDerivatives(y, 0, n, k3);
+				for (int l = 0; l < n; ++l) y[l] = extinctions[from + l] + h * k3[l];
+				extinctionDerivatives(y, 0, n, k4);
+				for (int l = 0; l < n; ++l)
+					extinctions[to + l] = extinctions[from + l] + h / 6 * (k1[l] + 2 * k2[l] + 2 * k3[l] + k4[l]);
+			}
+
+		}
+
+		/**
+		 * Calculates the one-to-one probabilities of the slices of an epoch, in parallel if threads were given.
+		 */
+		private void updateOneToOnes(final int k) {
+
+			final int sliceCount = sliceCounts[k];
+			final int tasks = Math.min(threadCount, sliceCount);
+			if (tasks < 2) {
+				new SliceTask(k, 0, sliceCount).call();
+				return;
+			}
+
+			final List<SliceTask> sliceTasks = new ArrayList<SliceTask>(tasks);
+			for (int t = 0; t < tasks; ++t)
+				sliceTasks.add(new SliceTask(k, t * sliceCount / tasks, (t + 1) * sliceCount / tasks));
+			SharedExecutor.invokeAll(sliceTasks, tasks);
+
+		}
+
+		/**
+		 * Calculates the one-to-one probabilities of a range of slices of an epoch, column by
+		 * column, by fourth-order Runge-Kutta from the bottom of each slice to its top.
+		 */
+		private final class SliceTask implements Callable<Boolean> {
+
+			private final int k;
+			private final int start;
+			private final int end;
+
+			private SliceTask(final int k, final int start, final int end) {
+				this.k = k;
+				this.start = start;
+				this.end = end;
+			}
+
+			public Boolean call() {
+				final int n = lineageCounts[k];
+				final double h = steps[k];
+				final double[] k1 = new double[n], k2 = new double[n], k3 = new double[n], k4 = new double[n], x = new double[n], y = new double[n];
+				for (int i = start; i < end; ++i) {
+					final int bottom = extinctionOffsets[k] + 2 * i * n;
+					final int middle = bottom + n;
+					final int top = middle + n;
+					final int offset = oneToOneOffsets[k] + i * n * n;
+					for (int f = 0; f < n; ++f) {
+						Arrays.fill(x, 0.0);
+						x[f] = 1.0;
+						oneToOneDerivatives(extinctions, bottom, n, x, k1);
+						for (int l = 0; l < n; ++l) y[l] = x[l] + h / 2 * k1[l];
+						oneToOneDerivatives(extinctions, middle, n, y, k2);
+						for (int l = 0; l < n; ++l) y[l] = x[l] + h / 2 * k2[l];
+						oneToOneDerivatives(extinctions, middle, n, y, k3);
+						for (int l = 0; l < n; ++l) y[l] = x[l] + h * k3[l];
+						oneToOneDerivatives(extinctions, top, n, y, k4);
+						for (int e = 0; e < n; ++e)
+							oneToOnes[offset + e * n + f] = x[e] + h / 6 * (k1[e] + 2 * k2[e] + 2 * k3[e] + k4[e]);
+					}
+				}
+				return true;
+			}
+
+		}
+
+	}
+
+	private final EpochTables tables = new EpochTables();
+
+	/**
+	 * The derivatives of the extinction probabilities of n lineages, going into the past.
+	 */
+	private void extinctionDerivatives(final double[] q, final int offset, final int n, final double[] derivatives) {
+		final double transferRate = n > 1 ? hostSwitchRate / (n - 1) : 0.0;
+		final double rate = duplicationRate + lossRate + (n > 1 ? hostSwitchRate : 0.0);
+		double sum = 0.0;
+		for (int l = 0; l < n; ++l)
+			sum += q[offset + l];
+		for (int l = 0; l < n; ++l) {
+			final double ql = q[offset + l];
+			derivatives[l] = lossRate - rate * ql + duplicationRate * ql * ql + transferRate * ql * (sum - ql);
+		}
+	}
+
+	/**
+	 * The derivatives of the one-to-one probabilities from n lineages to a fixed one, going into
+	 * the past, given the extinction probabilities. Either a duplicate or a transferred
+	 * copy goes extinct, while the other carries on.
+	 */
+	private void oneToOneDerivatives(final double[] q, final int offset, final int n, final double[] p, final double[] derivatives) {
+		final double transferRate = n > 1 ? hostSwitchRate / (n - 1) : 0.0;
+		final double rate = duplicationRate + lossRate + (n > 1 ? hostSwitchRate : 0.0);
+		double qSum = 0.0;
+		double pSum = 0.0;
+		for (int l = 0; l < n; ++l) {
+			qSum += q[offset + l];
+			pSum += p[l];
+		}
+		for (int l = 0; l < n; ++l) {
+			final double ql = q[offset + l];
+			derivatives[l] = (2 * duplicationRate * ql - rate + transferRate * (qSum - 2 * ql)) * p[l] + transferRate * ql * pSum;
+		}
+	}
+
+	/**
+	 * The probability that the single lineage of the stem survives to the present, a given time above the host root.
+	 */
+	private double getStemSurvival(final double time) {
+		final double r = duplicationRate - lossRate;
+		final double u = tables.rootSurvival;
+		final double g = r == 0.0 ? time : Math.expm1(r * time) / r;
+		return u * Math.exp(r * time) / (1.0 + duplicationRate * u * g);
+	}
+
+	/**
+	 * The one-to-one probability along the stem between two times above the host root.
+	 */
+	private double getStemOneToOne(final double from, final double to) {
+		final double ratio = getStemSurvival(to) / getStemSurvival(from);
+		return ratio * ratio * Math.exp(-(duplicationRate - lossRate) * (to - from));
+	}
+
+	/**
+	 * The scratch space of a thread calculating node likelihoods.
+	 */
+	private final class Workspace {
+		private double[] branch1 = new double[0];
+		private double[] branch2 = new double[0];
+		private double[] x = new double[0];
+		private double[] y = new double[0];
+		private double[] q = new double[0];
+		private double[] k1 = new double[0];
+		private double[] k2 = new double[0];
+		private double[] k3 = new double[0];
+		private double[] k4 = new double[0];
+		private void ensureCapacity(final int n) {
+			if (x.length < n) {
+				branch1 = new double[n];
+				branch2 = new double[n];
+				x = new double[n];
+				y = new double[n];
+				q = new double[3 * n];
+				k1 = new double[n];
+				k2 = new double[n];
+				k3 = new double[n];
+				k4 = new double[n];
+			}
+		}
+	}
+
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+
+	private synchronized EpochTables getTables(final Tree hostTree) {
+		if (dirty) updateVariables();
+		tables.update(HostTreeIndex.forTree(hostTree));
+		return tables;
+	}
+
+	/**
+	 * Calculates the one-to-one probabilities from every lineage at a height to a host at a
+	 * lower one. If the upper height is at the top of an epoch the result is for the
+	 * lineages just below it.
+	 * @param result receives the probabilities, by position among the lineages of the epoch
+	 * @return the epoch of the result, the number of epochs for the stem, or -1 if the host is not contemporaneous
+	 */
+	private int calculateOneToOnes(final EpochTables tables, final HostTreeIndex index, final Workspace workspace, final int host, final double height, final double upperHeight, final double[] result) {
+
+		int k = tables.getEpochBelow(height);
+		// A height at the top of an epoch is at the bottom of the next, where the host begins
+		if (k < tables.epochCount && (height == tables.tops[k] || MachineAccuracy.same(height, tables.tops[k]) && tables.getPosition(k, host) == -1))
+			++k;
+
+		if (k == tables.epochCount) {
+			if (host != index.getRoot())
+				return -1;
+			result[0] = getStemOneToOne(height - tables.rootHeight, upperHeight - tables.rootHeight);
+			return k;
+		}
+
+		final int position = tables.getPosition(k, host);
+		if (position == -1)
+			return -1;
+		double[] x = result;
+		double[] y = workspace.y;
+		Arrays.fill(x, 0, tables.lineageCounts[k], 0.0);
+		x[position] = 1.0;
+		double current = height;
+
+		while (true) {
+
+			final int n = tables.lineageCounts[k];
+			final double bottom = tables.bottoms[k];
+			final double top = tables.tops[k];
+			final double step = tables.steps[k];
+			final int sliceCount = tables.sliceCounts[k];
+			final double target = Math.min(upperHeight, top);
+
+			int i = Math.min((int) ((current - bottom) / step), sliceCount - 1);
+			while (current < target) {
+				final double sliceBottom = bottom + i * step;
+				final double sliceTop = i == sliceCount - 1 ? top : bottom + (i + 1) * step;
+				if (current == sliceBottom && sliceTop <= target) {
+					// A whole slice
+					final int offset = tables.oneToOneOffsets[k] + i * n * n;
+					for (int e = 0; e < n; ++e) {
+						double sum = 0.0;
+						for (int f = 0; f < n; ++f)
+							sum += tables.oneToOnes[offset + e * n + f] * x[f];
+						y[e] = sum;
+					}
+					final double[] swap = x;
+					x = y;
+					y = swap;
+					current = sliceTop;
+				} else {
+					final double next = Math.min(sliceTop, target);
+					stepOneToOnes(tables, workspace, k, current, next, x);
+					current = next;
+				}
+				if (current == sliceTop)
+					++i;
+			}
+
+			if (upperHeight <= top)
+				break;
+
+			// Carry the probabilities up across the speciation at the top of the epoch
+			final int above = k + 1;
+			if (above == tables.epochCount) {
+				x[0] = carryAcrossSpeciation(tables, index, k, index.getRoot(), x) * getStemOneToOne(0.0, upperHeight - tables.rootHeight);
+				k = above;
+				break;
+			}
+			final int m = tables.lineageCounts[above];
+			for (int l = 0; l < m; ++l) {
+				final int node = tables.lineages[tables.lineageOffsets[above] + l];
+				final int p = tables.getPosition(k, node);
+				if (p != -1)
+					y[l] = x[p];
+				else if (!index.isExternal(node) && index.getHeight(node) == top)
+					y[l] = carryAcrossSpeciation(tables, index, k, node, x);
+				else
+					y[l] = 0.0;
+			}
+			final double[] swap = x;
+			x = y;
+			y = swap;
+			k = above;
+			current = top;
+
+		}
+
+		if (x != result)
+			System.arraycopy(x, 0, result, 0, k == tables.epochCount ? 1 : tables.lineageCounts[k]);
+		return k;
+
+	}
+
+	/**
+	 * The one-to-one probability from a host node just above its speciation: one child carries
+	 * on and the others go extinct.
+	 * @param x the probabilities from the lineages of the epoch below
+	 */
+	private static double carryAcrossSpeciation(final EpochTables tables, final HostTreeIndex index, final int epochBelow, final int node, final double[] x) {
+		double sum = 0.0;
+		for (int c = 0; c < index.getChildCount(node); ++c) {
+			double term = x[tables.getPosition(epochBelow, index.getChild(node, c))];
+			for (int d = 0; d < index.getChildCount(node); ++d) {
+				if (d != c)
+					term *= tables.getTopExtinction(epochBelow, tables.getPosition(epochBelow, index.getChild(node, d)));
+			}
+			sum += term;
+		}
+		return sum;
+	}
+
+	/**
+	 * Integrates the one-to-one probabilities across part of a slice by fourth-order
+	 * Runge-Kutta, interpolating the extinction probabilities.
+	 */
+	private void stepOneToOnes(final EpochTables tables, final Workspace workspace, final int k, final double from, final double to, final double[] x) {
+		final int n = tables.lineageCounts[k];
+		final double h = to - from;
+		final double[] q = workspace.q;
+		final double[] y = workspace.x;
+		interpolateExtinctions(tables, workspace, k, from, q, 0);
+		interpolateExtinctions(tables, workspace, k, from + h / 2, q, n);
+		interpolateExtinctions(tables, workspace, k, to, q, 2 * n);
+		oneToOneDerivatives(q, 0, n, x, workspace.k1);
+		for (int l = 0; l < n; ++l) y[l] = x[l] + h / 2 * workspace.k1[l];
+		oneToOneDerivatives(q, n, n, y, workspace.k2);
+		for (int l = 0; l < n; ++l) y[l] = x[l] + h / 2 * workspace.k2[l];
+		oneToOneDerivatives(q, n, n, y, workspace.k3);
+		for (int l = 0; l < n; ++l) y[l] = x[l] + h * workspace.k3[l];
+		oneToOneDerivatives(q, 2 * n, n, y, workspace.k4);
+		for (int l = 0; l < n; ++l)
+			x[l] += h / 6 * (workspace.k1[l] + 2 * workspace.k2[l] + 2 * workspace.k3[l] + workspace.k4[l]);
+	}
+
+	/**
+	 * Interpolates the extinction probabilities of an epoch at a height by cubic Hermite
+	 * interpolation between the half slices around it.
+	 */
+	private void interpolateExtinctions(final EpochTables tables, final Workspace workspace, final int k, final double height, final double[] q, final int offset) {
+		final int n = tables.lineageCounts[k];
+		final double h = tables.steps[k] / 2;
+		final int j = Math.max(0, Math.min((int) ((height - tables.bottoms[k]) / h), 2 * tables.sliceCounts[k] - 1));
+		final double t = (height - tables.bottoms[k] - j * h) / h;
+		final int from = tables.extinctionOffsets[k] + j * n;
+		final int to = from + n;
+		final double[] d0 = workspace.k1;
+		final double[] d1 = workspace.k2;
+		extinctionDerivatives(tables.extinctions, from, n, d0);
+		extinctionDerivatives(tables.extinctions, to, n, d1);
+		final double t2 = t * t;
+		final double t3 = t2 * t;
+		final double h00 = 2 * t3 - 3 * t2 + 1;
+		final double h10 = t3 - 2 * t2 + t;
+		final double h01 = -2 * t3 + 3 * t2;
+		final double h11 = t3 - t2;
+		for (int l = 0; l < n; ++l)
+			q[offset + l] = h00 * tables.extinctions[from + l] + h10 * h * d0[l] + h01 * tables.extinctions[to + l] + h11 * h * d1[l];
+	}
+
+	@Override
+	public double calculateNodeLogLikelihood(final MutableTree symbiontTree, final NodeRef self,
+			final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
+			final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates) {
+		checkBranchRate(branchRates.getBranchRate(symbiontTree, child1));
+		checkBranchRate(branchRates.getBranchRate(symbiontTree, child2));
+		return calculateNodeLogLikelihood(hostTree, symbiontTree.getNodeHeight(self), symbiontTree.getNodeHeight(child1), symbiontTree.getNodeHeight(child2), selfHost, child1Host, child2Host);
+	}
+
+	@Override
+	public double calculateNodeLogLikelihood(final MutableTree symbiontTree, final NodeRef self,
+			final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
+			final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates,
+			final double[] nodeHeights, final double[] branchLengths, final double[] nodeRates) {
+		checkBranchRate(nodeRates[child1.getNumber()]);
+		checkBranchRate(nodeRates[child2.getNumber()]);
+		return calculateNodeLogLikelihood(hostTree, nodeHeights[self.getNumber()], nodeHeights[child1.getNumber()], nodeHeights[child2.getNumber()], selfHost, child1Host, child2Host);
+	}
+
+	/**
+	 * The tables are shared by every branch, so they cannot be scaled by the rate of one.
+	 */
+	private static void checkBranchRate(final double rate) {
+		if (rate != 1.0)
+			throw new IllegalStateException("The epoch DLTRS model requires every symbiont branch rate to be one, not " + rate + ".");
+	}
+
+	private double calculateNodeLogLikelihood(final Tree hostTree, final double selfHeight, final double child1Height, final double child2Height, final NodeRef selfHost, final NodeRef child1Host, final NodeRef child2Host) {
+
+		final EpochTables tables = getTables(hostTree);
+		final HostTreeIndex index = HostTreeIndex.forTree(hostTree);
+		final Workspace workspace = workspaces.get();
+		workspace.ensureCapacity(tables.maximumLineageCount);
+		final double[] p1 = workspace.branch1;
+		final double[] p2 = workspace.branch2;
+
+		final int s = selfHost.getNumber();
+		final boolean cospeciation = !index.isExternal(s) && MachineAccuracy.same(index.getHeight(s), selfHeight);
+		// A cospeciation is exactly at the speciation of its host, and its children begin just below it
+		final double height = cospeciation ? index.getHeight(s) : selfHeight;
+		final int k = calculateOneToOnes(tables, index, workspace, child1Host.getNumber(), child1Height, height, p1);
+		if (k == -1 || calculateOneToOnes(tables, index, workspace, child2Host.getNumber(), child2Height, height, p2) != k)
+			return Double.NEGATIVE_INFINITY;
+
+		if (cospeciation) {
+			final int h1 = tables.getPosition(k, index.getChild(s, 0));
+			final int h2 = tables.getPosition(k, index.getChild(s, 1));
+			if (h1 == -1 || h2 == -1)
+				return Double.NEGATIVE_INFINITY;
+			return Math.log(p1[h1] * p2[h2] + p1[h2] * p2[h1]);
+		}
+
+		final double l;
+		if (k == tables.epochCount) {
+			// Nothing to transfer to on the stem
+			l = s == index.getRoot() ? duplicationRate * p1[0] * p2[0] : 0.0;
+		} else {
+			if (selfHeight == tables.tops[k])
+				return Double.NEGATIVE_INFINITY; // Only a cospeciation can happen at a speciation
+			final int position = tables.getPosition(k, s);
+			if (position == -1)
+				return Double.NEGATIVE_INFINITY;
+			final int n = tables.lineageCounts[k];
+			double sum1 = 0.0;
+			double sum2 = 0.0;
+			for (int e = 0; e < n; ++e) {
+				sum1 += p1[e];
+				sum2 += p2[e];
+			}
+			final double duplication = duplicationRate * p1[position] * p2[position];
+			final double transfer = n > 1 ? hostSwitchRate / (n - 1) * (p1[position] * (sum2 - p2[position]) + p2[position] * (sum1 - p1[position])) : 0.0;
+			l = duplication + transfer;
+		}
+		return Math.log(l);
+
+	}
+
+	@Override
+	public double calculateOriginLogLikelihood(final Tree symbiontTree, final double originHeight, final NodeRef root, final Tree hostTree, final NodeRef originHost, final NodeRef rootHost, final BranchRates branchRates) {
+
+		final EpochTables tables = getTables(hostTree);
+		final double rootHeight = symbiontTree.getNodeHeight(root);
+		if (tables.rootHeight > originHeight || rootHeight > originHeight)
+			return Double.NEGATIVE_INFINITY;
+
+		final HostTreeIndex index = HostTreeIndex.forTree(hostTree);
+		final Workspace workspace = workspaces.get();
+		workspace.ensureCapacity(tables.maximumLineageCount);
+		final double[] p = workspace.branch1;
+		if (calculateOneToOnes(tables, index, workspace, rootHost.getNumber(), rootHeight, originHeight, p) != tables.epochCount)
+			return Double.NEGATIVE_INFINITY; // The origin is at the host root
+
+		double logL = Math.log(p[0]);
+		if (normalize)
+			logL -= Math.log(getStemSurvival(originHeight - tables.rootHeight));
+		return logL;
+
+	}
+
+	@Override
+	public void initialize(final Tree tree) {} // Nothing to do
+
+	@Override
+	public boolean haveNodePartialsChanged(final NodeRef node) {
+		return false;
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
+}
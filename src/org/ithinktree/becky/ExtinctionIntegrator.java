@@ -0,0 +1,206 @@
+/**
+ * ExtinctionIntegrator.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+/**
+ * Integrates the probabilities that a symbiont lineage leaves no descendants,
+ * allowing for duplications, host switches and losses, backwards along a host tree.
+ * <p/>
+ * For a symbiont in host lineage h, with the rates already scaled by the branch rate,
+ * <pre>
+ * dE<sub>h</sub>/ds = &mu; - (&lambda; + &mu; + &tau;) E<sub>h</sub> + &lambda; E<sub>h</sub><sup>2</sup> + &tau; E<sub>h</sub> (&Sigma;<sub>g&ne;h</sub> E<sub>g</sub>) / (n - 1)
+ * </pre>
+ * where s is the height and n the number of host lineages alive, a switch going to one of
+ * the others uniformly; with no other lineage, a switch leaves the tree and is never observed.
+ * Since switches couple all contemporaneous lineages, each epoch of the host tree is
+ * integrated as a whole with an adaptive Dormand-Prince 5(4) scheme. A lineage starts with
+ * E = 0 at a host tip and with the product of its children's probabilities at a speciation.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+final class ExtinctionIntegrator {
+
+	private static final double RELATIVE_TOLERANCE = 1E-10;
+	private static final double ABSOLUTE_TOLERANCE = 1E-12;
+	private static final double MINIMUM_SCALE = 0.2;
+	private static final double MAXIMUM_SCALE = 5.0;
+	private static final double SAFETY = 0.9;
+
+	// Dormand-Prince tableau; the last stage is evaluated at the new point and reused as the next first
+	private static final double A21 = 1.0 / 5.0;
+	private static final double A31 = 3.0 / 40.0, A32 = 9.0 / 40.0;
+	private static final double A41 = 44.0 / 45.0, A42 = -56.0 / 15.0, A43 = 32.0 / 9.0;
+	private static final double A51 = 19372.0 / 6561.0, A52 = -25360.0 / 2187.0, A53 = 64448.0 / 6561.0, A54 = -212.0 / 729.0;
+	private static final double A61 = 9017.0 / 3168.0, A62 = -355.0 / 33.0, A63 = 46732.0 / 5247.0, A64 = 49.0 / 176.0, A65 = -5103.0 / 18656.0;
+	private static final double B1 = 35.0 / 384.0, B3 = 500.0 / 1113.0, B4 = 125.0 / 192.0, B5 = -2187.0 / 6784.0, B6 = 11.0 / 84.0;
+	private static final double E1 = 71.0 / 57600.0, E3 = -71.0 / 16695.0, E4 = 71.0 / 1920.0, E5 = -17253.0 / 339200.0, E6 = 22.0 / 525.0, E7 = -1.0 / 40.0;
+
+	private double duplicationRate;
+	private double hostSwitchRate;
+	private double lossRate;
+
+	private double[] values = new double[0];
+	private double[] y = new double[0];
+	private double[] next;
+	private double[] work;
+	private double[] k1, k2, k3, k4, k5, k6, k7;
+
+	/**
+	 * Fills a table of lineage loss likelihoods for a host tree, laid out as in
+	 * {@link SimpleCophylogenyModel}: at 2n the probability that a symbiont entering the branch
+	 * above node n at its top leaves no descendants, and at 2n + 1 that it passes along the
+	 * branch without any event and its descendants are then all lost below the node. The branch
+	 * above the root is taken to have no length.
+	 * @param index the index of the host tree
+	 * @param duplicationRate
+	 * @param hostSwitchRate
+	 * @param lossRate
+	 * @param rate the branch rate scaling all three
+	 * @param likelihoods the table to fill
+	 */
+	void integrate(final HostTreeIndex index, final double duplicationRate, final double hostSwitchRate, final double lossRate, final double rate, final double[] likelihoods) {
+
+		this.duplicationRate = duplicationRate * rate;
+		this.hostSwitchRate = hostSwitchRate * rate;
+		this.lossRate = lossRate * rate;
+
+		final double totalRate = this.duplicationRate + this.hostSwitchRate + this.lossRate;
+		final int nodeCount = index.getNodeCount();
+		if (values.length != nodeCount)
+			values = new double[nodeCount];
+		final HostEpochIndex epochs = index.getEpochs();
+		final int[] lineages = epochs.getLineages();
+		final int epochCount = epochs.getEpochCount();
+
+		for (int k = 0; k < epochCount; ++k) {
+
+			final double bottom = epochs.getEpochHeight(k);
+			final int start = epochs.getLineagesStart(k);
+			final int n = epochs.getLineagesEnd(k) - start;
+
+			// Lineages beginning at the bottom of the epoch
+			for (int j = 0; j < n; ++j) {
+				final int node = lineages[start + j];
+				if (index.getHeight(node) != bottom)
+					continue;
+				double e = 0.0;
+				if (!index.isExternal(node)) {
+					e = 1.0;
+					for (int i = 0; i < index.getChildCount(node); ++i)
+						e *= values[index.getChild(node, i)];
+				}
+				values[node] = e;
+				likelihoods[2 * node + 1] = index.isRoot(node) ? e : Math.exp(-totalRate * (index.getHeight(index.getParent(node)) - bottom)) * e;
+			}
+
+			if (k == epochCount - 1)
+				break;
+
+			final double top = epochs.getEpochHeight(k + 1);
+			ensureCapacity(n);
+			for (int j = 0; j < n; ++j)
+				y[j] = values[lineages[start + j]];
+			integrate(n, top - bottom);
+			for (int j = 0; j < n; ++j) {
+				final int node = lineages[start + j];
+				values[node] = y[j];
+				if (index.getHeight(index.getParent(node)) == top)
+					likelihoods[2 * node] = y[j];
+			}
+
+		}
+
+		final int root = index.getRoot();
+		likelihoods[2 * root] = likelihoods[2 * root + 1];
+
+	}
+
+	private void ensureCapacity(final int n) {
+		if (y.length < n) {
+			y = new double[n];
+			next = new double[n];
+			work = new double[n];
+			k1 = new double[n];
+			k2 = new double[n];
+			k3 = new double[n];
+			k4 = new double[n];
+			k5 = new double[n];
+			k6 = new double[n];
+			k7 = new double[n];
+		}
+	}
+
+	private void derivatives(final int n, final double[] e, final double[] de) {
+		final double totalRate = duplicationRate + hostSwitchRate + lossRate;
+		double sum = 0.0;
+		for (int j = 0; j < n; ++j)
+			sum += e[j];
+		for (int j = 0; j < n; ++j) {
+			final double others = n > 1 ? (sum - e[j]) / (n - 1) : 1.0;
+			de[j] = lossRate - totalRate * e[j] + duplicationRate * e[j] * e[j] + hostSwitchRate * e[j] * others;
+		}
+	}
+
+	/**
+	 * Advances the first n entries of y over a length of time.
+	 */
+	private void integrate(final int n, final double length) {
+
+		double t = 0.0;
+		double h = length;
+		derivatives(n, y, k1);
+		while (t < length) {
+
+			final boolean last = t + h >= length;
+			if (last)
+				h = length - t;
+
+			for (int j = 0; j < n; ++j)
+				work[j] = y[j] + h * A21 * k1[j];
+			derivatives(n, work, k2);
+			for (int j = 0; j < n; ++j)
+				work[j] = y[j] + h * (A31 * k1[j] + A32 * k2[j]);
+			derivatives(n, work, k3);
+			for (int j = 0; j < n; ++j)
+				work[j] = y[j] + h * (A41 * k1[j] + A42 * k2[j] + A43 * k3[j]);
+			derivatives(n, work, k4);
+			for (int j = 0; j < n; ++j)
+				work[j] = y[j] + h * (A51 * k1[j] + A52 * k2[j] + A53 * k3[j] + A54 * k4[j]);
+			derivatives(n, work, k5);
+			for (int j = 0; j < n; ++j)
+				work[j] = y[j] + h * (A61 * k1[j] + A62 * k2[j] + A63 * k3[j] + A64 * k4[j] + A65 * k5[j]);
+			derivatives(n, work, k6);
+			for (int j = 0; j < n; ++j)
+				next[j] = y[j] + h * (B1 * k1[j] + B3 * k3[j] + B4 * k4[j] + B5 * k5[j] + B6 * k6[j]);
+			derivatives(n, next, k7);
+
+			double error = 0.0;
+			for (int j = 0; j < n; ++j) {
+				final double scale = ABSOLUTE_TOLERANCE + RELATIVE_TOLERANCE * Math.max(Math.abs(y[j]), Math.abs(next[j]));
+				final double e = h * (E1 * k1[j] + E3 * k3[j] + E4 * k4[j] + E5 * k5[j] + E6 * k6[j] + E7 * k7[j]) / scale;
+				error += e * e;
+			}
+			error = Math.sqrt(error / n);
+
+			if (error <= 1.0) {
+				t = last ? length : t + h;
+				final double[] swap = y;
+				y = next;
+				next = swap;
+				final double[] k = k1;
+				k1 = k7;
+				k7 = k;
+			}
+			h *= error == 0.0 ? MAXIMUM_SCALE : Math.min(MAXIMUM_SCALE, Math.max(MINIMUM_SCALE, SAFETY * Math.pow(error, -0.2)));
+
+		}
+
+	}
+
+}
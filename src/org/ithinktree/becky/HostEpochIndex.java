@@ -0,0 +1,159 @@
+/**
+ * HostEpochIndex.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+import java.util.Arrays;
+
+/**
+ * Splits the history of a host tree into epochs at its node heights and lists the
+ * lineages alive in each.
+ * <p/>
+ * Epoch k spans [h<sub>k</sub>, h<sub>k+1</sub>) for the sorted distinct node heights,
+ * the last one extending into the infinite past, so a lineage is alive in an epoch when
+ * its node is no older than the epoch and its parent is older. Counts take a binary search
+ * and the lineages of an epoch are a range of a shared array. Owned and kept current by
+ * a {@link HostTreeIndex}.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+public final class HostEpochIndex {
+
+	private double[] epochHeights = new double[0];
+	private int epochCount;
+	private int[] lineageOffsets = new int[1];
+	private int[] lineages = new int[0];
+
+	HostEpochIndex() {}
+
+	void build(final HostTreeIndex index) {
+
+		final int n = index.getNodeCount();
+		if (epochHeights.length != n) {
+			epochHeights = new double[n];
+			lineageOffsets = new int[n + 1];
+		}
+
+		for (int i = 0; i < n; ++i)
+			epochHeights[i] = index.getHeight(i);
+		Arrays.sort(epochHeights);
+		epochCount = 0;
+		for (int i = 0; i < n; ++i) {
+			if (epochCount == 0 || Double.compare(epochHeights[i], epochHeights[epochCount - 1]) != 0)
+				epochHeights[epochCount++] = epochHeights[i];
+		}
+
+		// Each lineage is alive over a contiguous run of epochs; count them with a difference array
+		Arrays.fill(lineageOffsets, 0);
+		for (int i = 0; i < n; ++i) {
+			final int first = findEpoch(index.getHeight(i));
+			final int last = index.isRoot(i) ? epochCount - 1 : findEpoch(index.getHeight(index.getParent(i))) - 1;
+			if (first <= last) {
+				++lineageOffsets[first + 1];
+				if (last + 2 <= epochCount)
+					--lineageOffsets[last + 2];
+			}
+		}
+		// The first pass yields the count of epoch k at k + 1, the second turns those counts into offsets
+		for (int k = 1; k <= epochCount; ++k)
+			lineageOffsets[k] += lineageOffsets[k - 1];
+		for (int k = 1; k <= epochCount; ++k)
+			lineageOffsets[k] += lineageOffsets[k - 1];
+
+		if (lineages.length < lineageOffsets[epochCount])
+			lineages = new int[lineageOffsets[epochCount]];
+
+		// Fill in preorder so that every epoch lists its lineages in the same order as a traversal would
+		final int[] cursors = new int[epochCount];
+		System.arraycopy(lineageOffsets, 0, cursors, 0, epochCount);
+		for (int j = 0; j < n; ++j) {
+			final int i = index.getPreorderNode(j);
+			final int first = findEpoch(index.getHeight(i));
+			final int last = index.isRoot(i) ? epochCount - 1 : findEpoch(index.getHeight(index.getParent(i))) - 1;
+			for (int k = first; k <= last; ++k)
+				lineages[cursors[k]++] = i;
+		}
+
+	}
+
+	private int findEpoch(final double height) {
+		return Arrays.binarySearch(epochHeights, 0, epochCount, height);
+	}
+
+	public int getEpochCount() {
+		return epochCount;
+	}
+
+	/**
+	 * @param height a height
+	 * @return the epoch containing the height, or -1 if it predates every node
+	 */
+	public int getEpoch(final double height) {
+		if (epochCount == 0 || !(height >= epochHeights[0]))
+			return -1;
+		int lo = 0;
+		int hi = epochCount - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (epochHeights[mid] <= height)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * @param epoch an epoch
+	 * @return the height at which the epoch begins
+	 */
+	public double getEpochHeight(final int epoch) {
+		return epochHeights[epoch];
+	}
+
+	public int getLineageCount(final int epoch) {
+		if (epoch < 0)
+			return 0;
+		return lineageOffsets[epoch + 1] - lineageOffsets[epoch];
+	}
+
+	/**
+	 * Counts the lineages alive at a height, as {@link CophylogenyModel.Utils#getContemporaneousLineageCount(dr.evolution.tree.Tree, double)} does.
+	 * @param height a height
+	 * @return the number of contemporaneous lineages
+	 */
+	public int getLineageCountAtHeight(final double height) {
+		return getLineageCount(getEpoch(height));
+	}
+
+	/**
+	 * @param epoch an epoch
+	 * @return the offset in {@link #getLineages()} at which the lineages of the epoch begin
+	 */
+	public int getLineagesStart(final int epoch) {
+		return lineageOffsets[epoch];
+	}
+
+	/**
+	 * @param epoch an epoch
+	 * @return the offset in {@link #getLineages()} at which the lineages of the epoch end, exclusive
+	 */
+	public int getLineagesEnd(final int epoch) {
+		return lineageOffsets[epoch + 1];
+	}
+
+	/**
+	 * The node numbers of the lineages of all epochs, in ranges given by
+	 * {@link #getLineagesStart(int)} and {@link #getLineagesEnd(int)}. Shared; do not modify.
+	 * @return the lineages
+	 */
+	public int[] getLineages() {
+		return lineages;
+	}
+
+}
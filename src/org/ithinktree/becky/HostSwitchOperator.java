@@ -6,8 +6,6 @@
  */
 package org.ithinktree.becky;
 
-import java.util.List;
-
 import org.ithinktree.becky.xml.HostSwitchOperatorParser;
 
 import dr.evolution.tree.MutableTree;
@@ -27,6 +25,7 @@ public class HostSwitchOperator extends SimpleMCMCOperator {
 	protected final MutableTree symbiontTree;
 	protected final CophylogenyLikelihood cophylogenyLikelihood;
 	protected final boolean sampleNoHost;
+	private int[] hostNodes;
 	
 	/**
 	 * 
@@ -55,14 +54,17 @@ public class HostSwitchOperator extends SimpleMCMCOperator {
 		final NodeRef node = symbiontTree.getInternalNode(MathUtils.nextInt(symbiontTree.getInternalNodeCount()));
 		final double nodeParentHeight = symbiontTree.isRoot(node) ? Double.POSITIVE_INFINITY : symbiontTree.getNodeHeight(symbiontTree.getParent(node));
 		final double nodeChildHeight = Math.max(symbiontTree.getNodeHeight(symbiontTree.getChild(node, 0)), symbiontTree.getNodeHeight(symbiontTree.getChild(node, 1)));
-		final List<NodeRef> hostNodes = CophylogenyModel.Utils.getLineagesInTimeRange(hostTree, nodeParentHeight, nodeChildHeight);
-		final int i = sampleNoHost ? MathUtils.nextInt(hostNodes.size() + 1) - 1 : MathUtils.nextInt(hostNodes.size());
-		final NodeRef proposedHost = i < 0 ? null : hostNodes.get(i);
+		final HostTreeIndex hostTreeIndex = HostTreeIndex.forTree(hostTree);
+		if (hostNodes == null || hostNodes.length != hostTreeIndex.getNodeCount())
+			hostNodes = new int[hostTreeIndex.getNodeCount()];
+		final int hostNodeCount = hostTreeIndex.getLineagesInTimeRange(nodeParentHeight, nodeChildHeight, hostNodes);
+		final int i = sampleNoHost ? MathUtils.nextInt(hostNodeCount + 1) - 1 : MathUtils.nextInt(hostNodeCount);
+		final NodeRef proposedHost = i < 0 ? null : hostTreeIndex.getNode(hostNodes[i]);
 		final NodeRef currentHost = cophylogenyLikelihood.getStatesForNode(node);
 		if ((proposedHost != null && proposedHost.equals(currentHost))
 				|| currentHost == null) throw new OperatorFailedException("No change of state");
 		double hastingsRatio = 1.0;
-		if (!CophylogenyModel.Utils.isContemporaneous(hostTree, proposedHost, symbiontTree.getNodeHeight(node))) {
+		if (!hostTreeIndex.isContemporaneous(proposedHost.getNumber(), symbiontTree.getNodeHeight(node))) {
 		    final double min = Math.max(nodeChildHeight, hostTree.getNodeHeight(proposedHost));
 		    double max = Math.min(nodeParentHeight, hostTree.isRoot(proposedHost) ? Double.POSITIVE_INFINITY : hostTree.getNodeHeight(hostTree.getParent(proposedHost)));
 		    if (Double.isInfinite(max)) max = hostTree.getNodeHeight(proposedHost);
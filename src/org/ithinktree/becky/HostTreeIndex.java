@@ -0,0 +1,455 @@
+/**
+ * HostTreeIndex.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.ithinktree.becky.CophylogenyModel.Utils.Relationship;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Model;
+import dr.inference.model.ModelListener;
+
+/**
+ * A flat-array snapshot of a host tree for fast ancestry and relationship queries.
+ * <p/>
+ * Nodes are addressed by their numbers. Ancestry is answered in constant time from
+ * the entry and exit times of an Euler tour, and generations from node depths. The
+ * ancestor of a node at a given time is found by binary lifting, assuming that
+ * heights increase towards the root as in any valid tree.
+ * Indices are shared through {@link #forTree(Tree)}, which rebuilds them lazily
+ * after the tree fires a change or is restored; after changes to node heights alone
+ * only the heights are read again. Trees that are not {@link Model}s are assumed
+ * never to change, and an {@link EmpiricalHostTreeModel} answers with the index of
+ * its current tree.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+public final class HostTreeIndex implements ModelListener {
+
+	public static final int NO_NODE = -1;
+
+	private static final Map<Tree,HostTreeIndex> indices = new WeakHashMap<Tree,HostTreeIndex>();
+	private static volatile HostTreeIndex lastIndex = null;
+
+	/**
+	 * Returns the up-to-date index of a tree, building it if necessary.
+	 * @param tree the tree
+	 * @return its index
+	 */
+	public static HostTreeIndex forTree(final Tree tree) {
+		if (tree instanceof EmpiricalHostTreeModel)
+			return ((EmpiricalHostTreeModel) tree).getHostTreeIndex();
+		HostTreeIndex index = lastIndex;
+		if (index == null || index.getTree() != tree) {
+			synchronized (indices) {
+				index = indices.get(tree);
+				if (index == null) {
+					index = new HostTreeIndex(tree);
+					indices.put(tree, index);
+				}
+			}
+			lastIndex = index;
+		}
+		index.update(tree);
+		return index;
+	}
+
+	/**
+	 * Builds a private index of a tree, for owners that cache indices themselves.
+	 * @param tree the tree
+	 * @return its index
+	 */
+	static HostTreeIndex create(final Tree tree) {
+		final HostTreeIndex index = new HostTreeIndex(tree);
+		index.update(tree);
+		return index;
+	}
+
+	private final WeakReference<Tree> tree;
+	private volatile boolean dirty = true;
+	private volatile boolean heightsDirty = false;
+	private boolean changedSinceRestore = false;
+	private boolean topologyChangedSinceRestore = false;
+	private int version = 0;
+
+	private int root;
+	private NodeRef[] nodes;
+	private int[] parents;
+	private int[] childOffsets;
+	private int[] children;
+	private double[] heights;
+	private int[] depths;
+	private int[] entries;
+	private int[] exits;
+	private int[] preorder;
+	private int jumpLevels;
+	// The 2^k-th ancestor of node n is at jumps[k * nodeCount + n]
+	private int[] jumps;
+
+	private final HostEpochIndex epochs = new HostEpochIndex();
+	private volatile boolean epochsDirty = true;
+
+	private HostTreeIndex(final Tree tree) {
+		this.tree = new WeakReference<Tree>(tree);
+		if (tree instanceof Model) {
+			((Model) tree).addModelListener(this);
+			((Model) tree).addModelRestoreListener(this);
+		}
+	}
+
+	private Tree getTree() {
+		return tree.get();
+	}
+
+	private void update(final Tree tree) {
+		if (dirty || heightsDirty) {
+			synchronized (this) {
+				if (dirty) {
+					build(tree);
+				} else if (heightsDirty) {
+					for (int i = 0; i < nodes.length; ++i)
+						heights[i] = tree.getNodeHeight(nodes[i]);
+				} else {
+					return;
+				}
+				++version;
+				epochsDirty = true;
+				heightsDirty = false;
+				dirty = false;
+			}
+		}
+	}
+
+	private void build(final Tree tree) {
+
+		final int n = tree.getNodeCount();
+		if (nodes == null || nodes.length != n) {
+			nodes = new NodeRef[n];
+			parents = new int[n];
+			childOffsets = new int[n + 1];
+			children = new int[Math.max(n - 1, 0)];
+			heights = new double[n];
+			depths = new int[n];
+			entries = new int[n];
+			exits = new int[n];
+			preorder = new int[n];
+		}
+
+		for (int i = 0; i < n; ++i) {
+			final NodeRef node = tree.getNode(i);
+			nodes[i] = node;
+			heights[i] = tree.getNodeHeight(node);
+			parents[i] = tree.isRoot(node) ? NO_NODE : tree.getParent(node).getNumber();
+			childOffsets[i + 1] = childOffsets[i] + tree.getChildCount(node);
+		}
+		for (int i = 0; i < n; ++i) {
+			final NodeRef node = nodes[i];
+			for (int j = childOffsets[i]; j < childOffsets[i + 1]; ++j)
+				children[j] = tree.getChild(node, j - childOffsets[i]).getNumber();
+		}
+		root = tree.getRoot().getNumber();
+
+		// Iterative Euler tour, since host trees may be deep
+		final int[] stack = new int[n];
+		final int[] next = new int[n];
+		int top = 0;
+		int time = 0;
+		int visited = 0;
+		stack[0] = root;
+		depths[root] = 0;
+		entries[root] = time++;
+		preorder[visited++] = root;
+		next[root] = childOffsets[root];
+		while (top >= 0) {
+			final int node = stack[top];
+			if (next[node] < childOffsets[node + 1]) {
+				final int child = children[next[node]++];
+				depths[child] = depths[node] + 1;
+				entries[child] = time++;
+				preorder[visited++] = child;
+				next[child] = childOffsets[child];
+				stack[++top] = child;
+			} else {
+				exits[node] = time++;
+				--top;
+			}
+		}
+
+		int maxDepth = 0;
+		for (int i = 0; i < n; ++i)
+			maxDepth = Math.max(maxDepth, depths[i]);
+		jumpLevels = 1;
+		while ((1 << jumpLevels) <= maxDepth)
+			++jumpLevels;
+		if (jumps == null || jumps.length != jumpLevels * n)
+			jumps = new int[jumpLevels * n];
+		System.arraycopy(parents, 0, jumps, 0, n);
+		for (int k = 1; k < jumpLevels; ++k) {
+			final int level = k * n;
+			final int previousLevel = level - n;
+			for (int i = 0; i < n; ++i) {
+				final int half = jumps[previousLevel + i];
+				jumps[level + i] = half == NO_NODE ? NO_NODE : jumps[previousLevel + half];
+			}
+		}
+
+	}
+
+	public void modelChangedEvent(final Model model, final Object object, final int index) {
+		if (object instanceof TreeModel.TreeChangedEvent && ((TreeModel.TreeChangedEvent) object).isNodeParameterChanged()) {
+			heightsDirty = true;
+		} else {
+			dirty = true;
+			topologyChangedSinceRestore = true;
+		}
+		changedSinceRestore = true;
+	}
+
+	public void modelRestored(final Model model) {
+		// Restoring without a change since the last restore leaves the tree as it was built
+		if (changedSinceRestore) {
+			if (topologyChangedSinceRestore)
+				dirty = true;
+			else
+				heightsDirty = true;
+			changedSinceRestore = false;
+			topologyChangedSinceRestore = false;
+		}
+	}
+
+	/**
+	 * @return the epochs of the tree, built on first use after every change
+	 */
+	public HostEpochIndex getEpochs() {
+		if (epochsDirty) {
+			synchronized (this) {
+				if (epochsDirty) {
+					epochs.build(this);
+					epochsDirty = false;
+				}
+			}
+		}
+		return epochs;
+	}
+
+	/**
+	 * @return a number that changes whenever the index is rebuilt or its heights read again, so that anything derived
+	 * from it can tell whether it is still current
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public int getNodeCount() {
+		return nodes.length;
+	}
+
+	public int getRoot() {
+		return root;
+	}
+
+	public NodeRef getNode(final int n) {
+		return nodes[n];
+	}
+
+	public boolean isRoot(final int n) {
+		return n == root;
+	}
+
+	public boolean isExternal(final int n) {
+		return childOffsets[n] == childOffsets[n + 1];
+	}
+
+	public int getParent(final int n) {
+		return parents[n];
+	}
+
+	public int getChildCount(final int n) {
+		return childOffsets[n + 1] - childOffsets[n];
+	}
+
+	public int getChild(final int n, final int i) {
+		return children[childOffsets[n] + i];
+	}
+
+	public double getHeight(final int n) {
+		return heights[n];
+	}
+
+	/**
+	 * @param i position in a preorder traversal
+	 * @return the node number visited at that position
+	 */
+	public int getPreorderNode(final int i) {
+		return preorder[i];
+	}
+
+	/**
+	 * @param n node number
+	 * @param height a height
+	 * @return whether the lineage above the node was alive at the height
+	 */
+	public boolean isContemporaneous(final int n, final double height) {
+		return height >= heights[n] && (n == root || heights[parents[n]] > height);
+	}
+
+	/**
+	 * Collects the lineages alive at any time between two heights, in preorder,
+	 * as {@link CophylogenyModel.Utils#getLineagesInTimeRange(Tree, double, double)} does.
+	 * @param startHeight the older height
+	 * @param stopHeight the younger height
+	 * @param buffer receives the node numbers; must hold {@link #getNodeCount()} entries
+	 * @return the number of lineages collected
+	 */
+	public int getLineagesInTimeRange(final double startHeight, final double stopHeight, final int[] buffer) {
+		int count = 0;
+		for (int i = 0; i < preorder.length; ++i) {
+			final int n = preorder[i];
+			if (startHeight >= heights[n] && (n == root || heights[parents[n]] > stopHeight))
+				buffer[count++] = n;
+		}
+		return count;
+	}
+
+	/**
+	 * @param n node number
+	 * @return the number of generations separating the node from the root
+	 */
+	public int getDepth(final int n) {
+		return depths[n];
+	}
+
+	/**
+	 * @param ancestor node number
+	 * @param descendant node number
+	 * @return whether ancestor is a proper ancestor of descendant
+	 */
+	public boolean isAncestor(final int ancestor, final int descendant) {
+		return entries[ancestor] < entries[descendant] && exits[descendant] < exits[ancestor];
+	}
+
+	/**
+	 * Classifies relation with respect to self, as {@link CophylogenyModel.Utils#determineRelationship(Tree, NodeRef, NodeRef)} does.
+	 * @param self node number
+	 * @param relation node number
+	 * @return the relationship
+	 */
+	public Relationship getRelationship(final int self, final int relation) {
+		if (self == relation)
+			return Relationship.SELF;
+		if (self != root && relation != root && parents[self] == parents[relation])
+			return Relationship.SISTER;
+		if (isAncestor(self, relation))
+			return Relationship.DESCENDANT;
+		if (isAncestor(relation, self))
+			return Relationship.ANCESTOR;
+		return Relationship.COUSIN;
+	}
+
+	public Relationship getRelationship(final NodeRef self, final NodeRef relation) {
+		if (self == null || relation == null)
+			throw new IllegalArgumentException();
+		return getRelationship(self.getNumber(), relation.getNumber());
+	}
+
+	/**
+	 * Finds the lineage from which a node descends at a height: the highest of the node and its
+	 * ancestors whose parent is older than the height, or the root. Takes a binary search
+	 * up the ancestry, where {@link CophylogenyModel.Utils#lostLineagesToTime(Tree, NodeRef, double)}
+	 * climbs a generation at a time.
+	 * @param n node number
+	 * @param height a height
+	 * @return node number of the ancestor
+	 */
+	public int getAncestorAtHeight(final int n, final double height) {
+		final int nodeCount = nodes.length;
+		int ancestor = n;
+		for (int k = jumpLevels - 1; k >= 0; --k) {
+			final int jump = jumps[k * nodeCount + ancestor];
+			if (jump != NO_NODE && heights[jump] <= height)
+				ancestor = jump;
+		}
+		return ancestor;
+	}
+
+	/**
+	 * Writes the lineages lost between an ancestor and its descendant into a buffer, in the order
+	 * of {@link #getLostLineages(int, int)}.
+	 * @param ancestor node number
+	 * @param descendant node number
+	 * @param buffer receives the node numbers
+	 * @param offset where in the buffer to begin
+	 * @return the offset just past the last lineage written
+	 */
+	public int getLostLineages(final int ancestor, final int descendant, final int[] buffer, int offset) {
+		buffer[offset++] = descendant;
+		for (int n = parents[descendant]; n != ancestor; n = parents[n])
+			offset = appendSisters(n, buffer, offset);
+		return offset;
+	}
+
+	/**
+	 * Writes the lineages lost by a node's lineage up to a height, inclusive, into a buffer: the
+	 * sisters of the node and of each ancestor below {@link #getAncestorAtHeight(int, double)},
+	 * from the bottom up, as {@link CophylogenyModel.Utils#lostLineagesToTime(Tree, NodeRef, double)} lists them.
+	 * @param n node number
+	 * @param height a height
+	 * @param buffer receives the node numbers
+	 * @param offset where in the buffer to begin
+	 * @return the offset just past the last lineage written
+	 */
+	public int getLostLineagesToHeight(final int n, final double height, final int[] buffer, int offset) {
+		final int ancestor = getAncestorAtHeight(n, height);
+		for (int m = n; m != ancestor; m = parents[m])
+			offset = appendSisters(m, buffer, offset);
+		return offset;
+	}
+
+	private int appendSisters(final int n, final int[] buffer, int offset) {
+		final int p = parents[n];
+		for (int j = childOffsets[p]; j < childOffsets[p + 1]; ++j) {
+			if (children[j] != n)
+				buffer[offset++] = children[j];
+		}
+		return offset;
+	}
+
+	/**
+	 * The lineages lost between an ancestor and its descendant: the descendant itself
+	 * followed by the sisters of each node strictly between them, from the bottom up.
+	 * @param ancestor node number
+	 * @param descendant node number
+	 * @return the lost lineages
+	 */
+	public NodeRef[] getLostLineages(final int ancestor, final int descendant) {
+
+		int count = 1;
+		for (int n = parents[descendant]; n != ancestor; n = parents[n])
+			count += getChildCount(parents[n]) - 1;
+
+		final NodeRef[] lostLineages = new NodeRef[count];
+		int i = 0;
+		lostLineages[i++] = nodes[descendant];
+		for (int n = parents[descendant]; n != ancestor; n = parents[n]) {
+			final int p = parents[n];
+			for (int j = childOffsets[p]; j < childOffsets[p + 1]; ++j) {
+				if (children[j] != n)
+					lostLineages[i++] = nodes[children[j]];
+			}
+		}
+		return lostLineages;
+
+	}
+
+}
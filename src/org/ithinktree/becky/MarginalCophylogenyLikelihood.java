@@ -0,0 +1,792 @@
+/**
+ * MarginalCophylogenyLikelihood.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+import java.util.Arrays;
+
+import org.ithinktree.becky.SimpleCophylogenyModel.EventType;
+import org.ithinktree.becky.xml.MarginalCophylogenyLikelihoodParser;
+
+import dr.evolution.tree.BranchRates;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeTrait;
+import dr.evolution.tree.TreeTrait.DefaultBehavior;
+import dr.evolution.tree.TreeTraitProvider;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.model.Variable.ChangeType;
+import dr.math.MathUtils;
+import dr.math.MersenneTwisterFast;
+
+/**
+ * The likelihood of a symbiont tree within a host tree, summed over the hosts of its
+ * internal nodes, so that only the trees and rates need be sampled.
+ * <p/>
+ * The hosts of the tips are fixed. In postorder, each node keeps the likelihood of its clade
+ * for every host lineage contemporaneous with it and every event the model can reconstruct
+ * there, which is all its parent's likelihood depends on. These come from the node
+ * likelihoods of {@link SimpleCophylogenyModel}, evaluated once for each combination of
+ * hosts with the events of the children weighted as in their sums, summed relative to the
+ * largest of them and rescaled at every node against underflow. Nodes whose clades are unchanged keep theirs, in buffers that are
+ * swapped rather than copied on store.
+ * <p/>
+ * The hosts of the internal nodes are reported through the reconstruction trait by a
+ * stochastic traceback, which draws them from their joint posterior given the current
+ * state in preorder, revisiting one row of the sums at each node and then the events of
+ * the children drawn there. A draw is made only when the trait is read, such as by a tree
+ * logger, and kept until the state changes; it has a generator of its own, so that reading
+ * the trait does not change the course of the chain.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+@SuppressWarnings("serial")
+public class MarginalCophylogenyLikelihood extends AbstractModelLikelihood implements TreeTraitProvider {
+
+	private static final EventType[] EVENT_TYPES = EventType.values();
+	private static final int EVENT_TYPE_COUNT = EVENT_TYPES.length;
+
+	final private Tree hostTree;
+	final private MutableTree symbiontTree;
+	final private SimpleCophylogenyModel cophylogenyModel;
+	final private BranchRates branchRates;
+	final private Parameter originHeight;
+	final private CophylogenyModel.EvaluationContext context;
+	final private TreeTraitProvider.Helper treeTraits = new Helper();
+
+	public MarginalCophylogenyLikelihood(final Tree hostTree, final MutableTree symbiontTree, final SimpleCophylogenyModel cophylogenyModel, final BranchRates branchRates, final Parameter originHeight, final String reconstructionTagName) {
+
+		super(MarginalCophylogenyLikelihoodParser.MARGINAL_COPHYLOGENY_LIKELIHOOD);
+
+		this.hostTree = hostTree;
+		this.symbiontTree = symbiontTree;
+		this.cophylogenyModel = cophylogenyModel;
+		this.branchRates = branchRates;
+		this.originHeight = originHeight;
+
+		if (symbiontTree instanceof Model) {
+			addModel((Model) symbiontTree);
+		}
+		if (hostTree instanceof Model) {
+			addModel((Model) hostTree);
+		}
+		addModel(cophylogenyModel);
+		if (branchRates instanceof Model) {
+			addModel((Model) branchRates);
+		}
+
+		addVariable(originHeight);
+		originHeight.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
+
+		final int n = symbiontTree.getNodeCount();
+		final int hostNodeCount = hostTree.getNodeCount();
+		tipHosts = new int[n];
+		storedTipHosts = new int[n];
+		Arrays.fill(tipHosts, -1);
+		for (int b = 0; b < 2; ++b) {
+			candidates[b] = new int[n][];
+			candidateCounts[b] = new int[n];
+			weights[b] = new double[n][];
+			logScales[b] = new double[n];
+			for (int i = 0; i < n; ++i) {
+				candidates[b][i] = new int[hostNodeCount];
+				weights[b][i] = new double[hostNodeCount * EVENT_TYPE_COUNT];
+			}
+		}
+		for (int c = 0; c < 2; ++c) {
+			childPartials[c] = new double[hostNodeCount * EVENT_TYPE_COUNT];
+			childTotals[c] = new double[hostNodeCount];
+		}
+		currentBuffers = new int[n];
+		storedBuffers = new int[n];
+		updateNode = new boolean[n];
+		storedUpdateNode = new boolean[n];
+		Arrays.fill(updateNode, true);
+		postorder = new int[n];
+		children = new int[n][2];
+		nodeHeights = new double[n];
+		storedNodeHeights = new double[n];
+		branchLengths = new double[n];
+		storedBranchLengths = new double[n];
+		nodeRates = new double[n];
+		storedNodeRates = new double[n];
+		updateSnapshot = new boolean[n];
+		storedUpdateSnapshot = new boolean[n];
+		Arrays.fill(updateSnapshot, true);
+		context = cophylogenyModel.createContext(symbiontTree);
+		sampledCandidates = new int[n];
+		sampledEvents = new int[n];
+		// Seeded once, so that reading the trait leaves the draws of the chain alone
+		random = new MersenneTwisterFast(MathUtils.nextLong());
+
+		treeTraits.addTrait(reconstructionTagName, new ReconstructionTrait(reconstructionTagName));
+
+	}
+
+	/**
+	 * The host of each node, as drawn by the traceback.
+	 */
+	private final class ReconstructionTrait extends DefaultBehavior implements TreeTrait<NodeRef> {
+
+		private final String name;
+
+		private ReconstructionTrait(final String name) {
+			this.name = name;
+		}
+
+		public String getTraitName() {
+			return name;
+		}
+
+		public Intent getIntent() {
+			return Intent.NODE;
+		}
+
+		@SuppressWarnings("rawtypes")
+		public Class getTraitClass() {
+			return NodeRef.class;
+		}
+
+		public NodeRef getTrait(final Tree tree, final NodeRef node) {
+			return getSampledHost(node);
+		}
+
+		public String getTraitString(final Tree tree, final NodeRef node) {
+			final NodeRef host = getTrait(tree, node);
+			return Integer.toString(host == null ? -1 : host.getNumber());
+		}
+
+	}
+
+	/**
+	 * Fixes the host of a tip of the symbiont tree.
+	 * @param tip the tip
+	 * @param host its host
+	 */
+	public void setTipHost(final NodeRef tip, final NodeRef host) {
+		if (!symbiontTree.isExternal(tip))
+			throw new IllegalArgumentException("Only the hosts of tips are fixed.");
+		tipHosts[tip.getNumber()] = host.getNumber();
+		updateNodeAndAncestors(tip.getNumber());
+		likelihoodKnown = false;
+		fireModelChanged();
+	}
+
+	@Override
+	public Model getModel() {
+		return this;
+	}
+
+	@Override
+	public double getLogLikelihood() {
+		if (!likelihoodKnown) {
+			logLikelihood = calculateLogLikelihood();
+			likelihoodKnown = true;
+			reconstructionKnown = false;
+		}
+		return logLikelihood;
+	}
+
+	private double calculateLogLikelihood() {
+
+		updateSnapshots();
+		if (!topologyKnown) updateTopology();
+
+		final HostTreeIndex hostTreeIndex = HostTreeIndex.forTree(hostTree);
+		for (int k = 0; k < postorder.length; ++k) {
+			final int i = postorder[k];
+			if (updateNode[i]) {
+				if (children[i][0] == -1)
+					updateTip(i);
+				else
+					updateInternalNode(hostTreeIndex, i);
+				updateNode[i] = false;
+			}
+		}
+
+		// Sum over the hosts and events at the root, accounting for the origin
+		final NodeRef root = symbiontTree.getRoot();
+		final int r = root.getNumber();
+		final int b = currentBuffers[r];
+		final int[] rootCandidates = candidates[b][r];
+		final double[] rootWeights = weights[b][r];
+		final double origin = originHeight.getValue(0);
+		double sum = 0.0;
+		double shift = Double.NEGATIVE_INFINITY;
+		for (int a = 0; a < candidateCounts[b][r]; ++a) {
+			final NodeRef rootHost = hostTreeIndex.getNode(rootCandidates[a]);
+			for (int e = 0; e < EVENT_TYPE_COUNT; ++e) {
+				final double weight = rootWeights[a * EVENT_TYPE_COUNT + e];
+				if (weight == 0.0) continue;
+				cophylogenyModel.setReconstructedEvent(context, root, EVENT_TYPES[e]);
+				final double logL = cophylogenyModel.calculateOriginLogLikelihood(context, symbiontTree, origin, root, hostTree, hostTree.getRoot(), rootHost, branchRates);
+				if (logL == Double.NEGATIVE_INFINITY) continue;
+				if (logL > shift) {
+					sum *= Math.exp(shift - logL);
+					shift = logL;
+				}
+				sum += weight * Math.exp(logL - shift);
+			}
+		}
+		return Math.log(sum) + shift + logScales[b][r];
+
+	}
+
+	/**
+	 * Reads the postorder of the nodes and the children of the internal ones from the
+	 * symbiont tree, which is only needed after its topology changed.
+	 */
+	private void updateTopology() {
+		int k = 0;
+		// Walk the tree with an explicit stack, pushing the second child under the first
+		// so that each node is emitted after both of its subtrees
+		final int[] stack = new int[postorder.length];
+		final boolean[] expanded = new boolean[postorder.length];
+		int top = 0;
+		stack[0] = symbiontTree.getRoot().getNumber();
+		while (top >= 0) {
+			final int i = stack[top];
+			final NodeRef node = symbiontTree.getNode(i);
+			if (symbiontTree.isExternal(node)) {
+				children[i][0] = children[i][1] = -1;
+				postorder[k++] = i;
+				--top;
+			} else if (expanded[i]) {
+				postorder[k++] = i;
+				--top;
+			} else {
+				expanded[i] = true;
+				children[i][0] = symbiontTree.getChild(node, 0).getNumber();
+				children[i][1] = symbiontTree.getChild(node, 1).getNumber();
+				stack[++top] = children[i][1];
+				stack[++top] = children[i][0];
+			}
+		}
+		topologyKnown = true;
+	}
+
+	/**
+	 * Reads the heights, branch lengths and branch rates of the nodes flagged since the
+	 * last evaluation, so that the model need not go through the trees and rate model.
+	 */
+	private void updateSnapshots() {
+		if (!anySnapshotUpdated) return;
+		for (int i = 0; i < updateSnapshot.length; ++i) {
+			if (updateSnapshot[i]) {
+				final NodeRef node = symbiontTree.getNode(i);
+				nodeHeights[i] = symbiontTree.getNodeHeight(node);
+				if (symbiontTree.isRoot(node)) {
+					branchLengths[i] = 0.0;
+					nodeRates[i] = Double.NaN;
+				} else {
+					branchLengths[i] = symbiontTree.getBranchLength(node);
+					nodeRates[i] = branchRates.getBranchRate(symbiontTree, node);
+				}
+				updateSnapshot[i] = false;
+			}
+		}
+		anySnapshotUpdated = false;
+	}
+
+	private void updateSnapshotAndChildren(final NodeRef node) {
+		updateSnapshot[node.getNumber()] = true;
+		for (int i = 0; i < symbiontTree.getChildCount(node); ++i)
+			updateSnapshot[symbiontTree.getChild(node, i).getNumber()] = true;
+		anySnapshotUpdated = true;
+	}
+
+	private void updateAllSnapshots() {
+		Arrays.fill(updateSnapshot, true);
+		anySnapshotUpdated = true;
+	}
+
+	/**
+	 * Readies the buffer of a node to be written, keeping the stored one intact.
+	 * @return the buffer
+	 */
+	private int flipBuffer(final int i) {
+		if (currentBuffers[i] == storedBuffers[i])
+			currentBuffers[i] = 1 - currentBuffers[i];
+		return currentBuffers[i];
+	}
+
+	private void updateTip(final int i) {
+		if (tipHosts[i] == -1)
+			throw new IllegalStateException("The host of every tip must be fixed.");
+		final int b = flipBuffer(i);
+		candidates[b][i][0] = tipHosts[i];
+		candidateCounts[b][i] = 1;
+		Arrays.fill(weights[b][i], 0, EVENT_TYPE_COUNT, 0.0);
+		weights[b][i][EventType.NO_EVENT.ordinal()] = 1.0;
+		logScales[b][i] = 0.0;
+		updateNodeAndAncestors(i);
+	}
+
+	private void updateInternalNode(final HostTreeIndex hostTreeIndex, final int i) {
+
+		final NodeRef self = symbiontTree.getNode(i);
+		final int j = children[i][0];
+		final int k = children[i][1];
+		final NodeRef child1 = symbiontTree.getNode(j);
+		final NodeRef child2 = symbiontTree.getNode(k);
+		final int b1 = currentBuffers[j];
+		final int b2 = currentBuffers[k];
+		final int[] child1Candidates = candidates[b1][j];
+		final int[] child2Candidates = candidates[b2][k];
+		final double[] child1Weights = weights[b1][j];
+		final double[] child2Weights = weights[b2][k];
+
+		final int b = flipBuffer(i);
+		final int[] selfCandidates = candidates[b][i];
+		final double[] selfWeights = weights[b][i];
+
+		// The host lineages contemporaneous with the node
+		final HostEpochIndex epochs = hostTreeIndex.getEpochs();
+		final int epoch = epochs.getEpoch(nodeHeights[i]);
+		final int count = epochs.getLineageCount(epoch);
+		if (count > 0)
+			System.arraycopy(epochs.getLineages(), epochs.getLineagesStart(epoch), selfCandidates, 0, count);
+		candidateCounts[b][i] = count;
+		Arrays.fill(selfWeights, 0, count * EVENT_TYPE_COUNT, 0.0);
+
+		// The likelihood of the node is affine in the partials of each child, so each pair of
+		// child hosts takes one evaluation, with the events of each child weighted as in its sum
+		final int count1 = candidateCounts[b1][j];
+		final int count2 = candidateCounts[b2][k];
+		final double[] child1Totals = normalize(child1Weights, count1, childPartials[0], childTotals[0]);
+		final double[] child2Totals = normalize(child2Weights, count2, childPartials[1], childTotals[1]);
+
+		double max = 0.0;
+		// The node likelihoods may underflow, so they are summed relative to the largest so far
+		double shift = Double.NEGATIVE_INFINITY;
+		for (int a = 0; a < count; ++a) {
+			final NodeRef selfHost = hostTreeIndex.getNode(selfCandidates[a]);
+			for (int a1 = 0; a1 < count1; ++a1) {
+				if (child1Totals[a1] == 0.0) continue;
+				final NodeRef child1Host = hostTreeIndex.getNode(child1Candidates[a1]);
+				cophylogenyModel.setReconstructedPartials(context, child1, childPartials[0], a1 * EVENT_TYPE_COUNT);
+				for (int a2 = 0; a2 < count2; ++a2) {
+					if (child2Totals[a2] == 0.0) continue;
+					final NodeRef child2Host = hostTreeIndex.getNode(child2Candidates[a2]);
+					cophylogenyModel.setReconstructedPartials(context, child2, childPartials[1], a2 * EVENT_TYPE_COUNT);
+					final double logL = cophylogenyModel.calculateNodeLogLikelihood(context, symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates, nodeHeights, branchLengths, nodeRates);
+					if (logL == Double.NEGATIVE_INFINITY) continue;
+					if (logL > shift) {
+						final double f = Math.exp(shift - logL);
+						for (int w = 0; w < count * EVENT_TYPE_COUNT; ++w)
+							selfWeights[w] *= f;
+						max *= f;
+						shift = logL;
+					}
+					final double l = Math.exp(logL - shift) * child1Totals[a1] * child2Totals[a2];
+					// The node's events are alternatives, weighted by their partial likelihoods
+					for (int events = cophylogenyModel.getReconstructedEvents(context, self); events != 0; events &= events - 1) {
+						final int e = Integer.numberOfTrailingZeros(events);
+						final int w = a * EVENT_TYPE_COUNT + e;
+						selfWeights[w] += l * cophylogenyModel.getReconstructedPartial(context, self, EVENT_TYPES[e]);
+						if (selfWeights[w] > max) max = selfWeights[w];
+					}
+				}
+			}
+		}
+
+		double logScale = logScales[b1][j] + logScales[b2][k];
+		if (max > 0.0) {
+			for (int w = 0; w < count * EVENT_TYPE_COUNT; ++w)
+				selfWeights[w] /= max;
+			logScale += Math.log(max) + shift;
+		} else {
+			logScale = Double.NEGATIVE_INFINITY;
+		}
+		logScales[b][i] = logScale;
+		updateNodeAndAncestors(i);
+
+	}
+
+	/**
+	 * Scales the weights of the events on each host of a child to sum to one.
+	 * @param count the number of hosts
+	 * @return the totals they were divided by, by host
+	 */
+	private static double[] normalize(final double[] weights, final int count, final double[] partials, final double[] totals) {
+		for (int a = 0; a < count; ++a) {
+			double total = 0.0;
+			for (int e = 0; e < EVENT_TYPE_COUNT; ++e)
+				total += weights[a * EVENT_TYPE_COUNT + e];
+			totals[a] = total;
+			for (int e = 0; e < EVENT_TYPE_COUNT; ++e)
+				partials[a * EVENT_TYPE_COUNT + e] = total == 0.0 ? 0.0 : weights[a * EVENT_TYPE_COUNT + e] / total;
+		}
+		return totals;
+	}
+
+	/**
+	 * @param node a node of the symbiont tree
+	 * @return its host in a draw from the posterior of the hosts given the current state,
+	 *         or null if the state is impossible
+	 */
+	public NodeRef getSampledHost(final NodeRef node) {
+		if (getLogLikelihood() == Double.NEGATIVE_INFINITY)
+			return null;
+		if (!reconstructionKnown) {
+			sampleReconstruction();
+			reconstructionKnown = true;
+		}
+		final int i = node.getNumber();
+		final int a = sampledCandidates[i];
+		return a == -1 ? null : HostTreeIndex.forTree(hostTree).getNode(candidates[currentBuffers[i]][i][a]);
+	}
+
+	private void sampleReconstruction() {
+
+		Arrays.fill(sampledCandidates, -1);
+		// The buffers are current, but a restore may have left the topology behind
+		updateSnapshots();
+		if (!topologyKnown) updateTopology();
+		final HostTreeIndex hostTreeIndex = HostTreeIndex.forTree(hostTree);
+
+		// The root is drawn as it is summed
+		final NodeRef root = symbiontTree.getRoot();
+		final int r = root.getNumber();
+		final int b = currentBuffers[r];
+		final int rootCount = candidateCounts[b][r] * EVENT_TYPE_COUNT;
+		final double[] probabilities = getProbabilities(rootCount);
+		final double origin = originHeight.getValue(0);
+		double total = 0.0;
+		double shift = Double.NEGATIVE_INFINITY;
+		for (int w = 0; w < rootCount; ++w) {
+			probabilities[w] = 0.0;
+			final double weight = weights[b][r][w];
+			if (weight == 0.0) continue;
+			cophylogenyModel.setReconstructedEvent(context, root, EVENT_TYPES[w % EVENT_TYPE_COUNT]);
+			final double logL = cophylogenyModel.calculateOriginLogLikelihood(context, symbiontTree, origin, root, hostTree, hostTree.getRoot(), hostTreeIndex.getNode(candidates[b][r][w / EVENT_TYPE_COUNT]), branchRates);
+			if (logL == Double.NEGATIVE_INFINITY) continue;
+			if (logL > shift) {
+				total = rescale(probabilities, w, total, Math.exp(shift - logL));
+				shift = logL;
+			}
+			probabilities[w] = weight * Math.exp(logL - shift);
+			total += probabilities[w];
+		}
+		final int w = draw(probabilities, rootCount, total);
+		if (w == -1) return;
+		sampledCandidates[r] = w / EVENT_TYPE_COUNT;
+		sampledEvents[r] = w % EVENT_TYPE_COUNT;
+
+		// Parents come before their children in reverse postorder
+		for (int k = postorder.length - 1; k >= 0; --k) {
+			final int i = postorder[k];
+			if (sampledCandidates[i] != -1 && children[i][0] != -1)
+				sampleChildren(hostTreeIndex, i);
+		}
+
+	}
+
+	/**
+	 * Draws the hosts and events of the children of a node given its own, in proportion
+	 * to their terms in its sum: first their hosts, from the terms of the node likelihood
+	 * that sum over their events, then the event of each child in turn.
+	 */
+	private void sampleChildren(final HostTreeIndex hostTreeIndex, final int i) {
+
+		final NodeRef self = symbiontTree.getNode(i);
+		final int j = children[i][0];
+		final int k = children[i][1];
+		final NodeRef child1 = symbiontTree.getNode(j);
+		final NodeRef child2 = symbiontTree.getNode(k);
+		final int b = currentBuffers[i];
+		final int b1 = currentBuffers[j];
+		final int b2 = currentBuffers[k];
+		final int count1 = candidateCounts[b1][j];
+		final int count2 = candidateCounts[b2][k];
+		final double[] child1Totals = normalize(weights[b1][j], count1, childPartials[0], childTotals[0]);
+		final double[] child2Totals = normalize(weights[b2][k], count2, childPartials[1], childTotals[1]);
+		final NodeRef selfHost = hostTreeIndex.getNode(candidates[b][i][sampledCandidates[i]]);
+		final EventType event = EVENT_TYPES[sampledEvents[i]];
+
+		// The hosts, as the node's sum was taken
+		final double[] probabilities = getProbabilities(count1 * count2);
+		double total = 0.0;
+		double shift = Double.NEGATIVE_INFINITY;
+		for (int a1 = 0; a1 < count1; ++a1) {
+			if (child1Totals[a1] == 0.0) {
+				Arrays.fill(probabilities, a1 * count2, (a1 + 1) * count2, 0.0);
+				continue;
+			}
+			final NodeRef child1Host = hostTreeIndex.getNode(candidates[b1][j][a1]);
+			cophylogenyModel.setReconstructedPartials(context, child1, childPartials[0], a1 * EVENT_TYPE_COUNT);
+			for (int a2 = 0; a2 < count2; ++a2) {
+				final int w = a1 * count2 + a2;
+				probabilities[w] = 0.0;
+				if (child2Totals[a2] == 0.0) continue;
+				final NodeRef child2Host = hostTreeIndex.getNode(candidates[b2][k][a2]);
+				cophylogenyModel.setReconstructedPartials(context, child2, childPartials[1], a2 * EVENT_TYPE_COUNT);
+				final double logL = cophylogenyModel.calculateNodeLogLikelihood(context, symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates, nodeHeights, branchLengths, nodeRates);
+				if (logL == Double.NEGATIVE_INFINITY || (cophylogenyModel.getReconstructedEvents(context, self) & (1 << event.ordinal())) == 0) continue;
+				if (logL > shift) {
+					total = rescale(probabilities, w, total, Math.exp(shift - logL));
+					shift = logL;
+				}
+				probabilities[w] = Math.exp(logL - shift) * child1Totals[a1] * child2Totals[a2] * cophylogenyModel.getReconstructedPartial(context, self, event);
+				total += probabilities[w];
+			}
+		}
+		final int w = draw(probabilities, count1 * count2, total);
+		if (w == -1) return;
+		final int a1 = w / count2;
+		final int a2 = w % count2;
+		final NodeRef child1Host = hostTreeIndex.getNode(candidates[b1][j][a1]);
+		final NodeRef child2Host = hostTreeIndex.getNode(candidates[b2][k][a2]);
+
+		// The event of the first child, with those of the second still weighted together
+		cophylogenyModel.setReconstructedPartials(context, child2, childPartials[1], a2 * EVENT_TYPE_COUNT);
+		final int e1 = sampleEvent(self, child1, child2, selfHost, child1Host, child2Host, child1, weights[b1][j], a1);
+		if (e1 == -1) return;
+		// ...and then the event of the second
+		cophylogenyModel.setReconstructedEvent(context, child1, EVENT_TYPES[e1]);
+		final int e2 = sampleEvent(self, child1, child2, selfHost, child1Host, child2Host, child2, weights[b2][k], a2);
+		if (e2 == -1) return;
+
+		sampledCandidates[j] = a1;
+		sampledEvents[j] = e1;
+		sampledCandidates[k] = a2;
+		sampledEvents[k] = e2;
+
+	}
+
+	/**
+	 * Draws the event of one child of a node given the hosts, in proportion to its weight
+	 * and the node likelihood with that event alone.
+	 * @param child the child whose event is drawn; the other's events are as set
+	 * @param childWeights its weights
+	 * @param a the index of its host
+	 * @return the event, or -1 if none is possible
+	 */
+	private int sampleEvent(final NodeRef self, final NodeRef child1, final NodeRef child2,
+			final NodeRef selfHost, final NodeRef child1Host, final NodeRef child2Host,
+			final NodeRef child, final double[] childWeights, final int a) {
+		final double[] probabilities = getProbabilities(EVENT_TYPE_COUNT);
+		double total = 0.0;
+		double shift = Double.NEGATIVE_INFINITY;
+		for (int e = 0; e < EVENT_TYPE_COUNT; ++e) {
+			probabilities[e] = 0.0;
+			final double weight = childWeights[a * EVENT_TYPE_COUNT + e];
+			if (weight == 0.0) continue;
+			cophylogenyModel.setReconstructedEvent(context, child, EVENT_TYPES[e]);
+			final double logL = cophylogenyModel.calculateNodeLogLikelihood(context, symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates, nodeHeights, branchLengths, nodeRates);
+			if (logL == Double.NEGATIVE_INFINITY) continue;
+			if (logL > shift) {
+				total = rescale(probabilities, e, total, Math.exp(shift - logL));
+				shift = logL;
+			}
+			probabilities[e] = Math.exp(logL - shift) * weight;
+			total += probabilities[e];
+		}
+		return draw(probabilities, EVENT_TYPE_COUNT, total);
+	}
+
+	/**
+	 * Scales the probabilities drawn so far, as the largest likelihood they are relative to grows.
+	 * @return the scaled total
+	 */
+	private static double rescale(final double[] probabilities, final int count, final double total, final double factor) {
+		for (int w = 0; w < count; ++w)
+			probabilities[w] *= factor;
+		return total * factor;
+	}
+
+	private double[] getProbabilities(final int size) {
+		if (probabilities.length < size)
+			probabilities = new double[size];
+		return probabilities;
+	}
+
+	/**
+	 * @return an index drawn in proportion to the probabilities, or -1 if they are all zero
+	 */
+	private int draw(final double[] probabilities, final int count, final double total) {
+		if (!(total > 0.0))
+			return -1;
+		double u = random.nextDouble() * total;
+		int last = -1;
+		for (int w = 0; w < count; ++w) {
+			if (probabilities[w] == 0.0) continue;
+			u -= probabilities[w];
+			if (u < 0.0)
+				return w;
+			last = w;
+		}
+		// Rounding left a sliver at the end
+		return last;
+	}
+
+	private void updateNodeAndAncestors(final int i) {
+		for (NodeRef n = symbiontTree.getNode(i); n != null; n = symbiontTree.getParent(n))
+			updateNode[n.getNumber()] = true;
+	}
+
+	private void updateAllNodes() {
+		likelihoodKnown = false;
+		Arrays.fill(updateNode, true);
+	}
+
+	@Override
+	public void makeDirty() {
+		updateAllNodes();
+		updateAllSnapshots();
+		topologyKnown = false;
+	}
+
+	@Override
+	protected void handleModelChangedEvent(Model model, Object object, int index) {
+		if (model == symbiontTree && object instanceof TreeModel.TreeChangedEvent) {
+			final TreeModel.TreeChangedEvent event = (TreeModel.TreeChangedEvent) object;
+			if (event.isNodeChanged() && event.isNodeParameterChanged()) {
+				// A height enters the node itself and the branches of its children
+				likelihoodKnown = false;
+				updateNodeAndAncestors(event.getNode().getNumber());
+				updateSnapshotAndChildren(event.getNode());
+			} else {
+				updateAllNodes();
+				updateAllSnapshots();
+				topologyKnown = false;
+				topologyChanged = true;
+			}
+		} else if (model == hostTree && object instanceof EmpiricalHostTreeModel.TreeSwappedEvent) {
+			// The tips keep their hosts, by taxon, on the new tree
+			final EmpiricalHostTreeModel.TreeSwappedEvent event = (EmpiricalHostTreeModel.TreeSwappedEvent) object;
+			for (int i = 0; i < tipHosts.length; ++i) {
+				if (tipHosts[i] != -1)
+					tipHosts[i] = event.getNode(tipHosts[i]);
+			}
+			updateAllNodes();
+		} else if (model == branchRates && index >= 0 && index < updateNode.length) {
+			// A rate enters the node itself and its parent
+			likelihoodKnown = false;
+			updateNodeAndAncestors(index);
+			updateSnapshot[index] = true;
+			anySnapshotUpdated = true;
+		} else if (model == hostTree) {
+			updateAllNodes();
+		} else {
+			updateAllNodes();
+			updateAllSnapshots();
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected void handleVariableChangedEvent(Variable variable, int index, ChangeType type) {
+		// Only the origin height is registered here, which is accounted for on every evaluation
+		likelihoodKnown = false;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public TreeTrait[] getTreeTraits() {
+		return treeTraits.getTreeTraits();
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public TreeTrait getTreeTrait(String key) {
+		return treeTraits.getTreeTrait(key);
+	}
+
+	@Override
+	protected void storeState() {
+		storedLikelihoodKnown = likelihoodKnown;
+		storedLogLikelihood = logLikelihood;
+		System.arraycopy(currentBuffers, 0, storedBuffers, 0, currentBuffers.length);
+		System.arraycopy(updateNode, 0, storedUpdateNode, 0, updateNode.length);
+		System.arraycopy(tipHosts, 0, storedTipHosts, 0, tipHosts.length);
+		System.arraycopy(nodeHeights, 0, storedNodeHeights, 0, nodeHeights.length);
+		System.arraycopy(branchLengths, 0, storedBranchLengths, 0, branchLengths.length);
+		System.arraycopy(nodeRates, 0, storedNodeRates, 0, nodeRates.length);
+		System.arraycopy(updateSnapshot, 0, storedUpdateSnapshot, 0, updateSnapshot.length);
+		storedAnySnapshotUpdated = anySnapshotUpdated;
+		topologyChanged = false;
+	}
+
+	@Override
+	protected void restoreState() {
+		likelihoodKnown = storedLikelihoodKnown;
+		logLikelihood = storedLogLikelihood;
+		System.arraycopy(storedBuffers, 0, currentBuffers, 0, storedBuffers.length);
+		System.arraycopy(storedUpdateNode, 0, updateNode, 0, storedUpdateNode.length);
+		System.arraycopy(storedTipHosts, 0, tipHosts, 0, storedTipHosts.length);
+		System.arraycopy(storedNodeHeights, 0, nodeHeights, 0, storedNodeHeights.length);
+		System.arraycopy(storedBranchLengths, 0, branchLengths, 0, storedBranchLengths.length);
+		System.arraycopy(storedNodeRates, 0, nodeRates, 0, storedNodeRates.length);
+		System.arraycopy(storedUpdateSnapshot, 0, updateSnapshot, 0, storedUpdateSnapshot.length);
+		anySnapshotUpdated = storedAnySnapshotUpdated;
+		// The symbiont tree restores its topology without an event
+		if (topologyChanged) {
+			topologyKnown = false;
+			topologyChanged = false;
+		}
+		reconstructionKnown = false;
+	}
+
+	@Override
+	protected void acceptState() {} // Nothing to do
+
+	// Stored since swapping an empirical host tree renumbers them
+	private final int[] tipHosts;
+	private final int[] storedTipHosts;
+
+	// Two buffers per node: the host lineages it may be on, and the scaled likelihood of its
+	// clade for each of them and each event, by lineage and then event
+	private final int[][][] candidates = new int[2][][];
+	private final int[][] candidateCounts = new int[2][];
+	private final double[][][] weights = new double[2][][];
+	private final double[][] logScales = new double[2][];
+	// The weights of the children of the node being calculated, normalized by host
+	private final double[][] childPartials = new double[2][];
+	private final double[][] childTotals = new double[2][];
+	private final int[] currentBuffers;
+	private final int[] storedBuffers;
+	private final boolean[] updateNode;
+	private final boolean[] storedUpdateNode;
+
+	// The nodes in postorder, and the children of the internal ones (-1 for tips)
+	private final int[] postorder;
+	private final int[][] children;
+	private boolean topologyKnown = false;
+	private boolean topologyChanged = false;
+
+	// Snapshots of the symbiont tree and rate model, by node number
+	private final double[] nodeHeights;
+	private final double[] storedNodeHeights;
+	private final double[] branchLengths;
+	private final double[] storedBranchLengths;
+	private final double[] nodeRates;
+	private final double[] storedNodeRates;
+	private final boolean[] updateSnapshot;
+	private final boolean[] storedUpdateSnapshot;
+	private boolean anySnapshotUpdated = true;
+	private boolean storedAnySnapshotUpdated = true;
+
+	// The hosts and events of the last traceback, as indices into the current buffers
+	private final int[] sampledCandidates;
+	private final int[] sampledEvents;
+	private double[] probabilities = new double[0];
+	private final MersenneTwisterFast random;
+	private boolean reconstructionKnown = false;
+
+	private double logLikelihood;
+	private double storedLogLikelihood;
+	private boolean likelihoodKnown = false;
+	private boolean storedLikelihoodKnown = false;
+
+}
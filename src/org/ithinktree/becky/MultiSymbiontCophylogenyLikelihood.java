@@ -0,0 +1,135 @@
+/**
+ * MultiSymbiontCophylogenyLikelihood.java
+ * 
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ * 
+ */
+
+package org.ithinktree.becky;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.ithinktree.becky.xml.MultiSymbiontCophylogenyLikelihoodParser;
+
+import dr.evolution.tree.Tree;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Variable;
+import dr.inference.model.Variable.ChangeType;
+
+/**
+ * The joint likelihood of several symbiont trees evolving within one host tree under
+ * one cophylogenetic model.
+ * <p/>
+ * Each symbiont tree keeps its own {@link CophylogenyLikelihood}, which operators act on
+ * as usual. Since they share the host tree and the model, they also share everything the
+ * model derives from the host tree alone. Only those whose trees, mappings or rates changed
+ * are recalculated, concurrently if the model allows it.
+ * 
+ * @author Arman D. Bilge
+ *
+ */
+@SuppressWarnings("serial")
+public class MultiSymbiontCophylogenyLikelihood extends AbstractModelLikelihood {
+
+	private final CophylogenyLikelihood[] cophylogenyLikelihoods;
+	private final CophylogenyModel cophylogenyModel;
+	private final int threadCount;
+	
+	public MultiSymbiontCophylogenyLikelihood(final List<CophylogenyLikelihood> cophylogenyLikelihoods, final int threadCount) {
+		
+		super(MultiSymbiontCophylogenyLikelihoodParser.MULTI_SYMBIONT_COPHYLOGENY_LIKELIHOOD);
+		
+		if (cophylogenyLikelihoods.isEmpty())
+			throw new IllegalArgumentException("At least one symbiont tree is required.");
+		if (threadCount < 1)
+			throw new IllegalArgumentException("The thread count must be positive.");
+		
+		this.cophylogenyLikelihoods = cophylogenyLikelihoods.toArray(new CophylogenyLikelihood[cophylogenyLikelihoods.size()]);
+		this.threadCount = threadCount;
+		
+		final Tree hostTree = this.cophylogenyLikelihoods[0].getHostTree();
+		cophylogenyModel = this.cophylogenyLikelihoods[0].getCophylogenyModel();
+		for (CophylogenyLikelihood cophylogenyLikelihood : this.cophylogenyLikelihoods) {
+			if (cophylogenyLikelihood.getHostTree() != hostTree || cophylogenyLikelihood.getCophylogenyModel() != cophylogenyModel)
+				throw new IllegalArgumentException("All symbiont trees must share the host tree and cophylogeny model.");
+			addModel(cophylogenyLikelihood);
+		}
+		
+	}
+
+	@Override
+	public Model getModel() {
+		return this;
+	}
+
+	@Override
+	public double getLogLikelihood() {
+		
+		final List<CophylogenyLikelihood> dirty = new ArrayList<CophylogenyLikelihood>();
+		for (CophylogenyLikelihood cophylogenyLikelihood : cophylogenyLikelihoods) {
+			if (cophylogenyLikelihood.isDirty())
+				dirty.add(cophylogenyLikelihood);
+		}
+		
+		if (threadCount > 1 && dirty.size() > 1 && cophylogenyModel.isThreadSafe())
+			updateInParallel(dirty);
+		
+		// Summed in a fixed order, so that the result does not depend on the threads
+		double logL = 0.0;
+		for (CophylogenyLikelihood cophylogenyLikelihood : cophylogenyLikelihoods)
+			logL += cophylogenyLikelihood.getLogLikelihood();
+		return logL;
+		
+	}
+	
+	private void updateInParallel(final List<CophylogenyLikelihood> dirty) {
+		
+		// Bring the model up to date before it is shared between threads
+		cophylogenyModel.updateVariables();
+		
+		final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(dirty.size());
+		for (final CophylogenyLikelihood cophylogenyLikelihood : dirty) {
+			tasks.add(new Callable<Double>() {
+				public Double call() {
+					return cophylogenyLikelihood.getLogLikelihood();
+				}
+			});
+		}
+		SharedExecutor.invokeAll(tasks, threadCount);
+		
+	}
+	
+	public int getSymbiontTreeCount() {
+		return cophylogenyLikelihoods.length;
+	}
+	
+	public CophylogenyLikelihood getCophylogenyLikelihood(final int i) {
+		return cophylogenyLikelihoods[i];
+	}
+
+	@Override
+	public void makeDirty() {
+		for (CophylogenyLikelihood cophylogenyLikelihood : cophylogenyLikelihoods)
+			cophylogenyLikelihood.makeDirty();
+	}
+
+	@Override
+	protected void handleModelChangedEvent(Model model, Object object, int index) {} // Each symbiont tree keeps track of its own changes
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected void handleVariableChangedEvent(Variable variable, int index, ChangeType type) {} // No variables
+
+	@Override
+	protected void storeState() {} // Each symbiont tree is stored on its own
+
+	@Override
+	protected void restoreState() {} // Each symbiont tree is restored on its own
+
+	@Override
+	protected void acceptState() {} // Nothing to do
+
+}
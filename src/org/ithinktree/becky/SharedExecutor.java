@@ -0,0 +1,106 @@
+/**
+ * SharedExecutor.java
+ *
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ *
+ */
+
+package org.ithinktree.becky;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks of the parallel likelihoods and models on one pool of daemon threads,
+ * shared by all of them, which grows to the largest number of threads any of them asks
+ * for and whose threads end when idle.
+ * <p/>
+ * The calling thread works through the tasks alongside the pool, and then takes over any
+ * of its workers that no thread of the pool has started, before it waits for the rest. It
+ * thus only ever waits for workers that are running, so that tasks may run tasks of their
+ * own, as a symbiont tree of a {@link MultiSymbiontCophylogenyLikelihood} does its clades,
+ * without a deadlock.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+final class SharedExecutor {
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "BECKY");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private SharedExecutor() {}
+
+	/**
+	 * Runs tasks concurrently on up to threadCount threads including the calling one.
+	 * @param tasks the tasks, which the threads take in order
+	 * @param threadCount the number of threads
+	 * @return their results, in order
+	 */
+	static <T> List<T> invokeAll(final List<? extends Callable<T>> tasks, final int threadCount) {
+
+		final int taskCount = tasks.size();
+		final int workerCount = Math.min(threadCount, taskCount);
+		final AtomicInteger next = new AtomicInteger();
+		final Object[] results = new Object[taskCount];
+		final List<FutureTask<Void>> workers = new ArrayList<FutureTask<Void>>(workerCount);
+		for (int w = 0; w < workerCount; ++w) {
+			workers.add(new FutureTask<Void>(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int t = next.getAndIncrement(); t < taskCount; t = next.getAndIncrement())
+						results[t] = tasks.get(t).call();
+					return null;
+				}
+			}));
+		}
+		ensureThreads(workerCount - 1);
+		for (int w = 1; w < workerCount; ++w)
+			executor.execute(workers.get(w));
+
+		// Those already started or done by the pool are left to it
+		for (FutureTask<Void> worker : workers)
+			worker.run();
+		try {
+			for (FutureTask<Void> worker : workers)
+				worker.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+
+		@SuppressWarnings("unchecked")
+		final List<T> list = (List<T>) Arrays.asList(results);
+		return list;
+
+	}
+
+	private static synchronized void ensureThreads(final int threadCount) {
+		if (threadCount > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threadCount);
+			executor.setCorePoolSize(threadCount);
+		}
+	}
+
+}
@@ -7,7 +7,9 @@
 
 package org.ithinktree.becky;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.ithinktree.becky.CophylogenyModel.Utils.NodalRelationship;
 import org.ithinktree.becky.CophylogenyModel.Utils.Relationship;
@@ -17,6 +19,8 @@ import dr.evolution.tree.BranchRates;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.math.MachineAccuracy;
 
@@ -35,14 +39,33 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
     private double duplicationRate;
     private double hostSwitchRate;
     private double lossRate;
+    private final ExtinctionEngine extinctionEngine;
+    
+    /**
+     * Strategies for summing over the ways a lineage can go extinct in a host subtree.
+     */
+    public enum ExtinctionEngine {
+        /** Enumerates every combination of extinction points; exponential in the subtree size */
+        ENUMERATION,
+        /** Sums bottom-up over the subtree; linear in the subtree size */
+        DYNAMIC_PROGRAMMING,
+        /** Integrates the extinction equations, allowing for duplications and host switches, along the whole host tree */
+        ODE;
+    }
         
     /**
      * 
      */
     public SimpleCophylogenyModel(Parameter duplicationRateParameter, Parameter hostSwitchRateParameter, Parameter lossRateParameter, Type units) {
+        this(duplicationRateParameter, hostSwitchRateParameter, lossRateParameter, ExtinctionEngine.DYNAMIC_PROGRAMMING, units);
+    }
+    
+    public SimpleCophylogenyModel(Parameter duplicationRateParameter, Parameter hostSwitchRateParameter, Parameter lossRateParameter, ExtinctionEngine extinctionEngine, Type units) {
 
         super(SimpleCophylogenyModelParser.SIMPLE_COPHYLOGENY_MODEL, units);
         
+        this.extinctionEngine = extinctionEngine;
+        
         this.duplicationRateParameter = duplicationRateParameter;
         addVariable(duplicationRateParameter);
         duplicationRateParameter.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
@@ -57,14 +80,73 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
                 
     }
     
-    protected void updateVariables() {
+    protected synchronized void updateVariables() {
+        final double previousDuplicationRate = duplicationRate;
+        final double previousLossRate = lossRate;
+        final double previousOverallRate = overallRate;
         duplicationRate = getDuplicationRate();
         hostSwitchRate = getHostSwitchRate();
         lossRate = getLossRate();
         overallRate = duplicationRate + hostSwitchRate + lossRate;
+        if (lossRate != previousLossRate || overallRate != previousOverallRate
+                || lineageLossAllowsAllEvents() && duplicationRate != previousDuplicationRate)
+            lineageLossCache.clear();
         dirty = false;
     }
     
+    @Override
+    protected void handleModelChangedEvent(final Model model, final Object object, final int index) {
+        // The trees of an empirical host tree set never change, and their tables are swapped in as needed
+        if (model == lineageLossCache.tree && !(model instanceof EmpiricalHostTreeModel)) {
+            // Allowing for host switches, any change can reach every lineage
+            if (!lineageLossAllowsAllEvents() && object instanceof TreeModel.TreeChangedEvent && ((TreeModel.TreeChangedEvent) object).isNodeChanged()) {
+                invalidateLineageLosses(lineageLossCache.tree, ((TreeModel.TreeChangedEvent) object).getNode());
+            } else {
+                lineageLossCache.clear();
+                hostTreeChanged = true;
+            }
+        }
+    }
+    
+    /**
+     * Forgets the lineage loss likelihoods that a change at a host node can have affected:
+     * those of its ancestors, whose clades contain it, and of itself and its children,
+     * whose branches it ends or begins. Whether its height or its children changed, this is
+     * all, as long as the tree has already been changed.
+     */
+    private void invalidateLineageLosses(final Tree tree, final NodeRef node) {
+        for (NodeRef n = node; n != null; n = tree.getParent(n))
+            invalidateLineageLoss(n.getNumber());
+        for (int i = 0; i < tree.getChildCount(node); ++i)
+            invalidateLineageLoss(tree.getChild(node, i).getNumber());
+    }
+    
+    /**
+     * Forgets the lineage loss likelihoods of a host node, now and again on restore.
+     * @param n the number of the host node
+     */
+    protected void invalidateLineageLoss(final int n) {
+        lineageLossCache.invalidate(n);
+        // Remember the node to forget it again on restore, since the cache is not stored
+        if (!invalidatedHostNodes[n]) {
+            invalidatedHostNodes[n] = true;
+            invalidatedHostNodeList[invalidatedHostNodeCount++] = n;
+        }
+    }
+    
+    /**
+     * @return the number of nodes of the host tree whose lineage loss likelihoods are cached
+     */
+    protected int getCachedHostNodeCount() {
+        return invalidatedHostNodes.length;
+    }
+    
+    private void clearInvalidatedHostNodes() {
+        for (int i = 0; i < invalidatedHostNodeCount; ++i)
+            invalidatedHostNodes[invalidatedHostNodeList[i]] = false;
+        invalidatedHostNodeCount = 0;
+    }
+    
     protected final double likelihoodEvent(final EventType e, final double t, final double rate) {
         switch (e) {
         case DUPLICATION: return likelihoodDuplicationAtTime(t, rate);
@@ -75,6 +157,10 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
         return 0.0;
     }
     
+    private double getEventRate(final int e) {
+        return getEventRate(EVENT_TYPES[e]);
+    }
+    
     protected double getEventRate(EventType e) {
         switch (e) {
         case DUPLICATION: return duplicationRate;
@@ -117,17 +203,323 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
         return likelihoodEventInTime(t, lossRate, rate);
     }
         
+    public ExtinctionEngine getExtinctionEngine() {
+        return extinctionEngine;
+    }
+    
+    /**
+     * @return whether the lineage loss likelihoods allow for duplications and host switches,
+     * so that they depend on the duplication rate and, through switches, on the whole host tree
+     */
+    protected boolean lineageLossAllowsAllEvents() {
+        return extinctionEngine == ExtinctionEngine.ODE;
+    }
+        
     protected double likelihoodLineageLoss(final Tree tree, final NodeRef lineage, final double rate, boolean excludeRoot) {
+        return cachedLikelihoodLineageLoss(tree, lineage, rate, excludeRoot);
+    }
+    
+    private double cachedLikelihoodLineageLoss(final Tree tree, final NodeRef lineage, final double rate, final boolean excludeRoot) {
         
-        double sum = 0.0;
-        final ExtinctionLikelihood[] els = permuteExtinctLineageLikelihoods(tree, lineage, rate);
-        final int l = els.length - (excludeRoot ? 1 : 0);
-        for (int i = 0; i < l; ++i)
-            sum += els[i].getOverallLikelihood();
-        return sum;
+        final int i = 2 * lineage.getNumber() + (excludeRoot ? 1 : 0);
+        
+        // Nodes may be calculated in parallel, and all of them share the cache, which they read without locking once complete
+        final RateTable completeTable = lineageLossCache.findTable(tree, rate);
+        if (completeTable != null && completeTable.complete)
+            return completeTable.likelihoods[i];
+        
+        synchronized (lineageLossCache) {
+            final RateTable table = lineageLossCache.getTable(tree, rate);
+            final double[] likelihoods = table.likelihoods;
+            if (Double.isNaN(likelihoods[i])) {
+                if (extinctionEngine == ExtinctionEngine.ODE) {
+                    extinctionIntegrator.integrate(HostTreeIndex.forTree(tree), duplicationRate, hostSwitchRate, lossRate, rate, likelihoods);
+                    table.complete = true;
+                } else if (isThreadSafe()) {
+                    // Whole, children first, so that the other threads need not wait for its entries one by one
+                    final HostTreeIndex index = HostTreeIndex.forTree(tree);
+                    for (int k = index.getNodeCount() - 1; k >= 0; --k) {
+                        final int n = index.getPreorderNode(k);
+                        if (Double.isNaN(likelihoods[2 * n]))
+                            likelihoods[2 * n] = calculateLikelihoodLineageLoss(tree, index.getNode(n), rate, false);
+                        if (Double.isNaN(likelihoods[2 * n + 1]))
+                            likelihoods[2 * n + 1] = calculateLikelihoodLineageLoss(tree, index.getNode(n), rate, true);
+                    }
+                    table.complete = true;
+                } else {
+                    likelihoods[i] = calculateLikelihoodLineageLoss(tree, lineage, rate, excludeRoot);
+                }
+            }
+            return likelihoods[i];
+        }
+        
+    }
+    
+    /**
+     * Calculates a lineage loss likelihood missing from the cache.
+     */
+    protected double calculateLikelihoodLineageLoss(final Tree tree, final NodeRef lineage, final double rate, final boolean excludeRoot) {
+        
+        if (extinctionEngine == ExtinctionEngine.ENUMERATION) {
+            double sum = 0.0;
+            final ExtinctionLikelihood[] els = permuteExtinctLineageLikelihoods(tree, lineage, rate);
+            final int l = els.length - (excludeRoot ? 1 : 0);
+            for (int i = 0; i < l; ++i)
+                sum += els[i].getOverallLikelihood();
+            return sum;
+        }
+        
+        // Either the loss happens along the lineage's own branch, or nothing happens along it
+        // and both of its children are lost in turn; summing this bottom-up is linear in the subtree size
+        final double length = tree.getBranchLength(lineage);
+        final double loss = excludeRoot ? 0.0 : likelihoodLossInTime(length, rate);
+        if (tree.isExternal(lineage))
+            return loss;
+        return loss + likelihoodNoEventsInTime(length, rate) * cachedLikelihoodLineageLoss(tree, tree.getChild(lineage, 0), rate, false) * cachedLikelihoodLineageLoss(tree, tree.getChild(lineage, 1), rate, false);
+        
+    }
+    
+    /**
+     * Holds the lineage loss likelihoods of a host tree, by node, whether the root was excluded,
+     * and distinct branch rate. Entries are NaN until calculated.
+     * <p/>
+     * Under a relaxed clock every symbiont branch brings its own rate, and nearly every proposal
+     * new ones, so at most {@link #getMaxRateTables()} tables are kept: when another one is
+     * needed, all are forgotten. That bound holds the rates of the current and a proposed state
+     * of every symbiont tree calculated, so that they are not forgotten within an evaluation.
+     * The memory held is thus at most that many tables of twice the host node count, for each
+     * tree of an empirical host tree set kept alongside it.
+     * <p/>
+     * Symbiont nodes calculated in parallel find the tables and read the complete ones without
+     * locking. So the slots of the tables are only ever filled while they are shared, and
+     * replaced whole to remove any; the arrays of forgotten tables are only reused when they
+     * are forgotten between evaluations, as the rates or host tree change.
+     * <p/>
+     * For an {@link EmpiricalHostTreeModel} there is a set of tables for each of its trees,
+     * cached alongside it, and those of the current tree are swapped in when needed.
+     */
+    private final class LineageLossCache {
+        
+        private Tree tree = null;
+        private int width;
+        private volatile RateIndex index = new RateIndex(null, null, new RateTable[16]);
+        private int rateCount = 0;
+        private final List<double[]> spareLikelihoods = new ArrayList<double[]>();
+        // The rates the tables were calculated with
+        private double tablesLossRate;
+        private double tablesOverallRate;
+        private double tablesDuplicationRate;
+        // The tree of an empirical host tree set the tables belong to, and where to keep them
+        private Tree tablesTree = null;
+        private LineageLossTables tables = null;
+        
+        /**
+         * Finds a table without locking.
+         * @return the table of the rate, or null if there is none yet
+         */
+        private RateTable findTable(final Tree tree, final double rate) {
+            final RateIndex index = this.index;
+            if (index.tree != tree || tree instanceof EmpiricalHostTreeModel && index.tablesTree != ((EmpiricalHostTreeModel) tree).getCurrentTree())
+                return null;
+            final long key = Double.doubleToLongBits(rate);
+            final RateTable[] slots = index.slots;
+            // At most half of the slots are filled
+            for (int slot = hash(key, slots.length); ; slot = (slot + 1) & (slots.length - 1)) {
+                final RateTable table = slots[slot];
+                if (table == null || table.key == key)
+                    return table;
+            }
+        }
+        
+        /**
+         * Finds or adds a table, holding the lock.
+         */
+        private RateTable getTable(final Tree tree, final double rate) {
+            
+            if (tree instanceof EmpiricalHostTreeModel && ((EmpiricalHostTreeModel) tree).getCurrentTree() != tablesTree)
+                selectTables((EmpiricalHostTreeModel) tree);
+            
+            if (tree != this.tree) {
+                if (this.tree instanceof Model)
+                    ((Model) this.tree).removeModelListener(SimpleCophylogenyModel.this);
+                this.tree = tree;
+                if (tree instanceof Model)
+                    ((Model) tree).addModelListener(SimpleCophylogenyModel.this);
+                width = 2 * tree.getNodeCount();
+                publish(new RateTable[16]);
+                rateCount = 0;
+                spareLikelihoods.clear();
+                clear();
+                invalidatedHostNodes = new boolean[tree.getNodeCount()];
+                invalidatedHostNodeList = new int[tree.getNodeCount()];
+                invalidatedHostNodeCount = 0;
+            }
+            
+            final RateTable found = findTable(tree, rate);
+            if (found != null)
+                return found;
+            
+            if (rateCount == maxRateTables) {
+                // Other threads may still be reading the tables, so their arrays are not reused
+                publish(new RateTable[index.slots.length]);
+                rateCount = 0;
+            }
+            if (2 * (rateCount + 1) > index.slots.length)
+                publish(grow(index.slots));
+            
+            final long key = Double.doubleToLongBits(rate);
+            final RateTable[] slots = index.slots;
+            int slot = hash(key, slots.length);
+            while (slots[slot] != null)
+                slot = (slot + 1) & (slots.length - 1);
+            final double[] likelihoods = spareLikelihoods.isEmpty() ? new double[width] : spareLikelihoods.remove(spareLikelihoods.size() - 1);
+            Arrays.fill(likelihoods, Double.NaN);
+            slots[slot] = new RateTable(key, likelihoods);
+            ++rateCount;
+            return slots[slot];
+            
+        }
+        
+        private void publish(final RateTable[] slots) {
+            index = new RateIndex(tree, tablesTree, slots);
+        }
+        
+        private void selectTables(final EmpiricalHostTreeModel treeSet) {
+            
+            LineageLossTables next = (LineageLossTables) treeSet.getCachedObject(this);
+            if (next == null) {
+                next = new LineageLossTables();
+                treeSet.putCachedObject(this, next);
+            }
+            
+            if (tables != null) {
+                tables.slots = index.slots;
+                tables.rateCount = rateCount;
+                tables.lossRate = tablesLossRate;
+                tables.overallRate = tablesOverallRate;
+                tables.duplicationRate = tablesDuplicationRate;
+            }
+            tables = next;
+            tablesTree = treeSet.getCurrentTree();
+            // The tables may have been set aside under other rates, and are checked before they are shared
+            if (next.slots == null || next.lossRate != lossRate || next.overallRate != overallRate
+                    || lineageLossAllowsAllEvents() && next.duplicationRate != duplicationRate) {
+                publish(new RateTable[16]);
+                rateCount = 0;
+                clear();
+            } else {
+                publish(next.slots);
+                rateCount = next.rateCount;
+                tablesLossRate = next.lossRate;
+                tablesOverallRate = next.overallRate;
+                tablesDuplicationRate = next.duplicationRate;
+            }
+            
+        }
+        
+        private void invalidate(final int n) {
+            for (RateTable table : index.slots) {
+                if (table != null) {
+                    table.complete = false;
+                    table.likelihoods[2 * n] = table.likelihoods[2 * n + 1] = Double.NaN;
+                }
+            }
+        }
+        
+        /**
+         * Forgets the tables, between evaluations.
+         */
+        private void clear() {
+            if (rateCount > 0) {
+                final RateTable[] slots = index.slots;
+                for (RateTable table : slots) {
+                    if (table != null)
+                        spareLikelihoods.add(table.likelihoods);
+                }
+                publish(new RateTable[slots.length]);
+                rateCount = 0;
+            }
+            tablesLossRate = lossRate;
+            tablesOverallRate = overallRate;
+            tablesDuplicationRate = duplicationRate;
+        }
+        
+        private RateTable[] grow(final RateTable[] slots) {
+            final RateTable[] grown = new RateTable[2 * slots.length];
+            for (RateTable table : slots) {
+                if (table != null) {
+                    int slot = hash(table.key, grown.length);
+                    while (grown[slot] != null)
+                        slot = (slot + 1) & (grown.length - 1);
+                    grown[slot] = table;
+                }
+            }
+            return grown;
+        }
         
     }
     
+    private static int hash(final long key, final int length) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (length - 1);
+    }
+    
+    /**
+     * The lineage loss likelihoods of one branch rate.
+     */
+    private static final class RateTable {
+        private final long key;
+        private final double[] likelihoods;
+        // Set after the last entry is calculated, so that whoever sees it set sees them all
+        private volatile boolean complete = false;
+        private RateTable(final long key, final double[] likelihoods) {
+            this.key = key;
+            this.likelihoods = likelihoods;
+        }
+    }
+    
+    /**
+     * The slots of the tables of a host tree, published to the threads reading them at once.
+     */
+    private static final class RateIndex {
+        private final Tree tree;
+        private final Tree tablesTree;
+        private final RateTable[] slots;
+        private RateIndex(final Tree tree, final Tree tablesTree, final RateTable[] slots) {
+            this.tree = tree;
+            this.tablesTree = tablesTree;
+            this.slots = slots;
+        }
+    }
+    
+    /**
+     * The tables of a {@link LineageLossCache} for one tree of an empirical host tree set.
+     */
+    private static final class LineageLossTables {
+        private RateTable[] slots = null;
+        private int rateCount;
+        private double lossRate;
+        private double overallRate;
+        private double duplicationRate;
+    }
+    
+    /**
+     * The least number of branch rates whose lineage loss likelihoods are cached at once.
+     */
+    public static final int MIN_RATE_TABLES = 256;
+    
+    // Twice the node count of the symbiont trees calculated, if more than the least
+    private int maxRateTables = MIN_RATE_TABLES;
+    private int symbiontNodeCount = 0;
+    
+    private final LineageLossCache lineageLossCache = new LineageLossCache();
+    private final ExtinctionIntegrator extinctionIntegrator = new ExtinctionIntegrator();
+    private boolean hostTreeChanged = false;
+    // The host nodes whose lineage loss likelihoods were forgotten since the last store
+    private boolean[] invalidatedHostNodes = new boolean[0];
+    private int[] invalidatedHostNodeList = new int[0];
+    private int invalidatedHostNodeCount = 0;
+    
     public ExtinctionLikelihood[] permuteExtinctLineageLikelihoods(final Tree tree, final NodeRef lineage, final double rate) {
         
         final double length = tree.getBranchLength(lineage);
@@ -213,6 +605,41 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
         return likelihood;
     }
     
+    /**
+     * As {@link #likelihoodLossesAlongLineages(Tree, NodeRef[], double)}, for a range of node numbers.
+     */
+    protected double likelihoodLossesAlongLineages(final Tree tree, final HostTreeIndex index, final int[] lineages, final int start, final int end, double rate) {
+        double likelihood = 1.0;
+        for (int i = start; i < end; ++i)
+            likelihood *= likelihoodLineageLoss(tree, index.getNode(lineages[i]), rate, false);
+        return likelihood;
+    }
+    
+    /**
+     * The scratch space of a thread calculating node likelihoods.
+     */
+    private final class Workspace {
+        private int[] lostLineages = new int[0];
+        private final HostSwitchLossTable hostSwitchLossTable = new HostSwitchLossTable();
+    }
+    
+    private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+    
+    /**
+     * @return a buffer large enough for the lost lineages of up to four host nodes
+     */
+    private int[] getLostLineagesBuffer(final HostTreeIndex index) {
+        final Workspace workspace = workspaces.get();
+        if (workspace.lostLineages.length < 4 * index.getNodeCount())
+            workspace.lostLineages = new int[4 * index.getNodeCount()];
+        return workspace.lostLineages;
+    }
+    
     /**
      * Discretizes a branch along which a host-switch and loss happened to properly determine the likelihood of these events.
      * 
@@ -221,11 +648,21 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
      * @param lossStop the latest the loss could have happened
      * @param rate the rate on the relevant branch
      * @param tree the host tree
-     * @param originalLineages lineages lost on original host lineage
-     * @param newHostLineages lineages lost on new host lineage
+     * @param lineages node numbers of lost lineages
+     * @param originalStart start of the range of lineages lost on original host lineage
+     * @param originalEnd end of the range of lineages lost on original host lineage, exclusive
+     * @param newHostStart start of the range of lineages lost on new host lineage
+     * @param newHostEnd end of the range of lineages lost on new host lineage, exclusive
      * @return
      */
-    protected final double likelihoodHostSwitchEventAndLossInTime(final double start, final double hostSwitchStop, final double eventStop, final double lossStop, final double eventRate, final double rate, final Tree tree, final NodeRef lostLineage, final NodeRef[] originalLineages, final NodeRef[] newHostLineages) {
+    protected final double likelihoodHostSwitchEventAndLossInTime(final double start, final double hostSwitchStop, final double eventStop, final double lossStop, final double eventRate, final double rate, final Tree tree, final NodeRef lostLineage, final int[] lineages, final int originalStart, final int originalEnd, final int newHostStart, final int newHostEnd) {
+        final HostTreeIndex index = HostTreeIndex.forTree(tree);
+        final HostSwitchLossTable hostSwitchLossTable = workspaces.get().hostSwitchLossTable;
+        hostSwitchLossTable.fill(tree, index, lineages, originalStart, originalEnd, newHostStart, newHostEnd, rate);
+        return likelihoodHostSwitchEventAndLossInTime(start, hostSwitchStop, eventStop, lossStop, eventRate, rate, tree, lostLineage, index.getEpochs(), hostSwitchLossTable);
+    }
+    
+    private double likelihoodHostSwitchEventAndLossInTime(final double start, final double hostSwitchStop, final double eventStop, final double lossStop, final double eventRate, final double rate, final Tree tree, final NodeRef lostLineage, final HostEpochIndex epochs, final HostSwitchLossTable table) {
         final double e = start - eventStop;
         final double l = start - lossStop;
         final double stop = start - Math.max(hostSwitchStop, Math.max(eventStop, lossStop));
@@ -234,20 +671,20 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
         double subHeight;
         double nextHeight = 0.0;
         double nextSubHeight;
-        for (int i = originalLineages.length - 1; nextHeight < stop; --i) {
+        for (int i = table.originalCount - 1; nextHeight < stop; --i) {
             height = nextHeight;
-            if (i >= 0) nextHeight = Math.min(start - tree.getNodeHeight(tree.getParent(originalLineages[i])), stop);
+            if (i >= 0) nextHeight = Math.min(start - table.originalParentHeights[i], stop);
             else nextHeight = stop;
             nextSubHeight = height;
-            for (int j = newHostLineages.length - 1; nextSubHeight < nextHeight; --j) {
+            for (int j = table.newHostCount - 1; nextSubHeight < nextHeight; --j) {
                 subHeight = nextSubHeight;
-                if (j >= 0 && tree.getNodeHeight(tree.getParent(newHostLineages[j])) <= start) nextSubHeight = Math.min(start - tree.getNodeHeight(tree.getParent(newHostLineages[j])), nextHeight);
+                if (j >= 0 && table.newHostParentHeights[j] <= start) nextSubHeight = Math.min(start - table.newHostParentHeights[j], nextHeight);
                 else nextSubHeight = nextHeight;
-                int potentialHostCount = (Utils.getContemporaneousLineageCount(tree, nextSubHeight) - 1);
+                int potentialHostCount = (epochs.getLineageCountAtHeight(nextSubHeight) - 1);
                 if (potentialHostCount > 0) {
                 likelihood += likelihoodHostSwitchEventAndLossInTime(subHeight, nextSubHeight, e, l, eventRate, rate, tree, lostLineage) *
-                        likelihoodLossesAlongLineages(tree, Arrays.copyOfRange(originalLineages, i+1, originalLineages.length), rate) *
-                        likelihoodLossesAlongLineages(tree, Arrays.copyOfRange(newHostLineages, 0, j+1), rate) /
+                        table.originalSuffixProducts[i+1] *
+                        table.newHostPrefixProducts[j+1] /
                         potentialHostCount;
                 }
             }
@@ -257,19 +694,66 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
         if (lostLineageHeight > hostSwitchStop && !tree.isExternal(lostLineage)) {
             final NodeRef c1 = tree.getChild(lostLineage, 0);
             final NodeRef c2 = tree.getChild(lostLineage, 1);
-            return likelihood + likelihoodNoEventsInTime(tree.getBranchLength(lostLineage), rate) * (likelihoodHostSwitchEventAndLossInTime(lostLineageHeight, hostSwitchStop, eventStop, tree.getNodeHeight(c1), eventRate, rate, tree, c1, originalLineages, newHostLineages) * likelihoodLineageLoss(tree, c2, rate, false) + likelihoodHostSwitchEventAndLossInTime(lostLineageHeight, hostSwitchStop, eventStop, tree.getNodeHeight(c2), eventRate, rate, tree, c2, originalLineages, newHostLineages) * likelihoodLineageLoss(tree, c1, rate, false));
+            return likelihood + likelihoodNoEventsInTime(tree.getBranchLength(lostLineage), rate) * (likelihoodHostSwitchEventAndLossInTime(lostLineageHeight, hostSwitchStop, eventStop, tree.getNodeHeight(c1), eventRate, rate, tree, c1, epochs, table) * likelihoodLineageLoss(tree, c2, rate, false) + likelihoodHostSwitchEventAndLossInTime(lostLineageHeight, hostSwitchStop, eventStop, tree.getNodeHeight(c2), eventRate, rate, tree, c2, epochs, table) * likelihoodLineageLoss(tree, c1, rate, false));
         } else {
             return likelihood;
         }
         
     }
     
+    /**
+     * The lineages lost along the original and new host lineages of a host-switch, with the
+     * heights of their parents and the products of their loss likelihoods, so that the
+     * discretized integral need not recompute them for every interval or every lost lineage.
+     */
+    private final class HostSwitchLossTable {
+        
+        private int originalCount;
+        private int newHostCount;
+        private double[] originalParentHeights = new double[0];
+        private double[] newHostParentHeights = new double[0];
+        /** The loss likelihood of the original host lineages from i on */
+        private double[] originalSuffixProducts = new double[1];
+        /** The loss likelihood of the new host lineages before i */
+        private double[] newHostPrefixProducts = new double[1];
+        
+        private void fill(final Tree tree, final HostTreeIndex index, final int[] lineages, final int originalStart, final int originalEnd, final int newHostStart, final int newHostEnd, final double rate) {
+            
+            originalCount = originalEnd - originalStart;
+            newHostCount = newHostEnd - newHostStart;
+            if (originalParentHeights.length < originalCount) {
+                originalParentHeights = new double[originalCount];
+                originalSuffixProducts = new double[originalCount + 1];
+            }
+            if (newHostParentHeights.length < newHostCount) {
+                newHostParentHeights = new double[newHostCount];
+                newHostPrefixProducts = new double[newHostCount + 1];
+            }
+            
+            originalSuffixProducts[originalCount] = 1.0;
+            for (int i = originalCount - 1; i >= 0; --i) {
+                final int n = lineages[originalStart + i];
+                originalParentHeights[i] = index.getHeight(index.getParent(n));
+                originalSuffixProducts[i] = likelihoodLineageLoss(tree, index.getNode(n), rate, false) * originalSuffixProducts[i + 1];
+            }
+            newHostPrefixProducts[0] = 1.0;
+            for (int j = 0; j < newHostCount; ++j) {
+                final int n = lineages[newHostStart + j];
+                newHostParentHeights[j] = index.getHeight(index.getParent(n));
+                newHostPrefixProducts[j + 1] = newHostPrefixProducts[j] * likelihoodLineageLoss(tree, index.getNode(n), rate, false);
+            }
+            
+        }
+        
+    }
+    
     public double calculateNodeLogLikelihoodAssumingNoExtinctions(final MutableTree symbiontTree, final NodeRef self,
             final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
             final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates) {
 
         if (dirty) updateVariables();
         
+        final Context context = defaultContext;
         double likelihood = 1.0;
         double sum;
         
@@ -285,26 +769,22 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
 
         
         if (child1Relationship.relationship == Relationship.SELF && child2Relationship.relationship == Relationship.SELF) {
-        	setReconstructedEvents(self, DUPLICATION);
+        	setReconstructedEvent(context, self, EventType.DUPLICATION);
         } else if ((child1Relationship.relationship == Relationship.SELF && (child2Relationship.relationship == Relationship.SISTER || child2Relationship.relationship == Relationship.COUSIN)) || (child2Relationship.relationship == Relationship.SELF && (child1Relationship.relationship == Relationship.SISTER || child1Relationship.relationship == Relationship.COUSIN))) {
-        	setReconstructedEvents(self, HOST_SWITCH);
+        	setReconstructedEvent(context, self, EventType.HOST_SWITCH);
         	likelihood /= CophylogenyModel.Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
         } else if (child1Relationship.relationship == Relationship.DESCENDANT && child2Relationship.relationship == Relationship.DESCENDANT && Utils.determineRelationship(hostTree, child1Host, child2Host).relationship == Relationship.SISTER && MachineAccuracy.same(selfHeight, selfHostHeight)) {
-        	setReconstructedEvents(self, NO_EVENT);
+        	setReconstructedEvent(context, self, EventType.NO_EVENT);
         } else {
         	return Double.NEGATIVE_INFINITY;
         }
 
         double logLikelihood = Math.log(likelihood);
         
-            sum = 0.0;
-            for (Event e : reconstructedEvents[child1.getNumber()])
-                sum += likelihoodEvent(e.event, symbiontTree.getBranchLength(child1), child1BranchRate) * e.partialLikelihood;
+            sum = likelihoodReconstructedEvents(context, child1.getNumber(), symbiontTree.getBranchLength(child1), child1BranchRate);
             logLikelihood += Math.log(sum);
         
-            sum = 0.0;
-            for (Event e : reconstructedEvents[child2.getNumber()])
-                sum += likelihoodEvent(e.event, symbiontTree.getBranchLength(child2), child2BranchRate) * e.partialLikelihood;
+            sum = likelihoodReconstructedEvents(context, child2.getNumber(), symbiontTree.getBranchLength(child2), child2BranchRate);
             logLikelihood += Math.log(sum);
 
         return logLikelihood;
@@ -327,213 +807,426 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
     public double calculateNodeLogLikelihood(final MutableTree symbiontTree, final NodeRef self,
             final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
             final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates) {
+        
+        // The rates are read from the trees before the rest is reached
+        if (dirty) updateVariables();
+        return calculateNodeLogLikelihood(defaultContext, symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates,
+                symbiontTree.getNodeHeight(self), symbiontTree.getNodeHeight(child1), symbiontTree.getNodeHeight(child2),
+                symbiontTree.getBranchLength(child1), symbiontTree.getBranchLength(child2),
+                Double.NaN, branchRates.getBranchRate(symbiontTree, child1), branchRates.getBranchRate(symbiontTree, child2));
+    }
+    
+    @Override
+    public double calculateNodeLogLikelihood(final MutableTree symbiontTree, final NodeRef self,
+            final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
+            final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates,
+            final double[] nodeHeights, final double[] branchLengths, final double[] nodeRates) {
+        
+        return calculateNodeLogLikelihood(defaultContext, symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates, nodeHeights, branchLengths, nodeRates);
+    }
+    
+    @Override
+    public double calculateNodeLogLikelihood(final EvaluationContext context, final MutableTree symbiontTree, final NodeRef self,
+            final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
+            final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates,
+            final double[] nodeHeights, final double[] branchLengths, final double[] nodeRates) {
+        
+        final int i = self.getNumber();
+        final int j = child1.getNumber();
+        final int k = child2.getNumber();
+        return calculateNodeLogLikelihood((Context) context, symbiontTree, self, child1, child2, hostTree, selfHost, child1Host, child2Host, branchRates,
+                nodeHeights[i], nodeHeights[j], nodeHeights[k], branchLengths[j], branchLengths[k], nodeRates[i], nodeRates[j], nodeRates[k]);
+    }
+    
+    /**
+     * @param selfBranchRate the rate of the given node's branch, or NaN to ask the rate model when needed
+     */
+    private double calculateNodeLogLikelihood(final Context context, final MutableTree symbiontTree, final NodeRef self,
+            final NodeRef child1, final NodeRef child2, final Tree hostTree, final NodeRef selfHost,
+            final NodeRef child1Host, final NodeRef child2Host, final BranchRates branchRates,
+            final double selfHeight, final double child1Height, final double child2Height,
+            final double child1BranchLength, final double child2BranchLength,
+            final double selfBranchRate, final double child1BranchRate, final double child2BranchRate) {
+        
+        if (dirty) updateVariables();
+        
+        final NodeStructure structure = getNodeStructure(context, self, selfHeight, hostTree, selfHost, child1Host, child2Host);
+        if (structure.mapping == Mapping.IMPOSSIBLE)
+            return Double.NEGATIVE_INFINITY;
+        
+        final HostTreeIndex hostTreeIndex = structure.hostTreeIndex;
+        final int[] lineages = structure.lineages;
+        
+        double likelihood = 1.0;
+        double sum;
+        boolean calculatedChild1 = false;
+        boolean calculatedChild2 = false;
+        
+        switch (structure.mapping) {
+        
+        case DUPLICATION_COSPECIATION_LOSSES: {
+            // Case 1A: duplication, cospeciation, then losses
+            likelihood *= likelihoodLossInTime(structure.potentialLossLength, child1BranchRate) * likelihoodLossInTime(structure.potentialLossLength, child2BranchRate) * likelihoodLineageLoss(hostTree, structure.hostChild, child1BranchRate, true) * likelihoodLineageLoss(hostTree, structure.hostChild, child2BranchRate, true);
+            if (lossRate == 0.0) assert(likelihood == 0.0);
+            setReconstructedEvent(context, self, EventType.DUPLICATION);
+            break;
+        }
+        
+        case COSPECIATION_SWITCH_LOSS: {
+            // Case 2: cospeciation, then host-switch and loss
+            // Sum over two subcases: child1 lineage made host-switch/loss or child2 made host-switch/loss
+            double case2 = 0.0;
+            double sum2;
+            
+            sum = 0.0;
+            for (int events = context.reconstructedEvents[child1.getNumber()]; events != 0; events &= events - 1) {
+                final int e = Integer.numberOfTrailingZeros(events);
+                sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child1Height, child1Height, structure.hostChildHeight, getEventRate(e), child1BranchRate, hostTree, structure.hostChild, lineages, 0, structure.originalEnd, structure.child1Start, structure.child1End) * getReconstructedPartial(context, child1.getNumber(), e);
+            }
+            
+            sum2 = likelihoodReconstructedEvents(context, child2.getNumber(), child2BranchLength, child2BranchRate);
+            
+            case2 += sum * sum2 * likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            
+            sum = 0.0;
+            for (int events = context.reconstructedEvents[child2.getNumber()]; events != 0; events &= events - 1) {
+                final int e = Integer.numberOfTrailingZeros(events);
+                sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child2Height, child2Height, structure.hostChildHeight, getEventRate(e), child2BranchRate, hostTree, structure.hostChild, lineages, 0, structure.originalEnd, structure.child2Start, structure.child2End) * getReconstructedPartial(context, child2.getNumber(), e);
+            }
+            
+            sum2 = likelihoodReconstructedEvents(context, child1.getNumber(), child1BranchLength, child1BranchRate);
+            
+            case2 += sum * sum2 * likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child2BranchRate);
+            
+            if (lossRate == 0.0) assert(case2 == 0.0);
+            
+            likelihood *= case2;
+            setReconstructedEvent(context, self, EventType.NO_EVENT);
+            calculatedChild1 = true;
+            calculatedChild2 = true;
+            break;
+        }
+        
+        case COSPECIATION: {
+            // Plain old cospeciation
+            setReconstructedEvent(context, self, EventType.NO_EVENT);
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child2Start, structure.child2End, child2BranchRate);
+            break;
+        }
+        
+        case DUPLICATION_LOSSES: {
+            setReconstructedEvent(context, self, EventType.DUPLICATION);
+            final double likelihoodNoEvent = likelihoodNoEventsInTime(selfHeight - structure.selfHostHeight, Double.isNaN(selfBranchRate) ? branchRates.getBranchRate(symbiontTree, self) : selfBranchRate);
+            likelihood *= likelihoodNoEvent * likelihoodNoEvent;
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child2Start, structure.child2End, child2BranchRate);
+            break;
+        }
+        
+        case DUPLICATION: {
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child2Start, structure.child2End, child2BranchRate);
+            setReconstructedEvent(context, self, EventType.DUPLICATION);
+            break;
+        }
+        
+        case CHILD2_SWITCH: {
+            setReconstructedEvent(context, self, EventType.HOST_SWITCH);
+            likelihood /= structure.potentialHostCount;
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child2Start, structure.child2End, child2BranchRate);
+            break;
+        }
+        
+        case CHILD1_SWITCH: {
+            setReconstructedEvent(context, self, EventType.HOST_SWITCH);
+            likelihood /= structure.potentialHostCount;
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            if (lossRate == 0.0 && structure.child1End > structure.child1Start) assert(likelihood == 0.0);
+            break;
+        }
+        
+        case DOUBLE_SWITCH: {
+            // Double host-switch event with a loss: no symbionts left on this host lineage
+            // We definitely know the time of the first host-switch
+            setReconstructedEvent(context, self, EventType.HOST_SWITCH);
+            likelihood /= structure.potentialHostCount;
+            
+            // Case 1: Child1 lineage host-switched first
+            double case1 = likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            // Case 2: Child2 lineage host-switched first
+            double case2 = likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child2Start, structure.child2End, child2BranchRate);
+            
+            // No lineages were lost on the original host lineage
+            sum = 0.0;
+            for (int events = context.reconstructedEvents[child2.getNumber()]; events != 0; events &= events - 1) {
+                final int e = Integer.numberOfTrailingZeros(events);
+                sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child2Height, child2Height, structure.selfHostHeight, getEventRate(e), child2BranchRate, hostTree, selfHost, lineages, 0, 0, structure.child2Start, structure.child2End) *
+                    getReconstructedPartial(context, child2.getNumber(), e);
+            }
+            case1 *= sum;
+            
+            sum = 0.0;
+            for (int events = context.reconstructedEvents[child1.getNumber()]; events != 0; events &= events - 1) {
+                final int e = Integer.numberOfTrailingZeros(events);
+                sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child1Height, child1Height, structure.selfHostHeight, getEventRate(e), child1BranchRate, hostTree, selfHost, lineages, 0, 0, structure.child1Start, structure.child1End) *
+                    getReconstructedPartial(context, child1.getNumber(), e);
+            }
+            case2 *= sum;
+            
+            likelihood *= case1 + case2;
+            
+            calculatedChild1 = true;
+            calculatedChild2 = true;
+            break;
+        }
+        
+        case CHILD2_SWITCH_CHILD1_LOSSES: {
+            setReconstructedEvent(context, self, EventType.HOST_SWITCH);
+            likelihood /= structure.potentialHostCount;
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child2Start, structure.child2End, child2BranchRate);
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            break;
+        }
+        
+        case CHILD1_SWITCH_CHILD2_LOSSES: {
+            setReconstructedEvent(context, self, EventType.HOST_SWITCH);
+            likelihood /= structure.potentialHostCount;
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child1Start, structure.child1End, child1BranchRate);
+            likelihood *= likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, structure.child2Start, structure.child2End, child2BranchRate);
+            break;
+        }
+        
+        default:
+            return Double.NEGATIVE_INFINITY;
+        
+        }
+        
+        double logLikelihood = Math.log(likelihood);
+        
+        if (!calculatedChild1) {
+            sum = likelihoodReconstructedEvents(context, child1.getNumber(), child1BranchLength, child1BranchRate);
+            logLikelihood += Math.log(sum);
+        }
+        
+        if (!calculatedChild2) {
+            sum = likelihoodReconstructedEvents(context, child2.getNumber(), child2BranchLength, child2BranchRate);
+            logLikelihood += Math.log(sum);
+        }
+        
+        return logLikelihood;
+    }
+    
+    /**
+     * The ways a mapping at a node and its children can have come about, as told apart by
+     * {@link SimpleCophylogenyModel#calculateNodeLogLikelihood}.
+     */
+    private enum Mapping {
+        IMPOSSIBLE,
+        /** Both children descend from one host child: duplication, cospeciation, then losses */
+        DUPLICATION_COSPECIATION_LOSSES,
+        /** Both children descend from one host child: cospeciation, then host-switch and loss */
+        COSPECIATION_SWITCH_LOSS,
+        COSPECIATION,
+        /** Duplication before the host speciated, then losses on both children's lineages */
+        DUPLICATION_LOSSES,
+        DUPLICATION,
+        CHILD1_SWITCH,
+        CHILD2_SWITCH,
+        DOUBLE_SWITCH,
+        CHILD1_SWITCH_CHILD2_LOSSES,
+        CHILD2_SWITCH_CHILD1_LOSSES;
+    }
+    
+    /**
+     * Everything about the mapping at a node that does not depend on the rates of the model:
+     * how it came about, the host lineages along which losses happened, and how many hosts a
+     * host-switch could have chosen from. It is kept for as long as the hosts, the height of
+     * the node and the host tree are unchanged, so changes to the rates alone only re-evaluate
+     * the likelihoods of these events.
+     */
+    private static final class NodeStructure {
+        
+        private HostTreeIndex hostTreeIndex;
+        private int hostTreeVersion;
+        private NodeRef selfHost;
+        private NodeRef child1Host;
+        private NodeRef child2Host;
+        private double selfHeight;
+        
+        private Mapping mapping;
+        private double selfHostHeight;
+        private NodeRef hostChild;
+        private double hostChildHeight;
+        private double potentialLossLength;
+        private int potentialHostCount;
+        private int[] lineages = new int[0];
+        private int originalEnd;
+        private int child1Start;
+        private int child1End;
+        private int child2Start;
+        private int child2End;
+        
+        private boolean isFor(final HostTreeIndex hostTreeIndex, final NodeRef selfHost, final NodeRef child1Host, final NodeRef child2Host, final double selfHeight) {
+            return hostTreeIndex == this.hostTreeIndex && hostTreeIndex.getVersion() == hostTreeVersion
+                    && selfHost == this.selfHost && child1Host == this.child1Host && child2Host == this.child2Host
+                    && selfHeight == this.selfHeight;
+        }
+        
+    }
+    
+    private NodeStructure getNodeStructure(final Context context, final NodeRef self, final double selfHeight, final Tree hostTree, final NodeRef selfHost, final NodeRef child1Host, final NodeRef child2Host) {
+        
+        final HostTreeIndex hostTreeIndex = HostTreeIndex.forTree(hostTree);
+        NodeStructure structure = context.nodeStructures[self.getNumber()];
+        if (structure == null) {
+            structure = new NodeStructure();
+            context.nodeStructures[self.getNumber()] = structure;
+        }
+        
+        if (!structure.isFor(hostTreeIndex, selfHost, child1Host, child2Host, selfHeight)) {
+            // Forget the hosts first, in case the mapping cannot be classified
+            structure.hostTreeIndex = null;
+            classifyNode(structure, hostTree, hostTreeIndex, selfHost, child1Host, child2Host, selfHeight);
+            structure.hostTreeIndex = hostTreeIndex;
+            structure.hostTreeVersion = hostTreeIndex.getVersion();
+            structure.selfHost = selfHost;
+            structure.child1Host = child1Host;
+            structure.child2Host = child2Host;
+            structure.selfHeight = selfHeight;
+        }
+        return structure;
+        
+    }
+    
+    private void classifyNode(final NodeStructure structure, final Tree hostTree, final HostTreeIndex hostTreeIndex, final NodeRef selfHost,
+            final NodeRef child1Host, final NodeRef child2Host, final double selfHeight) {
+        
+        final Relationship child1Relationship = hostTreeIndex.getRelationship(selfHost, child1Host);
+        final Relationship child2Relationship = hostTreeIndex.getRelationship(selfHost, child2Host);
+        final int selfHostN = selfHost.getNumber();
+        final int child1HostN = child1Host.getNumber();
+        final int child2HostN = child2Host.getNumber();
+        // Lost lineages are written to ranges of this buffer, then copied to the structure
+        final int[] lineages = getLostLineagesBuffer(hostTreeIndex);
+        int end = 0;
+        
+        structure.selfHostHeight = hostTreeIndex.getHeight(selfHostN);
+        structure.hostChild = null;
+        structure.originalEnd = 0;
+        structure.child1Start = structure.child1End = structure.child2Start = structure.child2End = 0;
+        
+        // Check if symbiont coexisted temporally with its host
+        if (!hostTreeIndex.isContemporaneous(selfHostN, selfHeight)) {
+            
+            structure.mapping = Mapping.IMPOSSIBLE;
+            
+        } else if (child1Relationship == Relationship.DESCENDANT && child2Relationship == Relationship.DESCENDANT) {
+            
+            int hostChild = hostTreeIndex.getChild(selfHostN, 0);
+            final Relationship nr1 = hostTreeIndex.getRelationship(hostChild, child1HostN);
+            final Relationship nr2 = hostTreeIndex.getRelationship(hostChild, child2HostN);
+            if (nr1 == nr2 || (nr1 == Relationship.SISTER && nr2 == Relationship.COUSIN) || (nr2 == Relationship.SISTER && nr1 == Relationship.COUSIN)) {
                 
-                    if (dirty) updateVariables();
-        
-                    double likelihood = 1.0;
-                    double sum;
-                    
-                    final NodalRelationship child1Relationship = Utils.determineRelationship(hostTree, selfHost, child1Host);
-                    final NodalRelationship child2Relationship = Utils.determineRelationship(hostTree, selfHost, child2Host);
-                    double selfHeight = symbiontTree.getNodeHeight(self);
-                    final double selfHostHeight = hostTree.getNodeHeight(selfHost);
-                    final double child1BranchRate = branchRates.getBranchRate(symbiontTree, child1);
-                    final double child2BranchRate = branchRates.getBranchRate(symbiontTree, child2);
-                    
-                    boolean calculatedChild1 = false;
-                    boolean calculatedChild2 = false;
-                                        
-                    // Check if symbiont coexisted temporally with its host
-                    if (!CophylogenyModel.Utils.isContemporaneous(hostTree, selfHost, selfHeight))
-                        return Double.NEGATIVE_INFINITY;
-                                        
-                    if (child1Relationship.relationship == Relationship.DESCENDANT
-                            && child2Relationship.relationship == Relationship.DESCENDANT) {
-                                                
-                        NodeRef hostChild = hostTree.getChild(selfHost, 0);
-                        final Utils.NodalRelationship nr1 = Utils.determineRelationship(hostTree, hostChild, child1Host);
-                        final Utils.NodalRelationship nr2 = Utils.determineRelationship(hostTree, hostChild, child2Host);
-                        if (nr1.relationship == nr2.relationship || (nr1.relationship == Relationship.SISTER && nr2.relationship == Relationship.COUSIN) || (nr2.relationship == Relationship.SISTER && nr1.relationship == Relationship.COUSIN)) {
-
-                            // Determine along which child lineage the loss(es) happened
-                            if (nr1.relationship != Relationship.DESCENDANT)
-                                hostChild = hostTree.getChild(selfHost, 1);
-                            final double hostChildBranchLength = hostTree.getBranchLength(hostChild);
-                            final double hostChildHeight = hostTree.getNodeHeight(hostChild);
-                            
-                            final double child1Height = symbiontTree.getNodeHeight(child1);
-							final double child2Height = symbiontTree.getNodeHeight(child2);
-
-                            // The duplication occurred at the time of their last common ancestor
-                                 
-                            if (!MachineAccuracy.same(selfHeight, selfHostHeight)) {
-                                // Case 1A: duplication, cospeciation, then losses
- 
-								final double potentialLossLength = (selfHeight - selfHostHeight) + hostChildBranchLength;
-								likelihood *= likelihoodLossInTime(potentialLossLength, child1BranchRate) * likelihoodLossInTime(potentialLossLength, child2BranchRate) * likelihoodLineageLoss(hostTree, hostChild, child1BranchRate, true) * likelihoodLineageLoss(hostTree, hostChild, child2BranchRate, true);
-								if (lossRate == 0.0) assert(likelihood == 0.0);
-								setReconstructedEvents(self, DUPLICATION);
-							} else {
-							
-   								// Case 2: cospeciation, then host-switch and loss
-
-								// All possible lineages along which losses may have occurred
-								final NodeRef[] child1OriginalHostLineages = Utils.lostLineagesToTime(hostTree, hostChild, selfHeight);
-								final NodeRef[] child2OriginalHostLineages = Utils.lostLineagesToTime(hostTree, hostChild, selfHeight);
-								final NodeRef[] child1NewHostLineages = Arrays.copyOfRange(child1Relationship.lostLineages, 1, child1Relationship.lostLineages.length);
-								final NodeRef[] child2NewHostLineages = Arrays.copyOfRange(child2Relationship.lostLineages, 1, child2Relationship.lostLineages.length);
-
-								// Sum over two subcases: child1 lineage made host-switch/loss or child2 made host-switch/loss
-								double case2 = 0.0;
-								double sum2;
-
-								sum = 0.0;
-								for (Event e : reconstructedEvents[child1.getNumber()])
-									sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child1Height, child1Height, hostChildHeight, getEventRate(e.event), child1BranchRate, hostTree, hostChild, child1OriginalHostLineages, child1NewHostLineages) * e.partialLikelihood;
-
-								sum2 = 0.0;
-								for (Event e : reconstructedEvents[child2.getNumber()])
-									sum2 += likelihoodEvent(e.event, symbiontTree.getBranchLength(child2), child2BranchRate) * e.partialLikelihood;
-
-								case2 += sum * sum2 * likelihoodLossesAlongLineages(hostTree, child1NewHostLineages, child1BranchRate);
-
-								sum = 0.0;
-								for (Event e : reconstructedEvents[child2.getNumber()])
-									sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child2Height, child2Height, hostChildHeight, getEventRate(e.event), child2BranchRate, hostTree, hostChild, child2OriginalHostLineages, child2NewHostLineages) * e.partialLikelihood;
-
-								sum2 = 0.0;
-								for (Event e : reconstructedEvents[child1.getNumber()])
-									sum2 += likelihoodEvent(e.event, symbiontTree.getBranchLength(child1), child1BranchRate) * e.partialLikelihood;
-
-								case2 += sum * sum2 * likelihoodLossesAlongLineages(hostTree, child1NewHostLineages, child2BranchRate);
-
-								if (lossRate == 0.0) assert(case2 == 0.0);
-								
-								likelihood *= case2;
-								setReconstructedEvents(self, NO_EVENT);
-	                            calculatedChild1 = true;
-	                            calculatedChild2 = true;
-
-							}
-                                                        
-                        } else {
-                            
-                            if (MachineAccuracy.same(selfHeight, selfHostHeight)) { // Plain old cospeciation
-                                setReconstructedEvents(self, NO_EVENT);
-                                likelihood *= likelihoodLossesAlongLineages(hostTree, Arrays.copyOfRange(child1Relationship.lostLineages, 1, child1Relationship.lostLineages.length), child1BranchRate);
-                                likelihood *= likelihoodLossesAlongLineages(hostTree, Arrays.copyOfRange(child2Relationship.lostLineages, 1, child2Relationship.lostLineages.length), child2BranchRate);
-
-                            } else {
-                            	setReconstructedEvents(self, new Event[]{DUPLICATION});
-                            	final double likelihoodNoEvent = likelihoodNoEventsInTime(selfHeight - selfHostHeight, branchRates.getBranchRate(symbiontTree, self));
-                            	likelihood *= likelihoodNoEvent * likelihoodNoEvent;
-                                likelihood *= likelihoodLossesAlongLineages(hostTree, child1Relationship.lostLineages, child1BranchRate);
-                                likelihood *= likelihoodLossesAlongLineages(hostTree, child2Relationship.lostLineages, child2BranchRate);
-                             }                          
-                                                        
-                        }
-                        
-                    } else if ((child1Relationship.relationship == Relationship.SELF || child1Relationship.relationship == Relationship.DESCENDANT )
-                            && (child2Relationship.relationship == Relationship.SELF || child2Relationship.relationship == Relationship.DESCENDANT)) {
-                    	 // && they are not *both* descendants, but accounted for already above
-                    	
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, child1Relationship.lostLineages, child1BranchRate);
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, child2Relationship.lostLineages, child2BranchRate);
-                    	                        
-                    	setReconstructedEvents(self, DUPLICATION);
-                                                
-                    } else if (child1Relationship.relationship == Relationship.SELF && (child2Relationship.relationship == Relationship.COUSIN || child2Relationship.relationship == Relationship.SISTER)) {
-
-                        // Child2 host-switch event
-                        setReconstructedEvents(self, HOST_SWITCH);
-                        likelihood /= Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, Utils.lostLineagesToTime(hostTree, child2Host, selfHeight), branchRates.getBranchRate(symbiontTree, child2));
-                    
-                    } else if (child2Relationship.relationship == Relationship.SELF && (child1Relationship.relationship == Relationship.COUSIN || child1Relationship.relationship == Relationship.SISTER)) {
-                        
-                        // Child1 host-switch event
-                        setReconstructedEvents(self, HOST_SWITCH);
-                        likelihood /= Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, Utils.lostLineagesToTime(hostTree, child1Host, selfHeight), branchRates.getBranchRate(symbiontTree, child1));
-                        if (lossRate == 0.0 && Utils.lostLineagesToTime(hostTree, child1Host, selfHeight).length > 0) assert(likelihood == 0.0);
-                        
-                    } else if ((child1Relationship.relationship == Relationship.COUSIN || child1Relationship.relationship == Relationship.SISTER)
-                            && (child2Relationship.relationship == Relationship.COUSIN || child2Relationship.relationship == Relationship.SISTER)) {
-
-                        // Double host-switch event with a loss: no symbionts left on this host lineage
-                                                
-                        final double child1Height = symbiontTree.getNodeHeight(child1);
-                        final double child2Height = symbiontTree.getNodeHeight(child2);
-                        
-                        final NodeRef[] noLineages = new NodeRef[0];
-                        final NodeRef[] child1NewHostLineages = Utils.lostLineagesToTime(hostTree, child1Host, selfHeight);
-                        final NodeRef[] child2NewHostLineages = Utils.lostLineagesToTime(hostTree, child2Host, selfHeight);
-                        
-                        // We definitely know the time of the first host-switch
-                        setReconstructedEvents(self, HOST_SWITCH);
-                        likelihood /= (Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1);
-                        
-                        // Case 1: Child1 lineage host-switched first
-                        double case1 = likelihoodLossesAlongLineages(hostTree, child1NewHostLineages, child1BranchRate);
-                        // Case 2: Child2 lineage host-switched first
-                        double case2 = likelihoodLossesAlongLineages(hostTree, child2NewHostLineages, child2BranchRate);
-                        
-                        sum = 0.0;
-                        for (Event e : getReconstructedEvents(child2))
-                            sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child2Height, child2Height, selfHostHeight, getEventRate(e.event), child2BranchRate, hostTree, selfHost, noLineages, child2NewHostLineages) *
-                                e.partialLikelihood;
-                        case1 *= sum;
-
-                        sum = 0.0;
-                        for (Event e : getReconstructedEvents(child1))                      
-                            sum += likelihoodHostSwitchEventAndLossInTime(selfHeight, child1Height, child1Height, selfHostHeight, getEventRate(e.event), child1BranchRate, hostTree, selfHost, noLineages, child1NewHostLineages) *
-                                e.partialLikelihood;
-                        case2 *= sum;
-                        
-                        likelihood *= case1 + case2;
-                                                
-                        calculatedChild1 = true;
-                        calculatedChild2 = true;
-                        
-                    } else if (child1Relationship.relationship == Relationship.DESCENDANT
-                            && (child2Relationship.relationship == Relationship.COUSIN || child2Relationship.relationship == Relationship.SISTER)) {
-
-                        // Child2 host-switch and child1 losses
-                        setReconstructedEvents(self, HOST_SWITCH);
-                        likelihood /= (Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1);
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, Utils.lostLineagesToTime(hostTree, child2Host, selfHeight), branchRates.getBranchRate(symbiontTree, child2));
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, child1Relationship.lostLineages, branchRates.getBranchRate(symbiontTree, child1));
-
-                    } else if ((child1Relationship.relationship == Relationship.COUSIN || child1Relationship.relationship == Relationship.SISTER)
-                            && child2Relationship.relationship == Relationship.DESCENDANT) {
-
-                        // Child1 host-switch and child2 losses 
-                        setReconstructedEvents(self, HOST_SWITCH);
-                        likelihood /= (Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1);
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, Utils.lostLineagesToTime(hostTree, child1Host, selfHeight), branchRates.getBranchRate(symbiontTree, child1));
-                        likelihood *= likelihoodLossesAlongLineages(hostTree, child2Relationship.lostLineages, branchRates.getBranchRate(symbiontTree, child2));
-
-                    } else { // Everything else is impossible
-                        return Double.NEGATIVE_INFINITY;
-                    }
-
-                    double logLikelihood = Math.log(likelihood);
-                    
-                    if (!calculatedChild1) {
-                        sum = 0.0;
-                        for (Event e : reconstructedEvents[child1.getNumber()])
-                            sum += likelihoodEvent(e.event, symbiontTree.getBranchLength(child1), child1BranchRate) * e.partialLikelihood;
-                        logLikelihood += Math.log(sum);
-                    }
-                    
-                    if (!calculatedChild2) {
-                        sum = 0.0;
-                        for (Event e : reconstructedEvents[child2.getNumber()])
-                            sum += likelihoodEvent(e.event, symbiontTree.getBranchLength(child2), child2BranchRate) * e.partialLikelihood;
-                        logLikelihood += Math.log(sum);
-                    }
-                    
-                    return logLikelihood;
+                // Determine along which child lineage the loss(es) happened
+                if (nr1 != Relationship.DESCENDANT)
+                    hostChild = hostTreeIndex.getChild(selfHostN, 1);
+                structure.hostChild = hostTreeIndex.getNode(hostChild);
+                structure.hostChildHeight = hostTreeIndex.getHeight(hostChild);
+                
+                // The duplication occurred at the time of their last common ancestor
+                if (!MachineAccuracy.same(selfHeight, structure.selfHostHeight)) {
+                    structure.mapping = Mapping.DUPLICATION_COSPECIATION_LOSSES;
+                    structure.potentialLossLength = (selfHeight - structure.selfHostHeight) + hostTree.getBranchLength(structure.hostChild);
+                } else {
+                    structure.mapping = Mapping.COSPECIATION_SWITCH_LOSS;
+                    // All possible lineages along which losses may have occurred; both children share the original host lineages,
+                    // and the new host lineages skip the first lost lineage, which is the new host itself
+                    structure.originalEnd = hostTreeIndex.getLostLineagesToHeight(hostChild, selfHeight, lineages, 0);
+                    structure.child1Start = structure.originalEnd + 1;
+                    structure.child1End = hostTreeIndex.getLostLineages(selfHostN, child1HostN, lineages, structure.originalEnd);
+                    structure.child2Start = structure.child1End + 1;
+                    end = structure.child2End = hostTreeIndex.getLostLineages(selfHostN, child2HostN, lineages, structure.child1End);
+                }
+                
+            } else if (MachineAccuracy.same(selfHeight, structure.selfHostHeight)) {
+                structure.mapping = Mapping.COSPECIATION;
+                // The first lost lineage of each child is its own host
+                structure.child1Start = 1;
+                structure.child1End = hostTreeIndex.getLostLineages(selfHostN, child1HostN, lineages, 0);
+                structure.child2Start = structure.child1End + 1;
+                end = structure.child2End = hostTreeIndex.getLostLineages(selfHostN, child2HostN, lineages, structure.child1End);
+            } else {
+                structure.mapping = Mapping.DUPLICATION_LOSSES;
+                structure.child1End = hostTreeIndex.getLostLineages(selfHostN, child1HostN, lineages, 0);
+                structure.child2Start = structure.child1End;
+                end = structure.child2End = hostTreeIndex.getLostLineages(selfHostN, child2HostN, lineages, structure.child2Start);
+            }
+            
+        } else if ((child1Relationship == Relationship.SELF || child1Relationship == Relationship.DESCENDANT)
+                && (child2Relationship == Relationship.SELF || child2Relationship == Relationship.DESCENDANT)) {
+            // && they are not *both* descendants, but accounted for already above
+            
+            structure.mapping = Mapping.DUPLICATION;
+            if (child1Relationship == Relationship.DESCENDANT)
+                structure.child1End = hostTreeIndex.getLostLineages(selfHostN, child1HostN, lineages, 0);
+            structure.child2Start = structure.child2End = structure.child1End;
+            if (child2Relationship == Relationship.DESCENDANT)
+                structure.child2End = hostTreeIndex.getLostLineages(selfHostN, child2HostN, lineages, structure.child2Start);
+            end = structure.child2End;
+            
+        } else if (child1Relationship == Relationship.SELF && (child2Relationship == Relationship.COUSIN || child2Relationship == Relationship.SISTER)) {
+            
+            // Child2 host-switch event
+            structure.mapping = Mapping.CHILD2_SWITCH;
+            structure.potentialHostCount = Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
+            end = structure.child2End = hostTreeIndex.getLostLineagesToHeight(child2HostN, selfHeight, lineages, 0);
+            
+        } else if (child2Relationship == Relationship.SELF && (child1Relationship == Relationship.COUSIN || child1Relationship == Relationship.SISTER)) {
+            
+            // Child1 host-switch event
+            structure.mapping = Mapping.CHILD1_SWITCH;
+            structure.potentialHostCount = Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
+            end = structure.child1End = hostTreeIndex.getLostLineagesToHeight(child1HostN, selfHeight, lineages, 0);
+            
+        } else if ((child1Relationship == Relationship.COUSIN || child1Relationship == Relationship.SISTER)
+                && (child2Relationship == Relationship.COUSIN || child2Relationship == Relationship.SISTER)) {
+            
+            // Double host-switch event with a loss: no symbionts left on this host lineage
+            structure.mapping = Mapping.DOUBLE_SWITCH;
+            structure.potentialHostCount = Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
+            structure.child1End = hostTreeIndex.getLostLineagesToHeight(child1HostN, selfHeight, lineages, 0);
+            structure.child2Start = structure.child1End;
+            end = structure.child2End = hostTreeIndex.getLostLineagesToHeight(child2HostN, selfHeight, lineages, structure.child2Start);
+            
+        } else if (child1Relationship == Relationship.DESCENDANT
+                && (child2Relationship == Relationship.COUSIN || child2Relationship == Relationship.SISTER)) {
+            
+            // Child2 host-switch and child1 losses
+            structure.mapping = Mapping.CHILD2_SWITCH_CHILD1_LOSSES;
+            structure.potentialHostCount = Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
+            structure.child2End = hostTreeIndex.getLostLineagesToHeight(child2HostN, selfHeight, lineages, 0);
+            structure.child1Start = structure.child2End;
+            end = structure.child1End = hostTreeIndex.getLostLineages(selfHostN, child1HostN, lineages, structure.child1Start);
+            
+        } else if ((child1Relationship == Relationship.COUSIN || child1Relationship == Relationship.SISTER)
+                && child2Relationship == Relationship.DESCENDANT) {
+            
+            // Child1 host-switch and child2 losses
+            structure.mapping = Mapping.CHILD1_SWITCH_CHILD2_LOSSES;
+            structure.potentialHostCount = Utils.getContemporaneousLineageCount(hostTree, selfHeight) - 1;
+            structure.child1End = hostTreeIndex.getLostLineagesToHeight(child1HostN, selfHeight, lineages, 0);
+            structure.child2Start = structure.child1End;
+            end = structure.child2End = hostTreeIndex.getLostLineages(selfHostN, child2HostN, lineages, structure.child2Start);
+            
+        } else { // Everything else is impossible
+            structure.mapping = Mapping.IMPOSSIBLE;
+        }
+        
+        if (structure.lineages.length < end)
+            structure.lineages = new int[end];
+        System.arraycopy(lineages, 0, structure.lineages, 0, end);
+        
     }
 
     protected class Event {
@@ -556,31 +1249,291 @@ public class SimpleCophylogenyModel extends CophylogenyModel {
         DUPLICATION, HOST_SWITCH, LOSS, NO_EVENT;
     }
     
+    private static final EventType[] EVENT_TYPES = EventType.values();
+    private static final int EVENT_TYPE_COUNT = EVENT_TYPES.length;
+    private static final int DUPLICATION_EVENT = 1 << EventType.DUPLICATION.ordinal();
+    private static final int HOST_SWITCH_EVENT = 1 << EventType.HOST_SWITCH.ordinal();
+    private static final int LOSS_EVENT = 1 << EventType.LOSS.ordinal();
+    private static final int NO_EVENT_EVENT = 1 << EventType.NO_EVENT.ordinal();
+    
+    /**
+     * Reconstructs a single event with a partial likelihood of one, without allocating.
+     */
+    protected void setReconstructedEvent(final NodeRef n, final EventType e) {
+        setReconstructedEvent(defaultContext, n, e);
+    }
+    
+    private static void setReconstructedEvent(final Context context, final NodeRef n, final EventType e) {
+        final int[] reconstructedEvents = context.reconstructedEvents;
+        final double[] reconstructedPartials = context.reconstructedPartials;
+        final int i = n.getNumber();
+        final int events = 1 << e.ordinal();
+        final int j = i * EVENT_TYPE_COUNT + e.ordinal();
+        context.partialsChanged[i] = reconstructedEvents[i] != events || reconstructedPartials[j] != 1.0;
+        reconstructedEvents[i] = events;
+        reconstructedPartials[j] = 1.0;
+    }
+    
     protected void setReconstructedEvents(NodeRef n, Event...e) {
-        reconstructedEvents[n.getNumber()] = e;
+        final int[] reconstructedEvents = defaultContext.reconstructedEvents;
+        final double[] reconstructedPartials = defaultContext.reconstructedPartials;
+        final int i = n.getNumber();
+        final int offset = i * EVENT_TYPE_COUNT;
+        int events = 0;
+        final double[] partials = new double[EVENT_TYPE_COUNT];
+        for (Event event : e) {
+            events |= 1 << event.event.ordinal();
+            partials[event.event.ordinal()] += event.partialLikelihood;
+        }
+        boolean changed = reconstructedEvents[i] != events;
+        for (int j = 0; j < EVENT_TYPE_COUNT; ++j) {
+            if ((events & (1 << j)) != 0) {
+                changed |= reconstructedPartials[offset + j] != partials[j];
+                reconstructedPartials[offset + j] = partials[j];
+            }
+        }
+        defaultContext.partialsChanged[i] = changed;
+        reconstructedEvents[i] = events;
+    }
+    
+    @Override
+    public boolean haveNodePartialsChanged(final NodeRef n) {
+        return haveNodePartialsChanged(defaultContext, n);
+    }
+    
+    @Override
+    public boolean haveNodePartialsChanged(final EvaluationContext context, final NodeRef n) {
+        return ((Context) context).partialsChanged[n.getNumber()];
+    }
+    
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+    
+    @Override
+    public boolean dependsOnAllHostLineages(final NodeRef n) {
+        return dependsOnAllHostLineages(defaultContext, n);
+    }
+    
+    @Override
+    public boolean dependsOnAllHostLineages(final EvaluationContext context, final NodeRef n) {
+        // Host switches carry losses anywhere in the host tree
+        if (lineageLossAllowsAllEvents() && hostSwitchRate > 0.0)
+            return true;
+        final NodeStructure structure = ((Context) context).nodeStructures[n.getNumber()];
+        if (structure == null || structure.hostTreeIndex == null)
+            return true;
+        switch (structure.mapping) {
+        // Losses in these only happen within the clade of the host
+        case DUPLICATION_COSPECIATION_LOSSES:
+        case COSPECIATION:
+        case DUPLICATION_LOSSES:
+        case DUPLICATION:
+            return false;
+        default:
+            return true;
+        }
     }
     
+    /**
+     * Allocates; the likelihood calculation reads the primitive arrays directly.
+     */
     protected Event[] getReconstructedEvents(NodeRef n) {
-        return reconstructedEvents[n.getNumber()];
+        final int[] reconstructedEvents = defaultContext.reconstructedEvents;
+        final double[] reconstructedPartials = defaultContext.reconstructedPartials;
+        final int i = n.getNumber();
+        final Event[] events = new Event[Integer.bitCount(reconstructedEvents[i])];
+        int k = 0;
+        for (int e = reconstructedEvents[i]; e != 0; e &= e - 1) {
+            final int j = Integer.numberOfTrailingZeros(e);
+            events[k++] = new Event(EVENT_TYPES[j], reconstructedPartials[i * EVENT_TYPE_COUNT + j]);
+        }
+        return events;
+    }
+    
+    private static double getReconstructedPartial(final Context context, final int node, final int e) {
+        return context.reconstructedPartials[node * EVENT_TYPE_COUNT + e];
     }
     
-    private Event[][] reconstructedEvents;
+    /**
+     * Reconstructs a single event with a partial likelihood of one at a node of a context,
+     * for likelihoods that sum over the events of nodes themselves.
+     */
+    void setReconstructedEvent(final EvaluationContext context, final NodeRef n, final EventType e) {
+        setReconstructedEvent((Context) context, n, e);
+    }
+    
+    /**
+     * Reconstructs every event with a positive partial likelihood at a node of a context,
+     * for likelihoods that sum over the events of nodes themselves. The likelihood of a node
+     * is affine in the partials of each of its children, so partials that sum to one give
+     * the average of its likelihoods for their events alone.
+     * @param partials the partial likelihoods, by EventType ordinal from the offset
+     */
+    void setReconstructedPartials(final EvaluationContext context, final NodeRef n, final double[] partials, final int offset) {
+        final Context c = (Context) context;
+        final int i = n.getNumber();
+        int events = 0;
+        boolean changed = false;
+        for (int e = 0; e < EVENT_TYPE_COUNT; ++e) {
+            final double partial = partials[offset + e];
+            if (partial == 0.0) continue;
+            events |= 1 << e;
+            changed |= c.reconstructedPartials[i * EVENT_TYPE_COUNT + e] != partial;
+            c.reconstructedPartials[i * EVENT_TYPE_COUNT + e] = partial;
+        }
+        c.partialsChanged[i] = changed || c.reconstructedEvents[i] != events;
+        c.reconstructedEvents[i] = events;
+    }
+    
+    /**
+     * @return the events reconstructed at a node of a context, as a bit set over EventType ordinals
+     */
+    int getReconstructedEvents(final EvaluationContext context, final NodeRef n) {
+        return ((Context) context).reconstructedEvents[n.getNumber()];
+    }
+    
+    double getReconstructedPartial(final EvaluationContext context, final NodeRef n, final EventType e) {
+        return getReconstructedPartial((Context) context, n.getNumber(), e.ordinal());
+    }
+    
+    /**
+     * Sums the likelihoods of the events reconstructed at a node along its branch, weighted
+     * by their partial likelihoods; {@link #likelihoodEvent(EventType, double, double)} for
+     * every event, sharing the exponential.
+     */
+    private double likelihoodReconstructedEvents(final Context context, final int node, final double t, final double rate) {
+        final int[] reconstructedEvents = context.reconstructedEvents;
+        final double[] reconstructedPartials = context.reconstructedPartials;
+        final int events = reconstructedEvents[node];
+        final int offset = node * EVENT_TYPE_COUNT;
+        final double noEvent = likelihoodNoEventsInTime(t, rate);
+        double sum = 0.0;
+        if ((events & DUPLICATION_EVENT) != 0)
+            sum += duplicationRate * rate * noEvent * reconstructedPartials[offset + EventType.DUPLICATION.ordinal()];
+        if ((events & HOST_SWITCH_EVENT) != 0)
+            sum += hostSwitchRate * rate * noEvent * reconstructedPartials[offset + EventType.HOST_SWITCH.ordinal()];
+        if ((events & LOSS_EVENT) != 0)
+            sum += likelihoodLossInTime(t, rate) * reconstructedPartials[offset + EventType.LOSS.ordinal()];
+        if ((events & NO_EVENT_EVENT) != 0)
+            sum += noEvent * reconstructedPartials[offset + EventType.NO_EVENT.ordinal()];
+        return sum;
+    }
+    
+    /**
+     * The events reconstructed at each node of a symbiont tree, as bit sets over EventType
+     * ordinals, with their partial likelihoods and the structures of the mappings.
+     */
+    private static final class Context extends EvaluationContext {
+        
+        private final int[] reconstructedEvents;
+        private final int[] storedReconstructedEvents;
+        private final double[] reconstructedPartials;
+        private final double[] storedReconstructedPartials;
+        private final boolean[] partialsChanged;
+        private final NodeStructure[] nodeStructures;
+        
+        private Context(final Tree tree) {
+            reconstructedEvents = new int[tree.getNodeCount()];
+            storedReconstructedEvents = new int[reconstructedEvents.length];
+            reconstructedPartials = new double[reconstructedEvents.length * EVENT_TYPE_COUNT];
+            storedReconstructedPartials = new double[reconstructedPartials.length];
+            partialsChanged = new boolean[reconstructedEvents.length];
+            nodeStructures = new NodeStructure[reconstructedEvents.length];
+            for (int i = 0; i < tree.getExternalNodeCount(); ++i) {
+                final int n = tree.getExternalNode(i).getNumber();
+                reconstructedEvents[n] = NO_EVENT_EVENT;
+                reconstructedPartials[n * EVENT_TYPE_COUNT + EventType.NO_EVENT.ordinal()] = 1.0;
+            }
+        }
+        
+        @Override
+        public void storeState() {
+            System.arraycopy(reconstructedEvents, 0, storedReconstructedEvents, 0, reconstructedEvents.length);
+            System.arraycopy(reconstructedPartials, 0, storedReconstructedPartials, 0, reconstructedPartials.length);
+        }
+        
+        @Override
+        public void restoreState() {
+            System.arraycopy(storedReconstructedEvents, 0, reconstructedEvents, 0, storedReconstructedEvents.length);
+            System.arraycopy(storedReconstructedPartials, 0, reconstructedPartials, 0, storedReconstructedPartials.length);
+        }
+        
+    }
+    
+    // The context of the methods without one, stored and restored with the model
+    private Context defaultContext = null;
+    
     public void initialize(final Tree tree) {
-        reconstructedEvents = new Event[tree.getNodeCount()][];
-        for (int i = 0; i < tree.getExternalNodeCount(); ++i)
-            reconstructedEvents[tree.getExternalNode(i).getNumber()] = new Event[]{NO_EVENT};
+        defaultContext = new Context(tree);
+        reserveRateTables(tree);
+    }
+    
+    @Override
+    public EvaluationContext createContext(final Tree tree) {
+        reserveRateTables(tree);
+        return new Context(tree);
+    }
+    
+    /**
+     * Makes room in the lineage loss cache for the rates of the current and a proposed state
+     * of another symbiont tree, each branch of which may have its own.
+     */
+    private void reserveRateTables(final Tree tree) {
+        symbiontNodeCount += tree.getNodeCount();
+        maxRateTables = Math.max(MIN_RATE_TABLES, 2 * symbiontNodeCount);
+    }
+    
+    /**
+     * @return the largest number of branch rates whose lineage loss likelihoods are cached at once
+     */
+    public int getMaxRateTables() {
+        return maxRateTables;
+    }
+    
+    @Override
+    protected void storeState() {
+        super.storeState();
+        hostTreeChanged = false;
+        clearInvalidatedHostNodes();
+        if (defaultContext != null)
+            defaultContext.storeState();
+    }
+    
+    @Override
+    protected void restoreState() {
+        super.restoreState();
+        // The host tree is restored without an event, so anything cached since it changed is stale
+        if (hostTreeChanged) {
+            lineageLossCache.clear();
+            hostTreeChanged = false;
+        } else {
+            for (int i = 0; i < invalidatedHostNodeCount; ++i)
+                lineageLossCache.invalidate(invalidatedHostNodeList[i]);
+        }
+        clearInvalidatedHostNodes();
+        if (defaultContext != null)
+            defaultContext.restoreState();
     }
 
 	@Override
 	public double calculateOriginLogLikelihood(final Tree symbiontTree, final double originHeight, final NodeRef root, final Tree hostTree, final NodeRef originHost, final NodeRef rootHost, final BranchRates branchRates) {
+		return calculateOriginLogLikelihood(defaultContext, symbiontTree, originHeight, root, hostTree, originHost, rootHost, branchRates);
+	}
+	
+	@Override
+	public double calculateOriginLogLikelihood(final EvaluationContext context, final Tree symbiontTree, final double originHeight, final NodeRef root, final Tree hostTree, final NodeRef originHost, final NodeRef rootHost, final BranchRates branchRates) {
 //		if (dirty) updateVariables(); // Should not be needed...
 		double hostRootHeight = hostTree.getNodeHeight(hostTree.getRoot());
 		if (hostRootHeight > originHeight || symbiontTree.getNodeHeight(root) > originHeight) return Double.NEGATIVE_INFINITY;
-		double l = likelihoodLossesAlongLineages(hostTree, CophylogenyModel.Utils.lostLineagesToTime(hostTree, rootHost, originHeight), branchRates.getBranchRate(symbiontTree, root));
+		final HostTreeIndex hostTreeIndex = HostTreeIndex.forTree(hostTree);
+		final int[] lineages = getLostLineagesBuffer(hostTreeIndex);
+		double l = likelihoodLossesAlongLineages(hostTree, hostTreeIndex, lineages, 0, hostTreeIndex.getLostLineagesToHeight(rootHost.getNumber(), originHeight, lineages, 0), branchRates.getBranchRate(symbiontTree, root));
 		l *= Math.exp(-hostTree.getNodeCount() / hostRootHeight * (originHeight - hostRootHeight));
 		double sum = 0.0;
-		for (Event e : getReconstructedEvents(root))
-			sum += likelihoodEvent(e.event, originHeight - symbiontTree.getNodeHeight(root), branchRates.getBranchRate(symbiontTree, root));
+		for (int events = ((Context) context).reconstructedEvents[root.getNumber()]; events != 0; events &= events - 1)
+			sum += likelihoodEvent(EVENT_TYPES[Integer.numberOfTrailingZeros(events)], originHeight - symbiontTree.getNodeHeight(root), branchRates.getBranchRate(symbiontTree, root));
 		return Math.log(l*sum);
 	}
     
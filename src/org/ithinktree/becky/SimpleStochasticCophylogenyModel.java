@@ -1,30 +1,135 @@
 package org.ithinktree.becky;
 
+import org.ithinktree.becky.StochasticLikelihoodNoDescendants.Sampling;
+
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
 import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.math.MathUtils;
 
+/**
+ * Estimates the lineage loss likelihoods of a {@link SimpleCophylogenyModel} by simulation.
+ * <p/>
+ * Given a seed parameter, the model is pseudo-marginal: the estimate for a host node is
+ * a function of the seed at that node, so that it is cached like an exact likelihood, and
+ * the current and proposed states share their random numbers until an operator on the
+ * seeds, drawn uniformly from [0, 1), proposes new ones. The same holds across rates, so
+ * that a change of rate moves the estimates smoothly. A parameter shorter than the host
+ * tree is reused cyclically. Otherwise every estimate is drawn afresh.
+ *
+ * @author Arman D. Bilge
+ *
+ */
 @SuppressWarnings("serial")
-public class SimpleStochasticCophylogenyModel extends SimpleCophylogenyModel {
+public class SimpleStochasticCophylogenyModel extends SimpleCophylogenyModel implements Loggable {
 
 	protected StochasticLikelihoodNoDescendants mc;
-	
+	protected final Parameter seedParameter;
+	// The variances of the logs of the estimates made since the last log
+	private double varianceSum = 0.0;
+	private int varianceCount = 0;
+	private double loggedVariance = Double.NaN;
+
 	public SimpleStochasticCophylogenyModel(Parameter duplicationRateParameter,
 			Parameter hostSwitchRateParameter, Parameter lossRateParameter, int monteCarloIterations,
 			Type units) {
+		this(duplicationRateParameter, hostSwitchRateParameter, lossRateParameter, monteCarloIterations, 1, units);
+	}
+
+	public SimpleStochasticCophylogenyModel(Parameter duplicationRateParameter,
+			Parameter hostSwitchRateParameter, Parameter lossRateParameter, int monteCarloIterations,
+			int threadCount, Type units) {
+		this(duplicationRateParameter, hostSwitchRateParameter, lossRateParameter, monteCarloIterations, threadCount, Sampling.INDEPENDENT, null, units);
+	}
+
+	public SimpleStochasticCophylogenyModel(Parameter duplicationRateParameter,
+			Parameter hostSwitchRateParameter, Parameter lossRateParameter, int monteCarloIterations,
+			int threadCount, Sampling sampling, Parameter seedParameter, Type units) {
 		super(duplicationRateParameter, hostSwitchRateParameter, lossRateParameter,
 				units);
-		mc = new StochasticLikelihoodNoDescendants(this, monteCarloIterations);
+		mc = new StochasticLikelihoodNoDescendants(this, monteCarloIterations, threadCount, sampling);
+		this.seedParameter = seedParameter;
+		if (seedParameter != null) {
+			addVariable(seedParameter);
+			seedParameter.addBounds(new Parameter.DefaultBounds(1.0, 0.0, seedParameter.getDimension()));
+		}
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		// The Monte Carlo estimator reuses its simulators, and runs them on its own threads
+		return false;
+	}
+
+	@Override
+	protected boolean lineageLossAllowsAllEvents() {
+		return true;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected void handleVariableChangedEvent(Variable variable, int index, Variable.ChangeType type) {
+		if (variable == seedParameter) {
+			// Only the estimates drawn with the changed seeds
+			final int step = index < 0 ? 1 : seedParameter.getDimension();
+			for (int n = Math.max(index, 0); n < getCachedHostNodeCount(); n += step)
+				invalidateLineageLoss(n);
+		} else {
+			super.handleVariableChangedEvent(variable, index, type);
+		}
 	}
 
 	 protected double likelihoodLineageLoss(final Tree tree, final NodeRef lineage, final double rate, boolean excludeRoot) {
-		 if (excludeRoot) {
-			 return mc.likelihoodNoDescendants(tree, lineage, tree.getNodeHeight(lineage), rate);
-		 } else if (!tree.isRoot(lineage)) {
-			 return mc.likelihoodNoDescendants(tree, lineage, tree.getNodeHeight(tree.getParent(lineage)), rate);
-		 } else {
-			 throw new RuntimeException("Not implemented");
-		 }
+		 if (seedParameter != null)
+			 return super.likelihoodLineageLoss(tree, lineage, rate, excludeRoot);
+		 return estimateLikelihoodLineageLoss(tree, lineage, rate, excludeRoot, MathUtils.nextLong());
 	 }
-	
+
+	@Override
+	protected double calculateLikelihoodLineageLoss(final Tree tree, final NodeRef lineage, final double rate, final boolean excludeRoot) {
+		final int n = lineage.getNumber();
+		long seed = Double.doubleToLongBits(seedParameter.getParameterValue(n % seedParameter.getDimension()));
+		// Not the rate, so that nearby rates share random numbers and their estimates differ smoothly
+		seed = 31 * (31 * seed + n) + (excludeRoot ? 1 : 0);
+		return estimateLikelihoodLineageLoss(tree, lineage, rate, excludeRoot, seed);
+	}
+
+	private double estimateLikelihoodLineageLoss(final Tree tree, final NodeRef lineage, final double rate, final boolean excludeRoot, final long seed) {
+		final double height;
+		if (excludeRoot) {
+			height = tree.getNodeHeight(lineage);
+		} else if (!tree.isRoot(lineage)) {
+			height = tree.getNodeHeight(tree.getParent(lineage));
+		} else {
+			throw new RuntimeException("Not implemented");
+		}
+		final double estimate = mc.likelihoodNoDescendants(tree, lineage, height, rate, seed);
+		if (estimate > 0.0) {
+			varianceSum += mc.getVariance() / (estimate * estimate);
+			++varianceCount;
+		}
+		return estimate;
+	}
+
+	@Override
+	public LogColumn[] getColumns() {
+		return new LogColumn[]{
+				new LogColumn.Abstract(getId() + ".estimatorVariance") {
+					@Override
+					protected String getFormattedValue() {
+						// Kept from the last line if no estimate was made since
+						if (varianceCount > 0) {
+							loggedVariance = varianceSum / varianceCount;
+							varianceSum = 0.0;
+							varianceCount = 0;
+						}
+						return Double.toString(loggedVariance);
+					}
+				}
+		};
+	}
+
 }
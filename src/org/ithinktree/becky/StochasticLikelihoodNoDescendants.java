@@ -1,27 +1,197 @@
 package org.ithinktree.becky;
 
-import org.ithinktree.becky.tools.CoevolutionSimulator;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.math.MathUtils;
 
+/**
+ * Estimates the likelihood that a symbiont lineage leaves no descendants by counting
+ * the replicates of a {@link CountingSimulator} that die out.
+ * <p/>
+ * The replicates are divided among a fixed number of random number streams, all seeded
+ * from one draw of the BEAST random number generator per estimate, and the streams
+ * among the threads. An estimate thus depends on the run seed only, not on the number
+ * of threads or on their scheduling. Given a seed, it depends on nothing else, so that
+ * the current and proposed states of a pseudo-marginal chain can share random numbers.
+ * <p/>
+ * Since the streams are independent, the variance of an estimate is estimated by
+ * that of the estimates of the streams, whatever the sampling within them.
+ *
+ * @author Arman D. Bilge
+ *
+ */
 public class StochasticLikelihoodNoDescendants {
 
-	final CoevolutionSimulator simulator = new CoevolutionSimulator();
+	private static final int STREAMS = 64;
+
+	/**
+	 * How the replicates of a stream draw their random numbers.
+	 */
+	public enum Sampling {
+		/** Each replicate continues the stream */
+		INDEPENDENT,
+		/** Every second replicate reflects the uniform draws of the one before */
+		ANTITHETIC,
+		/** The first event times of the replicates are stratified over the stream */
+		STRATIFIED;
+	}
+
 	final SimpleCophylogenyModel cophylogenyModel; // Eventually should be made generic
 	final int iterations;
-	
+	final Sampling sampling;
+	private final SimulationTask[] tasks;
+	private final int[] survivorCounts = new int[STREAMS];
+	private double variance = Double.NaN;
+
 	public StochasticLikelihoodNoDescendants(final SimpleCophylogenyModel cophylogenyModel, final int iterations) {
+		this(cophylogenyModel, iterations, 1);
+	}
+
+	public StochasticLikelihoodNoDescendants(final SimpleCophylogenyModel cophylogenyModel, final int iterations, final int threadCount) {
+		this(cophylogenyModel, iterations, threadCount, Sampling.INDEPENDENT);
+	}
+
+	/**
+	 * @param cophylogenyModel
+	 * @param iterations the number of replicates per estimate
+	 * @param threadCount the number of threads to simulate on, including the calling one
+	 * @param sampling
+	 */
+	public StochasticLikelihoodNoDescendants(final SimpleCophylogenyModel cophylogenyModel, final int iterations, final int threadCount, final Sampling sampling) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("The thread count must be positive.");
 		this.cophylogenyModel = cophylogenyModel;
 		this.iterations = iterations;
+		this.sampling = sampling;
+		tasks = new SimulationTask[Math.min(threadCount, STREAMS)];
+		for (int t = 0; t < tasks.length; ++t)
+			tasks[t] = new SimulationTask(t * STREAMS / tasks.length, (t + 1) * STREAMS / tasks.length);
 	}
-	
+
 	public double likelihoodNoDescendants(final Tree hostTree, final NodeRef originHost, final double originHeight, final double rate) {
-		int noDescendantCount = 0;
-		for (int i = 0; i < iterations; ++i) {
-			if (simulator.simulateCoevolution(hostTree, originHost, originHeight, rate, this.cophylogenyModel, false, 0.0) == null) ++noDescendantCount;
+		return likelihoodNoDescendants(hostTree, originHost, originHeight, rate, MathUtils.nextLong());
+	}
+
+	/**
+	 * @param hostTree
+	 * @param originHost
+	 * @param originHeight
+	 * @param rate
+	 * @param seed the seed of all streams
+	 * @return the estimate, the same for the same seed
+	 */
+	public double likelihoodNoDescendants(final Tree hostTree, final NodeRef originHost, final double originHeight, final double rate, final long seed) {
+
+		final HostTreeIndex index = HostTreeIndex.forTree(hostTree);
+		for (SimulationTask task : tasks)
+			task.set(seed, index, originHost.getNumber(), originHeight,
+					rate * cophylogenyModel.getDuplicationRate(),
+					rate * cophylogenyModel.getHostSwitchRate(),
+					rate * cophylogenyModel.getLossRate());
+
+		if (tasks.length == 1) {
+			tasks[0].call();
+			return summarize();
 		}
-		return noDescendantCount / (double) iterations;
+
+		SharedExecutor.invokeAll(Arrays.asList(tasks), tasks.length);
+		return summarize();
+
+	}
+
+	/**
+	 * @return the estimated variance of the last estimate
+	 */
+	public double getVariance() {
+		return variance;
 	}
-	
+
+	private static long getReplicateCount(final int stream, final int iterations) {
+		return (long) (stream + 1) * iterations / STREAMS - (long) stream * iterations / STREAMS;
+	}
+
+	/**
+	 * Combines the survivor counts of the streams into an estimate and its variance.
+	 */
+	private double summarize() {
+		long survivorCount = 0;
+		for (int s = 0; s < STREAMS; ++s)
+			survivorCount += survivorCounts[s];
+		final double estimate = (iterations - survivorCount) / (double) iterations;
+		double sum = 0.0;
+		int streamCount = 0;
+		for (int s = 0; s < STREAMS; ++s) {
+			final long replicates = getReplicateCount(s, iterations);
+			if (replicates == 0)
+				continue;
+			final double d = (replicates - survivorCounts[s]) / (double) replicates - estimate;
+			sum += d * d;
+			++streamCount;
+		}
+		variance = streamCount > 1 ? sum / (streamCount - 1) / streamCount : Double.NaN;
+		return estimate;
+	}
+
+	/**
+	 * Runs the replicates of a range of streams, counting those that survive.
+	 */
+	private final class SimulationTask implements Callable<Boolean> {
+
+		private final int start;
+		private final int end;
+		private final CountingSimulator simulator = new CountingSimulator();
+		private long seed;
+		private HostTreeIndex index;
+		private int host;
+		private double height;
+		private double duplicationRate;
+		private double hostSwitchRate;
+		private double lossRate;
+
+		private SimulationTask(final int start, final int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		private void set(final long seed, final HostTreeIndex index, final int host, final double height, final double duplicationRate, final double hostSwitchRate, final double lossRate) {
+			this.seed = seed;
+			this.index = index;
+			this.host = host;
+			this.height = height;
+			this.duplicationRate = duplicationRate;
+			this.hostSwitchRate = hostSwitchRate;
+			this.lossRate = lossRate;
+		}
+
+		public Boolean call() {
+			for (int s = start; s < end; ++s) {
+				simulator.setSeed(seed, s);
+				final long replicates = getReplicateCount(s, iterations);
+				int survivorCount = 0;
+				for (long i = 0; i < replicates; ++i) {
+					switch (sampling) {
+					case ANTITHETIC:
+						// The second of each pair replays the draws of the first, reflected, and the next pair draws afresh
+						simulator.setReplicate(i / 2, i % 2 == 1);
+						break;
+					case STRATIFIED:
+						simulator.setReplicate(i, false);
+						simulator.setFirstUniform((i + simulator.nextUniform()) / replicates);
+						break;
+					default:
+						simulator.setReplicate(i, false);
+					}
+					if (simulator.survives(index, host, height, duplicationRate, hostSwitchRate, lossRate))
+						++survivorCount;
+				}
+				survivorCounts[s] = survivorCount;
+			}
+			return true;
+		}
+
+	}
+
 }
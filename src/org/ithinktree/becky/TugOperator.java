@@ -1,6 +1,5 @@
 package org.ithinktree.becky;
 
-import org.ithinktree.becky.CophylogenyModel.Utils.NodalRelationship;
 import org.ithinktree.becky.CophylogenyModel.Utils.Relationship;
 import org.ithinktree.becky.xml.TugOperatorParser;
 
@@ -40,11 +39,12 @@ public class TugOperator extends SimpleMCMCOperator {
 		final NodeRef child1Host = cophylogenyLikelihood.getStatesForNode(child1);
 		final NodeRef child2Host = cophylogenyLikelihood.getStatesForNode(child2);
 		if (self == null || child1 == null || child2 == null || symbiontTree.isExternal(child1) || symbiontTree.isExternal(child2)) throw new OperatorFailedException("No change in state");
-		final NodalRelationship rel1 = CophylogenyModel.Utils.determineRelationship(hostTree, selfHost, child1Host);
-		final NodalRelationship rel2 = CophylogenyModel.Utils.determineRelationship(hostTree, selfHost, child2Host);
+		final HostTreeIndex hostTreeIndex = HostTreeIndex.forTree(hostTree);
+		final Relationship rel1 = hostTreeIndex.getRelationship(selfHost, child1Host);
+		final Relationship rel2 = hostTreeIndex.getRelationship(selfHost, child2Host);
 		
 		int i = MathUtils.nextInt(2);
-		if (i == 0 && rel1.relationship == Relationship.SELF && rel2.relationship == Relationship.SELF) {
+		if (i == 0 && rel1 == Relationship.SELF && rel2 == Relationship.SELF) {
 			final NodeRef host = cophylogenyLikelihood.getStatesForNode(self);
 			if (hostTree.isExternal(host)) throw new OperatorFailedException("No change in state");
 			final double hostHeight = hostTree.getNodeHeight(host);
@@ -69,7 +69,7 @@ public class TugOperator extends SimpleMCMCOperator {
 
 			return Math.log(range1 * range2 / range3);
 			
-		} else if (i == 1 && rel1.relationship == Relationship.DESCENDANT && rel2.relationship == Relationship.DESCENDANT) {
+		} else if (i == 1 && rel1 == Relationship.DESCENDANT && rel2 == Relationship.DESCENDANT) {
 			final NodeRef host = cophylogenyLikelihood.getStatesForNode(self);
 			final double hostHeight = hostTree.getNodeHeight(host);
 
@@ -14,7 +14,6 @@ import se.cbb.jprime.mcmc.Dependent;
 import se.cbb.jprime.topology.GuestHostMap;
 import se.cbb.jprime.topology.LeafLeafMap;
 import se.cbb.jprime.topology.NamesMap;
-import se.cbb.jprime.topology.RBTree;
 import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Taxa;
@@ -34,6 +33,8 @@ public class CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel extends
 	private final ReconciliationHelper reconciliationHelper;
 	private final RBTreeEpochDiscretiser rbTreeEpochDiscretiser;
 	private final EpochDLTProbs dltProbs;
+	private final JPrIMERBTreeWrapperForBEASTTree jprimeHostRBTree;
+	private final JPrIMERBTreeWrapperForBEASTTree jprimeGuestRBTree;
 
 	public CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel(final String name, final Tree host, final Tree guest,
 			final Parameter duplicationRate, final Parameter lossRate, final Parameter transferRate, final boolean normalize, final Taxa guestTaxa, final String hostAttributeName) {
@@ -46,9 +47,9 @@ public class CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel extends
 		addVariable(lossRate);
 		addVariable(transferRate);
 		
-		final RBTree jprimeHostRBTree = new JPrIMERBTreeWrapperForBEASTTree(host);
+		jprimeHostRBTree = new JPrIMERBTreeWrapperForBEASTTree(host);
 		final NamesMap jprimeHostNamesMap = new JPrIMENamesMapWrapperForBEASTTree(host);
-		final RBTree jprimeGuestRBTree = new JPrIMERBTreeWrapperForBEASTTree(guest);
+		jprimeGuestRBTree = new JPrIMERBTreeWrapperForBEASTTree(guest);
 		final NamesMap jprimeGuestNamesMap = new JPrIMENamesMapWrapperForBEASTTree(guest);
 		rbTreeEpochDiscretiser = new RBTreeEpochDiscretiser(jprimeHostRBTree, jprimeHostNamesMap, new JPrIMETimesMapWrapperForBEASTTree(host));
 		
@@ -95,6 +96,11 @@ public class CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel extends
 	
 	private final Map<Dependent,ChangeInfo> changeInfos = new HashMap<Dependent,ChangeInfo>();
 	
+	/**
+	 * Every evaluation is a full update of JPrIME's dependents. Passing them change infos
+	 * for partial updates, with their caches stored and restored alongside BEAST's, has not
+	 * been checked against JPrIME itself, and a wrong partial update would go unnoticed.
+	 */
 	public double getLogLikelihood() {
 		makeDirty(); // Effectively bypasses its own purpose, but unavoidable (crazy bug)
 		return super.getLogLikelihood();
@@ -102,6 +108,9 @@ public class CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel extends
 	
 	protected double calculateLogLikelihood() {
 		
+		// All wrappers of a tree share its snapshot, which is also stale after a restore
+		jprimeHostRBTree.update();
+		jprimeGuestRBTree.update();
 		if (modelDirty) {
 			rbTreeEpochDiscretiser.cacheAndUpdate(changeInfos, true);
 			reconciliationHelper.cacheAndUpdate(changeInfos, true);
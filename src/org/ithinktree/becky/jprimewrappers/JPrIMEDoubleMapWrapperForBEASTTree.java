@@ -10,10 +10,19 @@ public class JPrIMEDoubleMapWrapperForBEASTTree extends DoubleMap implements
 		WrappedBEASTObject<Tree> {
 
 	private final Tree tree;
+	private final TreeSnapshot snapshot;
 	
 	public JPrIMEDoubleMapWrapperForBEASTTree(Tree tree) {
 		super(tree.getId(), 0);
 		this.tree = tree;
+		snapshot = TreeSnapshot.forTree(tree);
+	}
+	
+	/**
+	 * Copies the tree again if it changed.
+	 */
+	public void update() {
+		snapshot.update();
 	}
 
 	@Override
@@ -46,7 +55,7 @@ public class JPrIMEDoubleMapWrapperForBEASTTree extends DoubleMap implements
 	 * @return the value.
 	 */
 	public double get(int x) {
-		return tree.getBranchLength(tree.getNode(x));
+		return snapshot.branchLengths[x];
 	}
 	
 	/**
@@ -90,11 +99,7 @@ public class JPrIMEDoubleMapWrapperForBEASTTree extends DoubleMap implements
 
 	@Override
 	public String getSampleValue(SamplingMode mode) {
-		int nodeCount = tree.getNodeCount();
-		double[] values = new double[nodeCount];
-		for (int i = 0; i < nodeCount; ++i)
-			values[i] = tree.getBranchLength(tree.getNode(i));
-		return SampleDoubleArray.toString(values);
+		return SampleDoubleArray.toString(snapshot.branchLengths);
 	}
 
 	@Override
@@ -109,16 +114,12 @@ public class JPrIMEDoubleMapWrapperForBEASTTree extends DoubleMap implements
 
 	@Override
 	public int getSize() {
-		return tree.getNodeCount();
+		return snapshot.nodeCount;
 	}
 
 	@Override
 	public String toString() {
-		int nodeCount = tree.getNodeCount();
-		double[] values = new double[nodeCount];
-		for (int i = 0; i < nodeCount; ++i)
-			values[i] = tree.getBranchLength(tree.getNode(i));
-		return Arrays.toString(values);
+		return Arrays.toString(snapshot.branchLengths);
 	}
 	
 }
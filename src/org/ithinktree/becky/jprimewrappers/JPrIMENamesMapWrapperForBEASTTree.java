@@ -1,24 +1,30 @@
 package org.ithinktree.becky.jprimewrappers;
 
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
 
 import se.cbb.jprime.topology.NamesMap;
 import se.cbb.jprime.topology.RootedTree;
-import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
-import dr.evolution.util.Taxon;
 
 public class JPrIMENamesMapWrapperForBEASTTree extends NamesMap implements
 		WrappedBEASTObject<Tree> {
 
 	private final Tree tree;
+	private final TreeSnapshot snapshot;
 	
 	public JPrIMENamesMapWrapperForBEASTTree(Tree tree) {
 		super(tree.getId(), new String[0]);
 		this.tree = tree;
+		snapshot = TreeSnapshot.forTree(tree);
+	}
+	
+	/**
+	 * Copies the tree again if it changed.
+	 */
+	public void update() {
+		snapshot.update();
 	}
 
 	@Override
@@ -62,8 +68,7 @@ public class JPrIMENamesMapWrapperForBEASTTree extends NamesMap implements
 	 * @return the name.
 	 */
 	public String get(int x) {
-		Taxon t = tree.getNodeTaxon(tree.getNode(x));
-		return t != null ? t.getId() : "";
+		return snapshot.names[x];
 	}
 	
 	/**
@@ -102,11 +107,8 @@ public class JPrIMENamesMapWrapperForBEASTTree extends NamesMap implements
 	 * @return the vertex containing the name.
 	 */
 	public int getVertex(String val) {
-		for (int i = 0; i < tree.getExternalNodeCount(); ++i) {
-			NodeRef n = tree.getNode(i);
-			if (tree.getNodeTaxon(n).getId() == val) return n.getNumber();
-		}
-		return RootedTree.NULL;
+		Integer x = snapshot.vertices.get(val);
+		return x != null ? x : RootedTree.NULL;
 	}
 	
 	/**
@@ -115,9 +117,7 @@ public class JPrIMENamesMapWrapperForBEASTTree extends NamesMap implements
 	 * @return the names.
 	 */
 	public Set<String> getNames(boolean excludeBootstrapNames) {
-		Set<String> names = new HashSet<String>(tree.getExternalNodeCount());
-		for (Iterator<Taxon> taxa = tree.iterator(); taxa.hasNext(); names.add(taxa.next().getId()));
-		return names;
+		return new HashSet<String>(snapshot.vertices.keySet());
 	}
 	
 	/**
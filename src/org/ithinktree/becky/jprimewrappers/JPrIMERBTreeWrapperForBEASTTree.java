@@ -1,173 +1,157 @@
 package org.ithinktree.becky.jprimewrappers;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 import se.cbb.jprime.topology.RBTree;
-import se.cbb.jprime.topology.RootedTree;
-import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 
+/**
+ * Answers from a {@link TreeSnapshot} of the tree, which must be brought up
+ * to date with {@link #update()} after the tree changes.
+ * <p/>
+ * The flags of {@link #getAncestors(int, boolean)} and
+ * {@link #getDescendantLeaves(int, boolean)} keep the meaning they have always
+ * had here, which is not that of {@link #getDescendants(int, boolean)}: the
+ * ancestors include the vertex itself if the flag is set, and the descendant
+ * leaves are preceded by the vertex itself, leaf or not, unless it is set.
+ */
 public class JPrIMERBTreeWrapperForBEASTTree extends RBTree implements WrappedBEASTObject<Tree> {
 
 	private final Tree tree;
+	private final TreeSnapshot snapshot;
 	
 	public JPrIMERBTreeWrapperForBEASTTree(Tree tree) {
 		super(tree.getId(), 1);
 		this.tree = tree;
+		snapshot = TreeSnapshot.forTree(tree);
+		root = getRoot();
+	}
+	
+	/**
+	 * Copies the tree again if it changed.
+	 */
+	public void update() {
+		snapshot.update();
 		root = getRoot();
 	}
 
 	@Override
 	public int getLeftChild(int i) {
-		return tree.getChild(tree.getNode(i), 0).getNumber();
+		return snapshot.leftChildren[i];
 	}
 
 	@Override
 	public int getRightChild(int i) {
-		return tree.getChild(tree.getNode(i), 1).getNumber();
+		return snapshot.rightChildren[i];
 	}
 
 	@Override
 	public int getSibling(int i) {
-		NodeRef n = tree.getNode(i);
-		if (tree.isRoot(n)) return RootedTree.NULL;
-		NodeRef p = tree.getParent(n);
-		int c1 = tree.getChild(p, 0).getNumber();
-		int c2 = tree.getChild(p, 1).getNumber();
-		return n.getNumber() == c2 ? c1 : c2;
+		final int p = snapshot.parents[i];
+		if (p == NULL) return NULL;
+		final int c1 = snapshot.leftChildren[p];
+		return i == c1 ? snapshot.rightChildren[p] : c1;
 	}
 
 	@Override
 	public List<Integer> getAncestors(int i, boolean b) {
-		List<Integer> ancestors = new ArrayList<Integer>();
-		if (b) ancestors.add(i);
-		for (NodeRef n = tree.getParent(tree.getNode(i)); n != null; n = tree.getParent(n))
-			ancestors.add(n.getNumber());
-		return ancestors;
+		return snapshot.getAncestors(i, b);
 	}
 
 	@Override
 	public List<Integer> getChildren(int i) {
-		NodeRef n = tree.getNode(i);
-		int childCount = tree.getChildCount(n);
-		List<Integer> children = new ArrayList<Integer>(childCount);
-		for (int j = 0; j < childCount; ++j)
-			children.add(tree.getChild(n, j).getNumber());
-		return children;
+		return snapshot.getChildren(i);
 	}
 
 	@Override
 	public List<Integer> getDescendantLeaves(int i, boolean b) {
-		List<Integer> descendants = new ArrayList<Integer>();
-		if (!b) descendants.add(i);
-		for (NodeRef n : Tree.Utils.getExternalNodes(tree, tree.getNode(i)))
-			descendants.add(n.getNumber());
-		return descendants;
+		return snapshot.getDescendantLeaves(i, b);
 	}
 
 	@Override
 	public List<Integer> getDescendants(int i, boolean b) {
-		List<Integer> descendants = new ArrayList<Integer>();
-		getDescendants(tree.getNode(i), descendants);
-		if (b) descendants.remove(0);
-		return descendants;
+		return snapshot.getDescendants(i, b);
 	}
 
-	private void getDescendants(NodeRef n, List<Integer> descendants) {
-		descendants.add(n.getNumber());
-		if (tree.isExternal(n)) return;
-		for (int i = 0; i < tree.getChildCount(n); ++i) getDescendants(tree.getChild(n, i), descendants);
-	}
-	
 	@Override
 	public int getHeight() {
-		return getHeight(tree.getRoot().getNumber());
+		return snapshot.arcHeights[snapshot.root];
 	}
 
 	@Override
 	public int getHeight(int i) {
-		throw new UnsupportedOperationException();
+		return snapshot.arcHeights[i];
 	}
 
 	@Override
 	public int getLCA(int i, int j) {
-		return Tree.Utils.getCommonAncestor(tree, tree.getNode(i), tree.getNode(j)).getNumber();
+		return snapshot.getLCA(i, j);
 	}
 
 	@Override
 	public List<Integer> getLeaves() {
-		int externalNodeCount = tree.getExternalNodeCount();
-		List<Integer> leaves = new ArrayList<Integer>(externalNodeCount);
-		for (int i = 0; i < externalNodeCount; ++i)
-			leaves.add(tree.getExternalNode(i).getNumber());
-		return leaves;
+		return snapshot.getLeaves();
 	}
 
 	@Override
 	public int getNoOfAncestors(int i, boolean b) {
-		return getAncestors(i, b).size();
+		return b ? snapshot.depths[i] + 1 : snapshot.depths[i];
 	}
 
 	@Override
 	public int getNoOfChildren(int i) {
-		return tree.getChildCount(tree.getNode(i));
+		return snapshot.getChildren(i).size();
 	}
 
 	@Override
 	public int getNoOfDescendantLeaves(int i, boolean b) {
-		return getDescendantLeaves(i, b).size();
+		return b ? snapshot.leafCounts[i] : snapshot.leafCounts[i] + 1;
 	}
 
 	@Override
 	public int getNoOfDescendants(int i, boolean b) {
-		return getDescendants(i, b).size();
+		return b ? snapshot.subtreeSizes[i] - 1 : snapshot.subtreeSizes[i];
 	}
 
 	@Override
 	public int getNoOfLeaves() {
-		return tree.getExternalNodeCount();
+		return snapshot.getLeaves().size();
 	}
 
 	@Override
 	public int getParent(int i) {
-		NodeRef n = tree.getParent(tree.getNode(i));
-		return n != null ? n.getNumber() : RootedTree.NULL;
+		return snapshot.parents[i];
 	}
 
 	@Override
 	public int getRoot() {
-		return tree.getRoot().getNumber();
+		return snapshot.root;
 	}
 
 	@Override
 	public boolean isLeaf(int i) {
-		return tree.isExternal(tree.getNode(i));
+		return snapshot.isLeaf(i);
 	}
 
 	@Override
 	public boolean isRoot(int i) {
-		return tree.isRoot(tree.getNode(i));
+		return i == snapshot.root;
 	}
 
 	@Override
 	public List<Integer> getTopologicalOrdering(int i) {
-		throw new UnsupportedOperationException();
+		return snapshot.getDescendants(i, false);
 	}
 
 	@Override
 	public boolean hasArc(int i, int j) {
-		return getParent(i) == j;
+		return snapshot.parents[i] == j;
 	}
 
 	@Override
 	public boolean hasPath(int i, int j) {
-		do {
-			j = getParent(j);
-			if (i == j) return true;
-		} while (j != NULL);
-		return false;
+		return snapshot.isProperAncestor(i, j);
 	}
 
 	@Override
@@ -182,7 +166,7 @@ public class JPrIMERBTreeWrapperForBEASTTree extends RBTree implements WrappedBE
 
 	@Override
 	public int getNoOfVertices() {
-		return tree.getNodeCount();
+		return snapshot.nodeCount;
 	}
 
 	@Override
@@ -1,6 +1,5 @@
 package org.ithinktree.becky.jprimewrappers;
 
-import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import se.cbb.jprime.topology.DoubleMap;
 import se.cbb.jprime.topology.TimesMap;
@@ -9,10 +8,19 @@ public class JPrIMETimesMapWrapperForBEASTTree extends TimesMap implements
 		WrappedBEASTObject<Tree> {
 
 	private final Tree tree;
+	private final TreeSnapshot snapshot;
 	
 	public JPrIMETimesMapWrapperForBEASTTree(Tree tree) {
 		super(tree.getId(), new double[0], new double[0]);
 		this.tree = tree;
+		snapshot = TreeSnapshot.forTree(tree);
+	}
+	
+	/**
+	 * Copies the tree again if it changed.
+	 */
+	public void update() {
+		snapshot.update();
 	}
 
 	@Override
@@ -37,8 +45,7 @@ public class JPrIMETimesMapWrapperForBEASTTree extends TimesMap implements
 	 * @return the arc time.
 	 */
 	public double getArcTime(int x) {
-		NodeRef n = tree.getNode(x);
-		return tree.isRoot(n) ? tree.getNodeHeight(n) : tree.getBranchLength(n);
+		return x == snapshot.root ? snapshot.heights[x] : snapshot.branchLengths[x];
 	}
 
 	
@@ -50,7 +57,7 @@ public class JPrIMETimesMapWrapperForBEASTTree extends TimesMap implements
 	 */
 	@Override
 	public double get(int x) {
-		return tree.getNodeHeight(tree.getNode(x));
+		return snapshot.heights[x];
 	}
 	
 	/**
@@ -92,11 +99,7 @@ public class JPrIMETimesMapWrapperForBEASTTree extends TimesMap implements
 	 * @return the total timespan.
 	 */
 	public double getTotalArcTime() {
-		double sum = 0.0;
-		for (int i = 0; i < tree.getNodeCount(); ++i) {
-			sum += tree.getBranchLength(tree.getNode(i));
-		}
-		return sum;
+		return snapshot.totalBranchLength;
 	}
 	
 	@Override
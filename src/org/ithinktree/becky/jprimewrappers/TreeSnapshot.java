@@ -0,0 +1,240 @@
+package org.ithinktree.becky.jprimewrappers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.ithinktree.becky.HostTreeIndex;
+
+import se.cbb.jprime.topology.RootedTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+
+/**
+ * Topology, times and names of a BEAST tree copied into flat arrays, from which
+ * the JPrIME wrappers of that tree answer their queries.
+ * <p/>
+ * A snapshot is shared by all wrappers of a tree through {@link #forTree(Tree)}
+ * and is only brought up to date by {@link #update()}, which is cheap when the
+ * tree has not changed. Subtrees are contiguous in the preorder, so descendants
+ * and the leaves below a vertex are views of two shared lists.
+ *
+ * @author Arman D. Bilge
+ *
+ */
+final class TreeSnapshot {
+
+	private static final Map<Tree,TreeSnapshot> snapshots = new WeakHashMap<Tree,TreeSnapshot>();
+
+	/**
+	 * @param tree the tree
+	 * @return the up-to-date snapshot shared by all wrappers of the tree
+	 */
+	static TreeSnapshot forTree(final Tree tree) {
+		TreeSnapshot snapshot;
+		synchronized (snapshots) {
+			snapshot = snapshots.get(tree);
+			if (snapshot == null) {
+				snapshot = new TreeSnapshot(tree);
+				snapshots.put(tree, snapshot);
+			}
+		}
+		snapshot.update();
+		return snapshot;
+	}
+
+	private final Tree tree;
+	private HostTreeIndex index = null;
+	private int version = -1;
+
+	int nodeCount;
+	int root;
+	int[] parents;
+	int[] leftChildren;
+	int[] rightChildren;
+	double[] heights;
+	double[] branchLengths;
+	double totalBranchLength;
+	// Number of arcs from the root, and on the longest path down to a leaf
+	int[] depths;
+	int[] arcHeights;
+	int[] preorderPositions;
+	int[] subtreeSizes;
+	int[] firstLeaves;
+	int[] leafCounts;
+	String[] names;
+	final Map<String,Integer> vertices = new HashMap<String,Integer>();
+
+	private List<Integer> preorder;
+	private List<Integer> leaves;
+	private List<List<Integer>> children;
+
+	private TreeSnapshot(final Tree tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * Copies the tree again if it changed since the last update.
+	 */
+	void update() {
+		final HostTreeIndex index = HostTreeIndex.forTree(tree);
+		if (index == this.index && index.getVersion() == version)
+			return;
+		synchronized (this) {
+			if (index != this.index || index.getVersion() != version) {
+				build(index);
+				this.index = index;
+				version = index.getVersion();
+			}
+		}
+	}
+
+	private void build(final HostTreeIndex index) {
+
+		final int n = index.getNodeCount();
+		if (parents == null || parents.length != n) {
+			parents = new int[n];
+			leftChildren = new int[n];
+			rightChildren = new int[n];
+			heights = new double[n];
+			branchLengths = new double[n];
+			depths = new int[n];
+			arcHeights = new int[n];
+			preorderPositions = new int[n];
+			subtreeSizes = new int[n];
+			firstLeaves = new int[n];
+			leafCounts = new int[n];
+			names = new String[n];
+		}
+		nodeCount = n;
+		root = index.getRoot();
+
+		final Integer[] preorderNodes = new Integer[n];
+		final List<Integer> leafNodes = new ArrayList<Integer>();
+		final List<List<Integer>> childLists = new ArrayList<List<Integer>>(n);
+		vertices.clear();
+		for (int i = 0; i < n; ++i) {
+			final int parent = index.getParent(i);
+			parents[i] = parent == HostTreeIndex.NO_NODE ? RootedTree.NULL : parent;
+			heights[i] = index.getHeight(i);
+			final int childCount = index.getChildCount(i);
+			leftChildren[i] = childCount > 0 ? index.getChild(i, 0) : RootedTree.NULL;
+			rightChildren[i] = childCount > 1 ? index.getChild(i, 1) : RootedTree.NULL;
+			final Integer[] childList = new Integer[childCount];
+			for (int j = 0; j < childCount; ++j)
+				childList[j] = index.getChild(i, j);
+			childLists.add(Collections.unmodifiableList(Arrays.asList(childList)));
+			final Taxon taxon = tree.getNodeTaxon(index.getNode(i));
+			names[i] = taxon != null ? taxon.getId() : "";
+			if (taxon != null) vertices.put(names[i], i);
+		}
+
+		totalBranchLength = 0.0;
+		for (int i = 0; i < n; ++i) {
+			final int node = index.getPreorderNode(i);
+			preorderNodes[i] = node;
+			preorderPositions[node] = i;
+			final int parent = parents[node];
+			depths[node] = parent == RootedTree.NULL ? 0 : depths[parent] + 1;
+			branchLengths[node] = parent == RootedTree.NULL ? 0.0 : heights[parent] - heights[node];
+			totalBranchLength += branchLengths[node];
+			if (index.isExternal(node)) {
+				firstLeaves[node] = leafNodes.size();
+				leafNodes.add(node);
+			}
+		}
+
+		// Children come after their parents in the preorder
+		for (int i = n - 1; i >= 0; --i) {
+			final int node = preorderNodes[i];
+			if (index.isExternal(node)) {
+				subtreeSizes[node] = 1;
+				leafCounts[node] = 1;
+				arcHeights[node] = 0;
+			} else {
+				int size = 1;
+				int leafCount = 0;
+				int arcHeight = 0;
+				for (int j = 0; j < index.getChildCount(node); ++j) {
+					final int child = index.getChild(node, j);
+					size += subtreeSizes[child];
+					leafCount += leafCounts[child];
+					arcHeight = Math.max(arcHeight, arcHeights[child] + 1);
+				}
+				subtreeSizes[node] = size;
+				leafCounts[node] = leafCount;
+				arcHeights[node] = arcHeight;
+				firstLeaves[node] = firstLeaves[index.getChild(node, 0)];
+			}
+		}
+
+		preorder = Collections.unmodifiableList(Arrays.asList(preorderNodes));
+		leaves = Collections.unmodifiableList(leafNodes);
+		children = childLists;
+
+	}
+
+	boolean isLeaf(final int x) {
+		return leftChildren[x] == RootedTree.NULL;
+	}
+
+	/**
+	 * @return whether x is a proper ancestor of y
+	 */
+	boolean isProperAncestor(final int x, final int y) {
+		final int position = preorderPositions[y] - preorderPositions[x];
+		return position > 0 && position < subtreeSizes[x];
+	}
+
+	int getLCA(int x, final int y) {
+		while (x != y && !isProperAncestor(x, y))
+			x = parents[x];
+		return x;
+	}
+
+	List<Integer> getChildren(final int x) {
+		return children.get(x);
+	}
+
+	/**
+	 * @return the subtree of x in preorder, which is a topological ordering
+	 */
+	List<Integer> getDescendants(final int x, final boolean properOnly) {
+		final int first = preorderPositions[x];
+		return preorder.subList(properOnly ? first + 1 : first, first + subtreeSizes[x]);
+	}
+
+	/**
+	 * @return the vertex itself unless b, followed by the leaves of its subtree,
+	 * so that a leaf is listed twice unless b
+	 */
+	List<Integer> getDescendantLeaves(final int x, final boolean b) {
+		final List<Integer> subtreeLeaves = leaves.subList(firstLeaves[x], firstLeaves[x] + leafCounts[x]);
+		if (b)
+			return subtreeLeaves;
+		final List<Integer> descendantLeaves = new ArrayList<Integer>(leafCounts[x] + 1);
+		descendantLeaves.add(x);
+		descendantLeaves.addAll(subtreeLeaves);
+		return descendantLeaves;
+	}
+
+	List<Integer> getLeaves() {
+		return leaves;
+	}
+
+	/**
+	 * @return the ancestors of x from its parent up, after x itself if b
+	 */
+	List<Integer> getAncestors(final int x, final boolean b) {
+		final List<Integer> ancestors = new ArrayList<Integer>(depths[x] + 1);
+		if (b) ancestors.add(x);
+		for (int a = parents[x]; a != RootedTree.NULL; a = parents[a])
+			ancestors.add(a);
+		return ancestors;
+	}
+
+}
@@ -10,16 +10,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.ithinktree.becky.CophylogenyLikelihood;
-import org.ithinktree.becky.CophylogenyModel;
-import org.ithinktree.becky.CophylogenyModel.Utils;
+import org.ithinktree.becky.HostEpochIndex;
+import org.ithinktree.becky.HostTreeIndex;
 import org.ithinktree.becky.NodeRefProvider;
 import org.ithinktree.becky.SimpleCophylogenyModel;
 import org.ithinktree.becky.SimpleCophylogenyModel.EventType;
@@ -68,11 +66,15 @@ public class CoevolutionSimulator {
 			cophylogenyLikelihood.setStatesForNode(node, hostNode);
 		}
 
+		final HostTreeIndex hostTreeIndex = HostTreeIndex.forTree(hostTree);
+		final HostEpochIndex hostEpochs = hostTreeIndex.getEpochs();
 		for (int i = 0; i < symbiontTree.getInternalNodeCount(); ++i) {
 		    final NodeRef node = symbiontTree.getInternalNode(i);
-		    final List<NodeRef> contemporaneous = new ArrayList<NodeRef>(CophylogenyModel.Utils.getContemporaneousLineages(hostTree, symbiontTree.getNodeHeight(node)));
-		    if (samplingNoHost) contemporaneous.add(null);
-		    cophylogenyLikelihood.setStatesForNode(node, contemporaneous.get(MathUtils.nextInt(contemporaneous.size())));
+		    final int epoch = hostEpochs.getEpoch(symbiontTree.getNodeHeight(node));
+		    final int count = hostEpochs.getLineageCount(epoch);
+		    // The extra draw past the contemporaneous lineages stands for no host
+		    final int j = MathUtils.nextInt(samplingNoHost ? count + 1 : count);
+		    cophylogenyLikelihood.setStatesForNode(node, j < count ? hostTreeIndex.getNode(hostEpochs.getLineages()[hostEpochs.getLineagesStart(epoch) + j]) : null);
 		}
 		
 		cophylogenyLikelihood.setOriginHeight(hostTree.getNodeHeight(hostTree.getRoot()));
@@ -265,10 +267,8 @@ public class CoevolutionSimulator {
 				NodeRef newHost;
 				node.setAttribute(COEVOLUTIONARY_EVENT, EventType.HOST_SWITCH);
 				if (!hostTree.isRoot(hostNode)) { // Can't host-switch if at the root!
-					List<NodeRef> potentialNewHosts = new ArrayList<NodeRef>(Utils.getContemporaneousLineages(hostTree, eventHeight));
-					if (!potentialNewHosts.remove(hostNode)) throw new RuntimeException("Contemporaneous lineages not working.");
-					newHost = potentialNewHosts.get(MathUtils.nextInt(potentialNewHosts.size()));
-					logLikelihood += Math.log(1 / potentialNewHosts.size());
+					newHost = drawNewHost(hostTree, hostNode, eventHeight);
+					logLikelihood += Math.log(1 / (HostTreeIndex.forTree(hostTree).getEpochs().getLineageCountAtHeight(eventHeight) - 1));
 					child1 = simulateCoevolution(hostTree, newHost,
 							eventHeight, rate, duplicationRate, hostSwitchRate,
 							lossRate, isRelaxed, stdev);
@@ -301,6 +301,31 @@ public class CoevolutionSimulator {
 		return node;
 	}
 
+	/**
+	 * Draws uniformly from the host lineages other than the current one alive at a height.
+	 * @param hostTree
+	 * @param hostNode the current host
+	 * @param height
+	 * @return the new host
+	 */
+	private static NodeRef drawNewHost(final Tree hostTree, final NodeRef hostNode, final double height) {
+		final HostTreeIndex index = HostTreeIndex.forTree(hostTree);
+		final HostEpochIndex epochs = index.getEpochs();
+		final int epoch = epochs.getEpoch(height);
+		if (epoch < 0 || !index.isContemporaneous(hostNode.getNumber(), height)) throw new RuntimeException("Contemporaneous lineages not working.");
+		final int[] lineages = epochs.getLineages();
+		final int start = epochs.getLineagesStart(epoch);
+		int j = start + MathUtils.nextInt(epochs.getLineagesEnd(epoch) - start - 1);
+		// Skip over the current host, as if it had been removed from the list
+		for (int k = start; k <= j; ++k) {
+			if (lineages[k] == hostNode.getNumber()) {
+				++j;
+				break;
+			}
+		}
+		return index.getNode(lineages[j]);
+	}
+
 	private SimpleNode simulateCoevolution(final Tree hostTree, final NodeRef hostNode, final double height, final double rate, final double duplicationRate, final double hostSwitchRate, final double lossRate) {
 		
 		final SimpleNode node = new SimpleNode();
@@ -330,9 +355,7 @@ public class CoevolutionSimulator {
 			case 1:
 				// Host-switch event
 				if (!hostTree.isRoot(hostNode)) { // Can't host-switch if at the root!
-					List<NodeRef> potentialNewHosts = new ArrayList<NodeRef>(Utils.getContemporaneousLineages(hostTree, eventHeight));
-					if (!potentialNewHosts.remove(hostNode)) throw new RuntimeException("Contemporaneous lineages not working.");
-					NodeRef newHost = potentialNewHosts.get(MathUtils.nextInt(potentialNewHosts.size()));
+					NodeRef newHost = drawNewHost(hostTree, hostNode, eventHeight);
 					child1 = simulateCoevolution(hostTree, newHost, eventHeight, rate, duplicationRate, hostSwitchRate, lossRate);
 				} else {
 					child1 = null; // Like a host-switch to a totally different tree that we're not following
@@ -9,10 +9,13 @@ package org.ithinktree.becky.xml;
 
 import org.ithinktree.becky.CophylogenyLikelihood;
 import org.ithinktree.becky.CophylogenyModel;
+import org.ithinktree.becky.EmpiricalHostTreeModel;
+import org.ithinktree.becky.EpochDLTRSModel;
 
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.Tree;
 import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
 import dr.inference.model.Parameter;
 import dr.xml.AbstractXMLObjectParser;
 import dr.xml.AttributeRule;
@@ -35,6 +38,8 @@ public class CophylogenyLikelihoodParser extends AbstractXMLObjectParser {
 	public static final String SYMBIONT_TREE = "symbiontTree";
 	public static final String CLOCK_MODEL = "clockModel";
 	public static final String RECONSTRUCTION_TAG_NAME = "stateTagName";
+	public static final String THREADS = "threads";
+	public static final String GRAIN_SIZE = "grainSize";
 
 	
 	@Override
@@ -52,15 +57,31 @@ public class CophylogenyLikelihoodParser extends AbstractXMLObjectParser {
 				
 		XMLObject cxo = xo.getChild(HOST_TREE);
 		final Tree hostTree = (Tree) cxo.getChild(Tree.class);
+		// Swapping trees would strand the sampled hosts of the internal nodes, so nearly every swap would be rejected
+		if (hostTree instanceof EmpiricalHostTreeModel)
+			throw new XMLParseException("An empirical host tree set requires a marginalCophylogenyLikelihood.");
 		
 		cxo = xo.getChild(SYMBIONT_TREE);
 		final MutableTree symbiontTree = (MutableTree) cxo.getChild(Tree.class);
 		
 		final BranchRateModel branchRateModel = (BranchRateModel) xo.getChild(BranchRateModel.class);
+		// Its rates are per unit of host time, for every branch alike
+		if (cophylogenyModel instanceof EpochDLTRSModel && !(branchRateModel instanceof StrictClockBranchRates && branchRateModel.getBranchRate(symbiontTree, symbiontTree.getRoot()) == 1.0))
+			throw new XMLParseException("The epoch DLTRS model requires a strict clock with a rate of one.");
 		
 		final Parameter origin = (Parameter) xo.getChild(Parameter.class);
 		
-		return new CophylogenyLikelihood(hostTree, symbiontTree, cophylogenyModel, branchRateModel, origin, reconstructionTagName, xo.getId());
+		final CophylogenyLikelihood cophylogenyLikelihood = new CophylogenyLikelihood(hostTree, symbiontTree, cophylogenyModel, branchRateModel, origin, reconstructionTagName, xo.getId());
+		
+		if (xo.hasAttribute(THREADS)) {
+			final int threads = xo.getIntegerAttribute(THREADS);
+			final int grainSize = xo.hasAttribute(GRAIN_SIZE) ? xo.getIntegerAttribute(GRAIN_SIZE) : CophylogenyLikelihood.DEFAULT_GRAIN_SIZE;
+			if (threads < 1 || grainSize < 1)
+				throw new XMLParseException("The " + THREADS + " and " + GRAIN_SIZE + " attributes must be positive.");
+			cophylogenyLikelihood.setParallelism(threads, grainSize);
+		}
+		
+		return cophylogenyLikelihood;
 	}
 
 
@@ -84,6 +105,8 @@ public class CophylogenyLikelihoodParser extends AbstractXMLObjectParser {
 
 	private final XMLSyntaxRule[] rules = {
 			AttributeRule.newStringRule(RECONSTRUCTION_TAG_NAME),
+			AttributeRule.newIntegerRule(THREADS, true),
+			AttributeRule.newIntegerRule(GRAIN_SIZE, true),
 			new ElementRule(CophylogenyModel.class),
 			new ElementRule(HOST_TREE, new XMLSyntaxRule[]{
 					new ElementRule(Tree.class)
@@ -0,0 +1,124 @@
+/**
+ * EmpiricalHostTreeModelParser.java
+ * 
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ * 
+ */
+
+package org.ithinktree.becky.xml;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ithinktree.becky.EmpiricalHostTreeModel;
+
+import dr.evolution.io.Importer.ImportException;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.Tree;
+import dr.inference.model.Parameter;
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.AttributeRule;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * Parser for the EmpiricalHostTreeModel Class.
+ * 
+ * @author Arman D. Bilge
+ *
+ */
+public class EmpiricalHostTreeModelParser extends AbstractXMLObjectParser {
+
+	public static final String EMPIRICAL_HOST_TREE_MODEL = "empiricalHostTreeModel";
+	public static final String FILE_NAME = "fileName";
+	public static final String BURNIN = "burnin";
+	public static final String CACHE_SIZE = "cacheSize";
+	public static final String TREE_INDEX = "treeIndex";
+	
+	@Override
+	public String getParserName() {
+		return EMPIRICAL_HOST_TREE_MODEL;
+	}
+
+	@Override
+	public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+		
+		final String fileName = xo.getStringAttribute(FILE_NAME);
+		final int burnin = xo.hasAttribute(BURNIN) ? xo.getIntegerAttribute(BURNIN) : 0;
+		final int cacheSize = xo.hasAttribute(CACHE_SIZE) ? xo.getIntegerAttribute(CACHE_SIZE) : EmpiricalHostTreeModel.DEFAULT_CACHE_SIZE;
+		if (cacheSize < 1)
+			throw new XMLParseException("The " + CACHE_SIZE + " attribute must be positive.");
+		
+		final List<Tree> trees = new ArrayList<Tree>();
+		try {
+			final FileReader reader = new FileReader(fileName);
+			try {
+				final TreeImporter importer = new NexusImporter(reader);
+				for (int i = 0; importer.hasTree(); ++i) {
+					final Tree tree = importer.importNextTree();
+					if (i >= burnin)
+						trees.add(tree);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new XMLParseException("Could not read the host trees from " + fileName + ": " + e.getMessage());
+		} catch (ImportException e) {
+			throw new XMLParseException("Could not read the host trees from " + fileName + ": " + e.getMessage());
+		}
+		if (trees.isEmpty())
+			throw new XMLParseException("No host trees remain in " + fileName + " after the burnin.");
+		
+		final Parameter treeIndex;
+		if (xo.hasChildNamed(TREE_INDEX)) {
+			treeIndex = (Parameter) xo.getChild(TREE_INDEX).getChild(Parameter.class);
+		} else {
+			treeIndex = new Parameter.Default(0.0);
+			treeIndex.setId(xo.getId() + "." + TREE_INDEX);
+		}
+		final int index = (int) treeIndex.getParameterValue(0);
+		if (index < 0 || index >= trees.size())
+			throw new XMLParseException("The " + TREE_INDEX + " must lie between 0 and " + (trees.size() - 1) + ".");
+		
+		final EmpiricalHostTreeModel hostTree;
+		try {
+			hostTree = new EmpiricalHostTreeModel(trees.toArray(new Tree[trees.size()]), treeIndex, cacheSize);
+		} catch (IllegalArgumentException e) {
+			throw new XMLParseException(e.getMessage());
+		}
+		hostTree.setId(xo.getId());
+		return hostTree;
+	}
+
+	@Override
+	public XMLSyntaxRule[] getSyntaxRules() {
+		return rules;
+	}
+
+	@Override
+	public String getParserDescription() {
+		return "This element represents a host tree drawn from an empirical set of trees read from a Nexus file, for a marginalCophylogenyLikelihood.";
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Class getReturnType() {
+		return EmpiricalHostTreeModel.class;
+	}
+
+	private final XMLSyntaxRule[] rules = {
+			AttributeRule.newStringRule(FILE_NAME),
+			AttributeRule.newIntegerRule(BURNIN, true),
+			AttributeRule.newIntegerRule(CACHE_SIZE, true),
+			new ElementRule(TREE_INDEX, new XMLSyntaxRule[]{
+					new ElementRule(Parameter.class)
+			}, true)
+	};
+	
+}
@@ -0,0 +1,63 @@
+/**
+ * EmpiricalHostTreeOperatorParser.java
+ * 
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ * 
+ */
+package org.ithinktree.becky.xml;
+
+import org.ithinktree.becky.EmpiricalHostTreeModel;
+import org.ithinktree.becky.EmpiricalHostTreeOperator;
+
+import dr.inference.operators.MCMCOperator;
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.AttributeRule;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+public class EmpiricalHostTreeOperatorParser extends AbstractXMLObjectParser {
+	
+	public static final String EMPIRICAL_HOST_TREE_OPERATOR = "empiricalHostTreeOperator";
+
+	@Override
+	public String getParserName() {
+		return EMPIRICAL_HOST_TREE_OPERATOR;
+	}
+
+	@Override
+	public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+		
+		final double weight = xo.getDoubleAttribute(MCMCOperator.WEIGHT);
+		final EmpiricalHostTreeModel hostTree = (EmpiricalHostTreeModel) xo.getChild(EmpiricalHostTreeModel.class);
+		
+		return new EmpiricalHostTreeOperator(hostTree, weight);
+	}
+
+	@Override
+	public XMLSyntaxRule[] getSyntaxRules() {
+		return rules;
+	}
+
+	@Override
+	public String getParserDescription() {
+		return "This operator proposes another tree of an empirical host tree set, uniformly at random.";
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Class getReturnType() {
+		return EmpiricalHostTreeOperator.class;
+	}
+
+	private final XMLSyntaxRule[] rules = {
+			AttributeRule.newDoubleRule(MCMCOperator.WEIGHT),
+			new ElementRule(EmpiricalHostTreeModel.class)
+	};
+
+}
@@ -0,0 +1,98 @@
+/**
+ * EpochDLTRSModelParser.java
+ * 
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ * 
+ */
+package org.ithinktree.becky.xml;
+
+import org.ithinktree.becky.EpochDLTRSModel;
+
+import dr.evolution.util.Units.Type;
+import dr.evoxml.util.XMLUnits;
+import dr.evoxml.util.XMLUnits.Utils;
+import dr.inference.model.Parameter;
+import dr.xml.*;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+public class EpochDLTRSModelParser extends AbstractXMLObjectParser {
+
+	public static final String EPOCH_DLTRS_MODEL = "epochDLTRSModel";
+	public static final String DUPLICATION_RATE = SimpleCophylogenyModelParser.DUPLICATION_RATE;
+	public static final String HOST_SWITCH_RATE = SimpleCophylogenyModelParser.HOST_SWITCH_RATE;
+	public static final String LOSS_RATE = SimpleCophylogenyModelParser.LOSS_RATE;
+	public static final String MINIMUM_SLICES = "minimumSlices";
+	public static final String TIMESTEP = "timestep";
+	public static final String NORMALIZE = "normalize";
+	public static final String THREADS = "threads";
+
+	@Override
+	public String getParserName() {
+		return EPOCH_DLTRS_MODEL;
+	}
+
+	@Override
+	public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+		
+		final Type units = Utils.getUnitsAttr(xo);
+		
+		final int minimumSlices = xo.hasAttribute(MINIMUM_SLICES) ? xo.getIntegerAttribute(MINIMUM_SLICES) : EpochDLTRSModel.DEFAULT_MINIMUM_SLICES;
+		if (minimumSlices < 1)
+			throw new XMLParseException("The minimum number of slices must be positive.");
+		final double timestep = xo.hasAttribute(TIMESTEP) ? xo.getDoubleAttribute(TIMESTEP) : EpochDLTRSModel.DEFAULT_TIMESTEP;
+		if (!(timestep > 0.0))
+			throw new XMLParseException("The timestep must be positive.");
+		final boolean normalize = xo.hasAttribute(NORMALIZE) && xo.getBooleanAttribute(NORMALIZE);
+		final int threads = xo.hasAttribute(THREADS) ? xo.getIntegerAttribute(THREADS) : 1;
+		if (threads < 1)
+			throw new XMLParseException("The number of threads must be positive.");
+		
+		XMLObject cxo = xo.getChild(DUPLICATION_RATE);
+		Parameter drParameter = (Parameter) cxo.getChild(Parameter.class);
+		
+		cxo = xo.getChild(HOST_SWITCH_RATE);
+		Parameter hsrParameter = (Parameter) cxo.getChild(Parameter.class);
+		
+		cxo = xo.getChild(LOSS_RATE);
+		Parameter lrParameter = (Parameter) cxo.getChild(Parameter.class);
+		
+		return new EpochDLTRSModel(drParameter, hsrParameter, lrParameter, minimumSlices, timestep, normalize, threads, units);
+	}
+
+	@Override
+	public XMLSyntaxRule[] getSyntaxRules() {
+		return rules;
+	}
+
+	@Override
+	public String getParserDescription() {
+		return "The duplication-loss-transfer model of DLTRS, calculated over an epoch discretisation of the host tree; it requires a strict clock with a rate of one.";
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Class getReturnType() {
+		return EpochDLTRSModel.class;
+	}
+
+	private final XMLSyntaxRule[] rules = {
+			new ElementRule(DUPLICATION_RATE, new XMLSyntaxRule[]{
+					new ElementRule(Parameter.class)
+			}),
+			new ElementRule(HOST_SWITCH_RATE, new XMLSyntaxRule[]{
+					new ElementRule(Parameter.class)
+			}),
+			new ElementRule(LOSS_RATE, new XMLSyntaxRule[]{
+					new ElementRule(Parameter.class)
+			}),
+			XMLUnits.SYNTAX_RULES[0],
+			AttributeRule.newIntegerRule(MINIMUM_SLICES, true),
+			AttributeRule.newDoubleRule(TIMESTEP, true),
+			AttributeRule.newBooleanRule(NORMALIZE, true),
+			AttributeRule.newIntegerRule(THREADS, true)
+	};
+	
+}
@@ -0,0 +1,107 @@
+/**
+ * MarginalCophylogenyLikelihoodParser.java
+ * 
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ * 
+ */
+
+package org.ithinktree.becky.xml;
+
+import org.ithinktree.becky.MarginalCophylogenyLikelihood;
+import org.ithinktree.becky.SimpleCophylogenyModel;
+
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.inference.model.Parameter;
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.AttributeRule;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * Parser for the MarginalCophylogenyLikelihood Class.
+ * 
+ * @author Arman D. Bilge
+ *
+ */
+public class MarginalCophylogenyLikelihoodParser extends AbstractXMLObjectParser {
+
+	public static final String MARGINAL_COPHYLOGENY_LIKELIHOOD = "marginalCophylogenyLikelihood";
+	public static final String HOST_TREE = "hostTree";
+	public static final String SYMBIONT_TREE = "symbiontTree";
+	public static final String HOST_ATTRIBUTE_NAME = "hostAttributeName";
+	public static final String RECONSTRUCTION_TAG_NAME = CophylogenyLikelihoodParser.RECONSTRUCTION_TAG_NAME;
+	
+	@Override
+	public String getParserName() {
+		return MARGINAL_COPHYLOGENY_LIKELIHOOD;
+	}
+
+	@Override
+	public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+		
+		final String hostAttributeName = xo.getStringAttribute(HOST_ATTRIBUTE_NAME);
+		final String reconstructionTagName = xo.getStringAttribute(RECONSTRUCTION_TAG_NAME);
+		
+		final SimpleCophylogenyModel cophylogenyModel = (SimpleCophylogenyModel) xo.getChild(SimpleCophylogenyModel.class);
+		
+		XMLObject cxo = xo.getChild(HOST_TREE);
+		final Tree hostTree = (Tree) cxo.getChild(Tree.class);
+		
+		cxo = xo.getChild(SYMBIONT_TREE);
+		final MutableTree symbiontTree = (MutableTree) cxo.getChild(MutableTree.class);
+		
+		final BranchRateModel branchRateModel = (BranchRateModel) xo.getChild(BranchRateModel.class);
+		
+		final Parameter origin = (Parameter) xo.getChild(Parameter.class);
+		
+		final MarginalCophylogenyLikelihood marginalCophylogenyLikelihood = new MarginalCophylogenyLikelihood(hostTree, symbiontTree, cophylogenyModel, branchRateModel, origin, reconstructionTagName);
+		marginalCophylogenyLikelihood.setId(xo.getId());
+		
+		for (int i = 0; i < symbiontTree.getExternalNodeCount(); ++i) {
+			final NodeRef node = symbiontTree.getExternalNode(i);
+			final Taxon hostTaxon = (Taxon) symbiontTree.getNodeTaxon(node).getAttribute(hostAttributeName);
+			if (hostTaxon == null || hostTree.getTaxonIndex(hostTaxon.getId()) == -1)
+				throw new XMLParseException("The host of " + symbiontTree.getNodeTaxon(node).getId() + " is not in the host tree.");
+			marginalCophylogenyLikelihood.setTipHost(node, hostTree.getExternalNode(hostTree.getTaxonIndex(hostTaxon.getId())));
+		}
+		
+		return marginalCophylogenyLikelihood;
+	}
+
+	@Override
+	public XMLSyntaxRule[] getSyntaxRules() {
+		return rules;
+	}
+
+	@Override
+	public String getParserDescription() {
+		return "This element represents the likelihood of the symbiont tree given the host tree, summed over the hosts of its internal nodes.";
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Class getReturnType() {
+		return MarginalCophylogenyLikelihood.class;
+	}
+
+	private final XMLSyntaxRule[] rules = {
+			AttributeRule.newStringRule(HOST_ATTRIBUTE_NAME),
+			AttributeRule.newStringRule(RECONSTRUCTION_TAG_NAME),
+			new ElementRule(SimpleCophylogenyModel.class),
+			new ElementRule(HOST_TREE, new XMLSyntaxRule[]{
+					new ElementRule(Tree.class)
+			}),
+			new ElementRule(SYMBIONT_TREE, new XMLSyntaxRule[]{
+					new ElementRule(MutableTree.class)
+			}),
+			new ElementRule(BranchRateModel.class),
+			new ElementRule(Parameter.class)
+	};
+	
+}
@@ -0,0 +1,84 @@
+/**
+ * MultiSymbiontCophylogenyLikelihoodParser.java
+ * 
+ * BECKY - Bayesian Estimation of Coevolutionary KrYteria
+ * 
+ */
+
+package org.ithinktree.becky.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ithinktree.becky.CophylogenyLikelihood;
+import org.ithinktree.becky.MultiSymbiontCophylogenyLikelihood;
+
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.AttributeRule;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * Parser for the MultiSymbiontCophylogenyLikelihood Class.
+ * 
+ * @author Arman D. Bilge
+ *
+ */
+public class MultiSymbiontCophylogenyLikelihoodParser extends AbstractXMLObjectParser {
+
+	public static final String MULTI_SYMBIONT_COPHYLOGENY_LIKELIHOOD = "multiSymbiontCophylogenyLikelihood";
+	public static final String THREADS = "threads";
+	
+	@Override
+	public String getParserName() {
+		return MULTI_SYMBIONT_COPHYLOGENY_LIKELIHOOD;
+	}
+
+	@Override
+	public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+		
+		final List<CophylogenyLikelihood> cophylogenyLikelihoods = new ArrayList<CophylogenyLikelihood>();
+		for (int i = 0; i < xo.getChildCount(); ++i) {
+			final Object child = xo.getChild(i);
+			if (child instanceof CophylogenyLikelihood)
+				cophylogenyLikelihoods.add((CophylogenyLikelihood) child);
+		}
+		
+		final int threads = xo.hasAttribute(THREADS) ? xo.getIntegerAttribute(THREADS) : 1;
+		if (threads < 1)
+			throw new XMLParseException("The " + THREADS + " attribute must be positive.");
+		
+		final MultiSymbiontCophylogenyLikelihood multiSymbiontCophylogenyLikelihood;
+		try {
+			multiSymbiontCophylogenyLikelihood = new MultiSymbiontCophylogenyLikelihood(cophylogenyLikelihoods, threads);
+		} catch (IllegalArgumentException e) {
+			throw new XMLParseException(e.getMessage());
+		}
+		multiSymbiontCophylogenyLikelihood.setId(xo.getId());
+		return multiSymbiontCophylogenyLikelihood;
+	}
+
+	@Override
+	public XMLSyntaxRule[] getSyntaxRules() {
+		return rules;
+	}
+
+	@Override
+	public String getParserDescription() {
+		return "This element represents the joint likelihood of the cophylogenetic mappings of several symbiont trees sharing one host tree and model.";
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Class getReturnType() {
+		return MultiSymbiontCophylogenyLikelihood.class;
+	}
+
+	private final XMLSyntaxRule[] rules = {
+			AttributeRule.newIntegerRule(THREADS, true),
+			new ElementRule(CophylogenyLikelihood.class, 1, Integer.MAX_VALUE)
+	};
+	
+}
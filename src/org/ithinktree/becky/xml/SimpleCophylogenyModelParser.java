@@ -24,6 +24,10 @@ public class SimpleCophylogenyModelParser extends AbstractXMLObjectParser {
 	public static final String DUPLICATION_RATE = "duplicationRate";
 	public static final String HOST_SWITCH_RATE = "hostSwitchRate";
 	public static final String LOSS_RATE = "lossRate";
+	public static final String EXTINCTION_ENGINE = "extinctionEngine";
+	public static final String ENUMERATION = "enumeration";
+	public static final String DYNAMIC_PROGRAMMING = "dynamic";
+	public static final String ODE = "ode";
 
 	@Override
 	public String getParserName() {
@@ -34,6 +38,15 @@ public class SimpleCophylogenyModelParser extends AbstractXMLObjectParser {
 	public Object parseXMLObject(XMLObject xo) throws XMLParseException {
 		
 		final Type units = Utils.getUnitsAttr(xo);
+		
+		final SimpleCophylogenyModel.ExtinctionEngine extinctionEngine;
+		final String engine = (String) xo.getAttribute(EXTINCTION_ENGINE, DYNAMIC_PROGRAMMING);
+		if (engine.equals(ENUMERATION))
+			extinctionEngine = SimpleCophylogenyModel.ExtinctionEngine.ENUMERATION;
+		else if (engine.equals(ODE))
+			extinctionEngine = SimpleCophylogenyModel.ExtinctionEngine.ODE;
+		else
+			extinctionEngine = SimpleCophylogenyModel.ExtinctionEngine.DYNAMIC_PROGRAMMING;
 				
 		XMLObject cxo = xo.getChild(DUPLICATION_RATE);
 		Parameter drParameter = (Parameter) cxo.getChild(Parameter.class);
@@ -44,7 +57,7 @@ public class SimpleCophylogenyModelParser extends AbstractXMLObjectParser {
 		cxo = xo.getChild(LOSS_RATE);
 		Parameter lrParameter = (Parameter) cxo.getChild(Parameter.class);
 		
-		return new SimpleCophylogenyModel(drParameter, hsrParameter, lrParameter, units);
+		return new SimpleCophylogenyModel(drParameter, hsrParameter, lrParameter, extinctionEngine, units);
 	}
 
 	@Override
@@ -73,7 +86,8 @@ public class SimpleCophylogenyModelParser extends AbstractXMLObjectParser {
 			new ElementRule(LOSS_RATE, new XMLSyntaxRule[]{
 					new ElementRule(Parameter.class)
 			}),
-			XMLUnits.SYNTAX_RULES[0]
+			XMLUnits.SYNTAX_RULES[0],
+			new StringAttributeRule(EXTINCTION_ENGINE, "How extinctions in host subtrees are summed over", new String[]{DYNAMIC_PROGRAMMING, ENUMERATION, ODE}, true)
 	};
 	
 }
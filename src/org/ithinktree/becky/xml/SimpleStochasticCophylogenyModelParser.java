@@ -1,6 +1,7 @@
 package org.ithinktree.becky.xml;
 
 import org.ithinktree.becky.SimpleStochasticCophylogenyModel;
+import org.ithinktree.becky.StochasticLikelihoodNoDescendants.Sampling;
 
 import dr.evolution.util.Units.Type;
 import dr.evoxml.util.XMLUnits;
@@ -9,6 +10,7 @@ import dr.inference.model.Parameter;
 import dr.xml.AbstractXMLObjectParser;
 import dr.xml.AttributeRule;
 import dr.xml.ElementRule;
+import dr.xml.StringAttributeRule;
 import dr.xml.XMLObject;
 import dr.xml.XMLParseException;
 import dr.xml.XMLSyntaxRule;
@@ -21,6 +23,12 @@ public class SimpleStochasticCophylogenyModelParser extends
 	public static final String HOST_SWITCH_RATE = "hostSwitchRate";
 	public static final String LOSS_RATE = "lossRate";
 	public static final String ITERATIONS = "iterations";
+	public static final String THREADS = "threads";
+	public static final String SAMPLING = "sampling";
+	public static final String INDEPENDENT = "independent";
+	public static final String ANTITHETIC = "antithetic";
+	public static final String STRATIFIED = "stratified";
+	public static final String SEEDS = "seeds";
 
 	
 	@Override
@@ -54,13 +62,30 @@ public class SimpleStochasticCophylogenyModelParser extends
 					new ElementRule(Parameter.class)
 			}),
 			XMLUnits.SYNTAX_RULES[0],
-			AttributeRule.newIntegerRule(ITERATIONS, false)
+			AttributeRule.newIntegerRule(ITERATIONS, false),
+			AttributeRule.newIntegerRule(THREADS, true),
+			new StringAttributeRule(SAMPLING, "How the replicates draw their random numbers", new String[]{INDEPENDENT, ANTITHETIC, STRATIFIED}, true),
+			new ElementRule(SEEDS, new XMLSyntaxRule[]{
+					new ElementRule(Parameter.class)
+			}, true)
 	};
 	
 	@Override
 	public Object parseXMLObject(XMLObject xo) throws XMLParseException {
 		final Type units = Utils.getUnitsAttr(xo);
 		final int iterations = xo.getIntegerAttribute(ITERATIONS);
+		// By default, the replicates are spread over all cores
+		final int threads = xo.hasAttribute(THREADS) ? xo.getIntegerAttribute(THREADS) : Runtime.getRuntime().availableProcessors();
+		if (threads < 1)
+			throw new XMLParseException("The number of threads must be positive.");
+		final String samplingName = (String) xo.getAttribute(SAMPLING, INDEPENDENT);
+		final Sampling sampling;
+		if (samplingName.equals(ANTITHETIC))
+			sampling = Sampling.ANTITHETIC;
+		else if (samplingName.equals(STRATIFIED))
+			sampling = Sampling.STRATIFIED;
+		else
+			sampling = Sampling.INDEPENDENT;
 		
 		XMLObject cxo = xo.getChild(DUPLICATION_RATE);
 		final Parameter drParameter = (Parameter) cxo.getChild(Parameter.class);
@@ -71,7 +96,9 @@ public class SimpleStochasticCophylogenyModelParser extends
 		cxo = xo.getChild(LOSS_RATE);
 		final Parameter lrParameter = (Parameter) cxo.getChild(Parameter.class);
 		
-		return new SimpleStochasticCophylogenyModel(drParameter, hsrParameter, lrParameter, iterations, units);
+		final Parameter seedParameter = xo.hasChildNamed(SEEDS) ? (Parameter) xo.getChild(SEEDS).getChild(Parameter.class) : null;
+		
+		return new SimpleStochasticCophylogenyModel(drParameter, hsrParameter, lrParameter, iterations, threads, sampling, seedParameter, units);
 	}
 
 }
@@ -0,0 +1,333 @@
+/**
+ * CophylogenyLikelihoodTest.java
+ *
+ * BECKY
+ */
+package test.org.ithinktree.becky;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ithinktree.becky.CophylogenyLikelihood;
+import org.ithinktree.becky.EmpiricalHostTreeModel;
+import org.ithinktree.becky.SimpleCophylogenyModel;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+@RunWith(JUnit4.class)
+public class CophylogenyLikelihoodTest {
+
+	private static final String HOST = "(A:1.875,(B:1.75,(C:1.5,(D:1,E:1):0.5):0.25):0.125);";
+	private static final String SYMBIONT = "((a1:0.8,b1:0.8):0.9,((c1:0.6,d1:0.6):0.3,(d2:0.4,e1:0.4):0.5):0.8);";
+
+	private TreeModel host;
+	private TreeModel symbiont;
+	private Parameter duplicationRate;
+	private Parameter hostSwitchRate;
+	private Parameter lossRate;
+	private SimpleCophylogenyModel model;
+	private TestUtils.NodeBranchRates branchRates;
+	private CophylogenyLikelihood cophylogenyLikelihood;
+
+	@Before
+	public void before() {
+		host = new TreeModel(TestUtils.treeFromNewick(HOST, true));
+		symbiont = new TreeModel(TestUtils.treeFromNewick(SYMBIONT, true));
+		duplicationRate = new Parameter.Default(0.3);
+		hostSwitchRate = new Parameter.Default(0.4);
+		lossRate = new Parameter.Default(0.2);
+		model = new SimpleCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, Units.Type.YEARS);
+		branchRates = new TestUtils.NodeBranchRates(symbiont.getNodeCount(), 1.0);
+		cophylogenyLikelihood = createCophylogenyLikelihood(symbiont);
+	}
+
+	private CophylogenyLikelihood createCophylogenyLikelihood(final TreeModel symbiont) {
+		return createCophylogenyLikelihood(symbiont, model);
+	}
+
+	private CophylogenyLikelihood createCophylogenyLikelihood(final TreeModel symbiont, final SimpleCophylogenyModel model) {
+		final CophylogenyLikelihood cl = new CophylogenyLikelihood(host, symbiont, model, branchRates, new Parameter.Default(2.5), "host.nodeRef", "testCophylogenyLikelihood");
+		TestUtils.mapStatesByTaxon(cl);
+		return cl;
+	}
+
+	private void store() {
+		cophylogenyLikelihood.storeModelState();
+		model.storeModelState();
+		branchRates.storeModelState();
+		symbiont.storeModelState();
+		host.storeModelState();
+	}
+
+	private void restore() {
+		cophylogenyLikelihood.restoreModelState();
+		model.restoreModelState();
+		branchRates.restoreModelState();
+		symbiont.restoreModelState();
+		host.restoreModelState();
+	}
+
+	private void accept() {
+		cophylogenyLikelihood.acceptModelState();
+		model.acceptModelState();
+		branchRates.acceptModelState();
+		symbiont.acceptModelState();
+		host.acceptModelState();
+	}
+
+	/**
+	 * Asserts that the incrementally calculated likelihood is that of a full recalculation.
+	 */
+	private double assertIncremental() {
+		final double logL = cophylogenyLikelihood.getLogLikelihood();
+		Assert.assertFalse(Double.isInfinite(logL) || Double.isNaN(logL));
+		cophylogenyLikelihood.makeDirty();
+		Assert.assertEquals(cophylogenyLikelihood.getLogLikelihood(), logL, 1E-12);
+		return logL;
+	}
+
+	@Test
+	public void testIncrementalMatchesFull() {
+
+		final double initial = assertIncremental();
+
+		// A symbiont height, rejected
+		store();
+		final NodeRef c1d1 = TestUtils.getNode(symbiont, "c1", "d1");
+		symbiont.setNodeHeight(c1d1, 0.7);
+		Assert.assertTrue(assertIncremental() != initial);
+		restore();
+		Assert.assertEquals(initial, assertIncremental(), 1E-12);
+
+		// A branch rate, accepted
+		store();
+		final Parameter rates = branchRates.getRatesParameter();
+		rates.setParameterValue(TestUtils.getNode(symbiont, "d2").getNumber(), 1.5);
+		final double rateChanged = assertIncremental();
+		Assert.assertTrue(rateChanged != initial);
+		accept();
+
+		// A host height, rejected
+		store();
+		host.setNodeHeight(TestUtils.getNode(host, "D", "E"), 1.2);
+		Assert.assertTrue(assertIncremental() != rateChanged);
+		restore();
+		Assert.assertEquals(rateChanged, assertIncremental(), 1E-12);
+
+		// A mapping, accepted
+		store();
+		cophylogenyLikelihood.setStatesForNode(symbiont.getRoot(), TestUtils.getNode(host, "C", "D", "E"));
+		final double remapped = assertIncremental();
+		Assert.assertTrue(remapped != rateChanged);
+		accept();
+
+		// A symbiont height and a rate together, rejected
+		store();
+		symbiont.setNodeHeight(TestUtils.getNode(symbiont, "a1", "b1"), 1.0);
+		rates.setParameterValue(TestUtils.getNode(symbiont, "a1").getNumber(), 0.5);
+		assertIncremental();
+		rates.setParameterValue(TestUtils.getNode(symbiont, "a1").getNumber(), 1.0);
+		restore();
+		Assert.assertEquals(remapped, assertIncremental(), 1E-12);
+
+		// The same as a likelihood that never saw any of it
+		final CophylogenyLikelihood fresh = createCophylogenyLikelihood(symbiont);
+		fresh.setStatesForNode(symbiont.getRoot(), TestUtils.getNode(host, "C", "D", "E"));
+		Assert.assertEquals(fresh.getLogLikelihood(), remapped, 1E-12);
+
+	}
+
+	@Test
+	public void testRateOnlyChangesMatchColdCache() {
+
+		final Parameter rates = branchRates.getRatesParameter();
+		double previous = cophylogenyLikelihood.getLogLikelihood();
+		for (int step = 0; step < 12; ++step) {
+			// Only rates change, so every node keeps the structure of its mapping
+			store();
+			final NodeRef node = symbiont.getNode(step % symbiont.getNodeCount());
+			if (!symbiont.isRoot(node))
+				rates.setParameterValue(node.getNumber(), 0.5 + 0.125 * step);
+			if (symbiont.isRoot(node) || step % 3 == 0)
+				duplicationRate.setParameterValue(0, 0.3 + 0.05 * step);
+			if (step % 4 == 0)
+				lossRate.setParameterValue(0, 0.2 + 0.025 * step);
+			final double logL = cophylogenyLikelihood.getLogLikelihood();
+			Assert.assertTrue(logL != previous);
+			accept();
+			previous = logL;
+
+			// A model that never saw any structure before
+			final SimpleCophylogenyModel cold = new SimpleCophylogenyModel(
+					new Parameter.Default(duplicationRate.getParameterValue(0)),
+					new Parameter.Default(hostSwitchRate.getParameterValue(0)),
+					new Parameter.Default(lossRate.getParameterValue(0)), Units.Type.YEARS);
+			Assert.assertEquals(createCophylogenyLikelihood(symbiont, cold).getLogLikelihood(), logL, 1E-12);
+		}
+
+	}
+
+	/**
+	 * Asserts that the nodes listed for each host node are those whose states are that node.
+	 */
+	private static void assertMappedNodesConsistent(final CophylogenyLikelihood cl) {
+		final Tree hostTree = cl.getHostTree();
+		final Tree symbiontTree = cl.getSymbiontTree();
+		final int[] buffer = new int[symbiontTree.getNodeCount()];
+		int total = 0;
+		for (int h = 0; h < hostTree.getNodeCount(); ++h) {
+			final NodeRef hostNode = hostTree.getNode(h);
+			final int count = cl.getNodesMappedTo(hostNode, buffer);
+			final int[] listed = Arrays.copyOf(buffer, count);
+			Arrays.sort(listed);
+			int expectedCount = 0;
+			final int[] expected = new int[symbiontTree.getNodeCount()];
+			for (int i = 0; i < symbiontTree.getNodeCount(); ++i) {
+				final NodeRef state = cl.getStatesForNode(symbiontTree.getNode(i));
+				if (state != null && state.getNumber() == h)
+					expected[expectedCount++] = i;
+			}
+			Assert.assertArrayEquals(Arrays.copyOf(expected, expectedCount), listed);
+			total += count;
+		}
+		Assert.assertEquals(symbiontTree.getNodeCount(), total);
+	}
+
+	@Test
+	public void testMappedNodesConsistent() {
+
+		final Tree[] trees = {
+				TestUtils.treeFromNewick(HOST, true),
+				TestUtils.treeFromNewick("((A:1.5,B:1.5):0.375,(C:1.25,(D:0.8,E:0.8):0.45):0.625);", true),
+				TestUtils.treeFromNewick("(((A:0.5,C:0.5):1.0,B:1.5):0.375,(D:0.75,E:0.75):1.125);", true)
+		};
+		final Parameter treeIndex = new Parameter.Default(0.0);
+		final EmpiricalHostTreeModel hostTrees = new EmpiricalHostTreeModel(trees, treeIndex, EmpiricalHostTreeModel.DEFAULT_CACHE_SIZE);
+		final CophylogenyLikelihood cl = new CophylogenyLikelihood(hostTrees, symbiont, model, branchRates, new Parameter.Default(2.5), "host.nodeRef", "testCophylogenyLikelihood");
+		TestUtils.mapStatesByTaxon(cl);
+		assertMappedNodesConsistent(cl);
+
+		final Random random = new Random(17);
+		for (int step = 0; step < 200; ++step) {
+			cl.storeModelState();
+			hostTrees.storeModelState();
+			final double storedIndex = treeIndex.getParameterValue(0);
+			final int moves = 1 + random.nextInt(3);
+			for (int k = 0; k < moves; ++k) {
+				if (random.nextInt(4) == 0) {
+					// Moves every node onto the corresponding one of another tree
+					treeIndex.setParameterValue(0, (treeIndex.getParameterValue(0) + 1 + random.nextInt(trees.length - 1)) % trees.length);
+				} else {
+					final NodeRef node = symbiont.getNode(random.nextInt(symbiont.getNodeCount()));
+					cl.setStatesForNode(node, hostTrees.getNode(random.nextInt(hostTrees.getNodeCount())));
+				}
+				assertMappedNodesConsistent(cl);
+			}
+			if (random.nextBoolean()) {
+				// The index is restored without an event
+				treeIndex.setParameterValueQuietly(0, storedIndex);
+				cl.restoreModelState();
+				hostTrees.restoreModelState();
+			} else {
+				cl.acceptModelState();
+				hostTrees.acceptModelState();
+			}
+			assertMappedNodesConsistent(cl);
+		}
+
+	}
+
+	@Test
+	public void testParallelMatchesSerial() {
+
+		final TreeModel symbiont = new TreeModel(TestUtils.treeFromNewick("(((a1:0.3,a2:0.3):0.5,b1:0.8):0.9,(((c1:0.2,c2:0.2):0.4,d1:0.6):0.3,((d2:0.4,e1:0.4):0.3,e2:0.7):0.2):0.8);", true));
+		final TestUtils.NodeBranchRates branchRates = new TestUtils.NodeBranchRates(symbiont.getNodeCount(), 1.0);
+		final Parameter rates = branchRates.getRatesParameter();
+		final CophylogenyLikelihood[] cls = new CophylogenyLikelihood[2];
+		for (int t = 0; t < cls.length; ++t) {
+			final SimpleCophylogenyModel model = new SimpleCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, Units.Type.YEARS);
+			cls[t] = new CophylogenyLikelihood(host, symbiont, model, branchRates, new Parameter.Default(2.5), "host.nodeRef", "testCophylogenyLikelihood");
+			TestUtils.mapStatesByTaxon(cls[t]);
+		}
+		final CophylogenyLikelihood serial = cls[0];
+		final CophylogenyLikelihood parallel = cls[1];
+		// Every internal node its own clade
+		Assert.assertTrue(symbiont.getInternalNodeCount() > 4);
+		parallel.setParallelism(4, 1);
+		Assert.assertEquals(serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+
+		final Random random = new Random(23);
+		for (int step = 0; step < 100; ++step) {
+			for (CophylogenyLikelihood cl : cls) {
+				cl.storeModelState();
+				cl.getCophylogenyModel().storeModelState();
+			}
+			symbiont.storeModelState();
+			host.storeModelState();
+			final NodeRef node = symbiont.getInternalNode(random.nextInt(symbiont.getInternalNodeCount()));
+			int rateChanged = -1;
+			double storedRate = Double.NaN;
+			switch (random.nextInt(4)) {
+			case 0: {
+				final double lower = Math.max(symbiont.getNodeHeight(symbiont.getChild(node, 0)), symbiont.getNodeHeight(symbiont.getChild(node, 1)));
+				final double upper = symbiont.isRoot(node) ? 2.5 : symbiont.getNodeHeight(symbiont.getParent(node));
+				symbiont.setNodeHeight(node, lower + (upper - lower) * random.nextDouble());
+				break;
+			}
+			case 1: {
+				final NodeRef child = symbiont.getChild(node, random.nextInt(2));
+				rateChanged = child.getNumber();
+				storedRate = rates.getParameterValue(rateChanged);
+				rates.setParameterValue(rateChanged, 0.5 + random.nextDouble());
+				break;
+			}
+			case 2: {
+				final NodeRef hostNode = host.getInternalNode(random.nextInt(host.getInternalNodeCount()));
+				final double lower = Math.max(host.getNodeHeight(host.getChild(hostNode, 0)), host.getNodeHeight(host.getChild(hostNode, 1)));
+				final double upper = host.isRoot(hostNode) ? 2.0 : host.getNodeHeight(host.getParent(hostNode));
+				host.setNodeHeight(hostNode, lower + (upper - lower) * random.nextDouble());
+				break;
+			}
+			default: {
+				final NodeRef hostNode = host.getNode(random.nextInt(host.getNodeCount()));
+				for (CophylogenyLikelihood cl : cls)
+					cl.setStatesForNode(node, hostNode);
+			}
+			}
+			Assert.assertEquals(serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+			if (random.nextBoolean()) {
+				if (rateChanged != -1)
+					rates.setParameterValue(rateChanged, storedRate);
+				for (CophylogenyLikelihood cl : cls) {
+					cl.restoreModelState();
+					cl.getCophylogenyModel().restoreModelState();
+				}
+				symbiont.restoreModelState();
+				host.restoreModelState();
+			} else {
+				for (CophylogenyLikelihood cl : cls) {
+					cl.acceptModelState();
+					cl.getCophylogenyModel().acceptModelState();
+				}
+				symbiont.acceptModelState();
+				host.acceptModelState();
+			}
+			Assert.assertEquals(serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+		}
+
+	}
+
+}
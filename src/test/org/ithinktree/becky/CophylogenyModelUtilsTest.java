@@ -10,6 +10,10 @@ import java.util.List;
 import java.util.Set;
 
 import org.ithinktree.becky.CophylogenyModel;
+import org.ithinktree.becky.CophylogenyModel.Utils.NodalRelationship;
+import org.ithinktree.becky.CophylogenyModel.Utils.Relationship;
+import org.ithinktree.becky.HostEpochIndex;
+import org.ithinktree.becky.HostTreeIndex;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -69,4 +73,51 @@ public class CophylogenyModelUtilsTest {
 	    Assert.assertTrue(CophylogenyModel.Utils.getLineagesInTimeRange(tree, tree.getNodeHeight(tree.getRoot()), 0).size() == tree.getNodeCount());
 	}
 	
+	@Test
+	public void testHostEpochIndex() {
+		final HostEpochIndex epochs = HostTreeIndex.forTree(tree).getEpochs();
+		Assert.assertEquals(5, epochs.getEpochCount());
+		Assert.assertEquals(0, epochs.getLineageCountAtHeight(-1.0));
+		Assert.assertEquals(5, epochs.getLineageCountAtHeight(0.5));
+		Assert.assertEquals(4, epochs.getLineageCountAtHeight(1.2));
+		Assert.assertEquals(1, epochs.getLineageCountAtHeight(2.0));
+		final int epoch = epochs.getEpoch(tree.getNodeHeight(TestUtils.DE));
+		for (int i = epochs.getLineagesStart(epoch); i < epochs.getLineagesEnd(epoch); ++i)
+			Assert.assertTrue(CophylogenyModel.Utils.isContemporaneous(tree, tree.getNode(epochs.getLineages()[i]), tree.getNodeHeight(TestUtils.DE)));
+	}
+	
+	@Test
+	public void testLostLineagesToHeight() {
+		final HostTreeIndex index = HostTreeIndex.forTree(tree);
+		final double height = tree.getNodeHeight(TestUtils.BCDE);
+		Assert.assertEquals(TestUtils.BCDE.getNumber(), index.getAncestorAtHeight(TestUtils.D.getNumber(), height));
+		Assert.assertEquals(TestUtils.D.getNumber(), index.getAncestorAtHeight(TestUtils.D.getNumber(), 0.5));
+		Assert.assertEquals(tree.getRoot().getNumber(), index.getAncestorAtHeight(TestUtils.D.getNumber(), 10.0));
+		final int[] buffer = new int[index.getNodeCount() + 1];
+		final int end = index.getLostLineagesToHeight(TestUtils.D.getNumber(), height, buffer, 1);
+		Assert.assertArrayEquals(new int[]{TestUtils.E.getNumber(), TestUtils.C.getNumber(), TestUtils.B.getNumber()}, Arrays.copyOfRange(buffer, 1, end));
+		Assert.assertArrayEquals(new NodeRef[]{TestUtils.E, TestUtils.C, TestUtils.B}, CophylogenyModel.Utils.lostLineagesToTime(tree, TestUtils.D, height));
+	}
+	
+	@Test
+	public void testHostTreeIndexRelationships() {
+		final HostTreeIndex index = HostTreeIndex.forTree(tree);
+		Assert.assertEquals(Relationship.SELF, index.getRelationship(TestUtils.C, TestUtils.C));
+		Assert.assertEquals(Relationship.SISTER, index.getRelationship(TestUtils.D, TestUtils.E));
+		Assert.assertEquals(Relationship.DESCENDANT, index.getRelationship(TestUtils.BCDE, TestUtils.DE));
+		Assert.assertEquals(Relationship.ANCESTOR, index.getRelationship(TestUtils.DE, TestUtils.BCDE));
+		Assert.assertEquals(Relationship.COUSIN, index.getRelationship(TestUtils.A, TestUtils.DE));
+		Assert.assertEquals(Relationship.COUSIN, index.getRelationship(TestUtils.B, TestUtils.C));
+		Assert.assertEquals(3, index.getDepth(TestUtils.DE.getNumber()));
+	}
+	
+	@Test
+	public void testDetermineRelationshipLostLineages() {
+		final NodalRelationship r = CophylogenyModel.Utils.determineRelationship(tree, TestUtils.BCDE, TestUtils.DE);
+		Assert.assertEquals(Relationship.DESCENDANT, r.relationship);
+		Assert.assertEquals(2, r.generations);
+		Assert.assertArrayEquals(new NodeRef[]{TestUtils.DE, TestUtils.B}, r.lostLineages);
+		Assert.assertEquals(Relationship.ANCESTOR, CophylogenyModel.Utils.determineRelationship(tree, TestUtils.DE, TestUtils.BCDE).relationship);
+	}
+	
 }
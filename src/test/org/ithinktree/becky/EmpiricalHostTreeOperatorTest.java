@@ -0,0 +1,154 @@
+/**
+ * EmpiricalHostTreeOperatorTest.java
+ *
+ * BECKY
+ */
+package test.org.ithinktree.becky;
+
+import org.ithinktree.becky.CophylogenyLikelihood;
+import org.ithinktree.becky.EmpiricalHostTreeModel;
+import org.ithinktree.becky.EmpiricalHostTreeOperator;
+import org.ithinktree.becky.MarginalCophylogenyLikelihood;
+import org.ithinktree.becky.SimpleCophylogenyModel;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.inference.operators.OperatorFailedException;
+import dr.math.MathUtils;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+@RunWith(JUnit4.class)
+public class EmpiricalHostTreeOperatorTest {
+
+	private static final String[] HOSTS = {
+		"(A:1.875,(B:1.75,(C:1.5,(D:1,E:1):0.5):0.25):0.125);",
+		"((A:1.5,B:1.5):0.375,(C:1.25,(D:0.8,E:0.8):0.45):0.625);",
+		"(((A:0.5,C:0.5):1.0,B:1.5):0.375,(D:0.75,E:0.75):1.125);",
+		"((A:1.0,(B:0.6,D:0.6):0.4):0.875,(C:1.25,E:1.25):0.625);"
+	};
+	private static final String SYMBIONT = "((a1:0.8,b1:0.8):0.9,((c1:0.6,d1:0.6):0.3,(d2:0.4,e1:0.4):0.5):0.8);";
+
+	private Tree[] trees;
+	private Parameter treeIndex;
+	private EmpiricalHostTreeModel hostTrees;
+	private TreeModel symbiont;
+	private SimpleCophylogenyModel model;
+	private EmpiricalHostTreeOperator operator;
+
+	@Before
+	public void before() {
+		trees = new Tree[HOSTS.length];
+		for (int i = 0; i < trees.length; ++i)
+			trees[i] = TestUtils.treeFromNewick(HOSTS[i], true);
+		treeIndex = new Parameter.Default(0.0);
+		hostTrees = new EmpiricalHostTreeModel(trees, treeIndex, EmpiricalHostTreeModel.DEFAULT_CACHE_SIZE);
+		symbiont = new TreeModel(TestUtils.treeFromNewick(SYMBIONT, true));
+		model = createModel();
+		operator = new EmpiricalHostTreeOperator(hostTrees, 1.0);
+	}
+
+	private SimpleCophylogenyModel createModel() {
+		return new SimpleCophylogenyModel(new Parameter.Default(0.3), new Parameter.Default(0.4), new Parameter.Default(0.2), Units.Type.YEARS);
+	}
+
+	private MarginalCophylogenyLikelihood createMarginalCophylogenyLikelihood(final Tree hostTree, final SimpleCophylogenyModel model) {
+		final MarginalCophylogenyLikelihood mcl = new MarginalCophylogenyLikelihood(hostTree, symbiont, model, new TestUtils.SimpleBranchRates(1.0), new Parameter.Default(2.5), "host.nodeRef");
+		for (int i = 0; i < symbiont.getExternalNodeCount(); ++i) {
+			final NodeRef tip = symbiont.getExternalNode(i);
+			mcl.setTipHost(tip, TestUtils.getNode(hostTree, symbiont.getNodeTaxon(tip).getId().substring(0, 1).toUpperCase()));
+		}
+		return mcl;
+	}
+
+	private int[] getStates(final CophylogenyLikelihood cl) {
+		final int[] states = new int[symbiont.getNodeCount()];
+		for (int i = 0; i < states.length; ++i)
+			states[i] = cl.getStatesForNode(symbiont.getNode(i)).getNumber();
+		return states;
+	}
+
+	private double[] getHeights() {
+		final double[] heights = new double[symbiont.getNodeCount()];
+		for (int i = 0; i < heights.length; ++i)
+			heights[i] = symbiont.getNodeHeight(symbiont.getNode(i));
+		return heights;
+	}
+
+	@Test
+	public void testSwapReverses() throws OperatorFailedException {
+
+		final CophylogenyLikelihood cl = new CophylogenyLikelihood(hostTrees, symbiont, model, new TestUtils.SimpleBranchRates(1.0), new Parameter.Default(2.5), "host.nodeRef", "testCophylogenyLikelihood");
+		TestUtils.mapStatesByTaxon(cl);
+		// Internal nodes on internal hosts, which the trees do not all share
+		for (int i = 0; i < symbiont.getInternalNodeCount(); ++i)
+			cl.setStatesForNode(symbiont.getInternalNode(i), hostTrees.getInternalNode(i % hostTrees.getInternalNodeCount()));
+		final MarginalCophylogenyLikelihood mcl = createMarginalCophylogenyLikelihood(hostTrees, model);
+
+		MathUtils.setSeed(5);
+		for (int step = 0; step < 50; ++step) {
+
+			final int current = hostTrees.getTreeIndex();
+			final int[] states = getStates(cl);
+			final double[] heights = getHeights();
+			final double logL = mcl.getLogLikelihood();
+
+			Assert.assertEquals(0.0, operator.doOperation(), 0.0);
+			final int next = hostTrees.getTreeIndex();
+			Assert.assertTrue(next != current);
+			Assert.assertArrayEquals(heights, getHeights(), 0.0);
+			// The same as on the tree alone, with a model of its own since it caches by host tree
+			Assert.assertEquals(createMarginalCophylogenyLikelihood(trees[next], createModel()).getLogLikelihood(), mcl.getLogLikelihood(), 1E-12);
+			final int[] nextStates = getStates(cl);
+
+			// The reverse move, proposed with the same probability, restores everything
+			treeIndex.setParameterValue(0, current);
+			Assert.assertArrayEquals(states, getStates(cl));
+			Assert.assertArrayEquals(heights, getHeights(), 0.0);
+			Assert.assertEquals(logL, mcl.getLogLikelihood(), 1E-12);
+
+			// ...as does going around through another tree
+			treeIndex.setParameterValue(0, next);
+			Assert.assertArrayEquals(nextStates, getStates(cl));
+			treeIndex.setParameterValue(0, (next + 1 + step % (trees.length - 1)) % trees.length);
+			treeIndex.setParameterValue(0, next);
+			Assert.assertArrayEquals(nextStates, getStates(cl));
+
+		}
+
+	}
+
+	@Test
+	public void testSwapRestores() throws OperatorFailedException {
+
+		final MarginalCophylogenyLikelihood mcl = createMarginalCophylogenyLikelihood(hostTrees, model);
+		final double logL = mcl.getLogLikelihood();
+		MathUtils.setSeed(7);
+		for (int step = 0; step < 10; ++step) {
+			mcl.storeModelState();
+			hostTrees.storeModelState();
+			final double index = treeIndex.getParameterValue(0);
+			operator.doOperation();
+			Assert.assertFalse(mcl.getLogLikelihood() == logL);
+			// The index is restored without an event
+			treeIndex.setParameterValueQuietly(0, index);
+			mcl.restoreModelState();
+			hostTrees.restoreModelState();
+			Assert.assertEquals(logL, mcl.getLogLikelihood(), 0.0);
+			mcl.makeDirty();
+			Assert.assertEquals(logL, mcl.getLogLikelihood(), 1E-12);
+		}
+
+	}
+
+}
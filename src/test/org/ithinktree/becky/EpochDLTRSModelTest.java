@@ -0,0 +1,182 @@
+/**
+ * EpochDLTRSModelTest.java
+ *
+ * BECKY
+ */
+package test.org.ithinktree.becky;
+
+import org.ithinktree.becky.CophylogenyLikelihood;
+import org.ithinktree.becky.EpochDLTRSModel;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dr.evolution.tree.BranchRates;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+@RunWith(JUnit4.class)
+public class EpochDLTRSModelTest {
+
+	private static final String HOST = "(A:1.875,(B:1.75,(C:1.5,(D:1,E:1):0.5):0.25):0.125);";
+	private static final String SYMBIONT = "((a1:0.8,b1:0.8):0.9,((c1:0.6,d1:0.6):0.3,(d2:0.4,e1:0.4):0.5):0.8);";
+	private static final double DUPLICATION_RATE = 0.3;
+	private static final double LOSS_RATE = 0.2;
+	private static final double ORIGIN = 2.5;
+
+	private final BranchRates branchRates = new TestUtils.SimpleBranchRates(1.0);
+
+	private static EpochDLTRSModel createModel(final double hostSwitchRate, final int minimumSlices, final boolean normalize, final int threadCount) {
+		return new EpochDLTRSModel(new Parameter.Default(DUPLICATION_RATE), new Parameter.Default(hostSwitchRate), new Parameter.Default(LOSS_RATE), minimumSlices, EpochDLTRSModel.DEFAULT_TIMESTEP, normalize, threadCount, Units.Type.YEARS);
+	}
+
+	/**
+	 * The probability that a lineage survives to the present for a time above a point at which it does with probability u.
+	 */
+	private static double survival(final double u, final double t) {
+		final double r = DUPLICATION_RATE - LOSS_RATE;
+		return u * Math.exp(r * t) / (1.0 + DUPLICATION_RATE * u * Math.expm1(r * t) / r);
+	}
+
+	/**
+	 * The probability that a lineage leaves exactly one descendant at a point a time below it, at which one survives with probability u.
+	 */
+	private static double oneToOne(final double u, final double t) {
+		final double ratio = survival(u, t) / u;
+		return ratio * ratio * Math.exp(-(DUPLICATION_RATE - LOSS_RATE) * t);
+	}
+
+	/**
+	 * @return the probability that a lineage on a host just above its node survives, without host switches
+	 */
+	private static double getSurvival(final Tree host, final NodeRef node) {
+		if (host.isExternal(node))
+			return 1.0;
+		double q = 1.0;
+		for (int i = 0; i < host.getChildCount(node); ++i) {
+			final NodeRef child = host.getChild(node, i);
+			q *= 1.0 - survival(getSurvival(host, child), host.getBranchLength(child));
+		}
+		return 1.0 - q;
+	}
+
+	/**
+	 * @return the likelihoods of every internal node of the symbiont tree on every host, with
+	 *         its children on every host, and of the origin on every host
+	 */
+	private double[] getLogLikelihoods(final EpochDLTRSModel model, final Tree host, final MutableTree symbiont) {
+		final int hostNodeCount = host.getNodeCount();
+		final double[] logLikelihoods = new double[(symbiont.getInternalNodeCount() * hostNodeCount * hostNodeCount + 1) * hostNodeCount];
+		int k = 0;
+		for (int i = 0; i < symbiont.getInternalNodeCount(); ++i) {
+			final NodeRef self = symbiont.getInternalNode(i);
+			for (int s = 0; s < hostNodeCount; ++s)
+				for (int h1 = 0; h1 < hostNodeCount; ++h1)
+					for (int h2 = 0; h2 < hostNodeCount; ++h2)
+						logLikelihoods[k++] = model.calculateNodeLogLikelihood(symbiont, self, symbiont.getChild(self, 0), symbiont.getChild(self, 1), host, host.getNode(s), host.getNode(h1), host.getNode(h2), branchRates);
+		}
+		for (int s = 0; s < hostNodeCount; ++s)
+			logLikelihoods[k++] = model.calculateOriginLogLikelihood(symbiont, ORIGIN, symbiont.getRoot(), host, host.getRoot(), host.getNode(s), branchRates);
+		return logLikelihoods;
+	}
+
+	@Test
+	public void testSingleLineage() {
+
+		// Only B from the present to A
+		final Tree host = TestUtils.treeFromNewick("(A:1.0,B:2.0);", true);
+		final MutableTree symbiont = new TreeModel(TestUtils.treeFromNewick("(b1:0.9,b2:0.9);", true));
+		final NodeRef b = TestUtils.getNode(host, "B");
+		final NodeRef root = symbiont.getRoot();
+
+		// Nothing to switch to
+		final double expected = Math.log(DUPLICATION_RATE * oneToOne(1.0, 0.9) * oneToOne(1.0, 0.9));
+		for (int threadCount = 1; threadCount <= 2; ++threadCount) {
+			final EpochDLTRSModel model = createModel(0.4, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, false, threadCount);
+			Assert.assertEquals(expected, model.calculateNodeLogLikelihood(symbiont, root, symbiont.getChild(root, 0), symbiont.getChild(root, 1), host, b, b, b, branchRates), 1E-8);
+		}
+
+		// Without host switches B's survival carries on past A
+		final double survival = 1.0 - (1.0 - survival(1.0, 1.0)) * (1.0 - survival(1.0, 2.0));
+		final double logL = Math.log(oneToOne(1.0, 2.0) / oneToOne(1.0, 0.9) * (1.0 - survival(1.0, 1.0)) * oneToOne(survival, ORIGIN - 2.0));
+		final EpochDLTRSModel model = createModel(0.0, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, false, 1);
+		final EpochDLTRSModel normalizedModel = createModel(0.0, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, true, 1);
+		Assert.assertEquals(logL, model.calculateOriginLogLikelihood(symbiont, ORIGIN, root, host, host.getRoot(), b, branchRates), 1E-8);
+		Assert.assertEquals(logL - Math.log(survival(survival, ORIGIN - 2.0)), normalizedModel.calculateOriginLogLikelihood(symbiont, ORIGIN, root, host, host.getRoot(), b, branchRates), 1E-8);
+
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRefusesBranchRates() {
+		final Tree host = TestUtils.treeFromNewick(HOST, true);
+		final MutableTree symbiont = new TreeModel(TestUtils.treeFromNewick(SYMBIONT, true));
+		final NodeRef root = symbiont.getRoot();
+		final NodeRef a = TestUtils.getNode(host, "A", "E");
+		createModel(0.4, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, false, 1).calculateNodeLogLikelihood(symbiont, root, symbiont.getChild(root, 0), symbiont.getChild(root, 1), host, a, a, a, new TestUtils.SimpleBranchRates(2.0));
+	}
+
+	@Test
+	public void testParallelMatchesSerial() {
+		final Tree host = TestUtils.treeFromNewick(HOST, true);
+		final MutableTree symbiont = new TreeModel(TestUtils.treeFromNewick(SYMBIONT, true));
+		// More slices than threads
+		Assert.assertArrayEquals(getLogLikelihoods(createModel(0.4, 8, true, 1), host, symbiont), getLogLikelihoods(createModel(0.4, 8, true, 4), host, symbiont), 0.0);
+	}
+
+	@Test
+	public void testKeptEpochsMatchRebuild() {
+
+		final TreeModel host = new TreeModel(TestUtils.treeFromNewick(HOST, true));
+		final MutableTree symbiont = new TreeModel(TestUtils.treeFromNewick(SYMBIONT, true));
+		final EpochDLTRSModel model = createModel(0.4, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, true, 1);
+		getLogLikelihoods(model, host, symbiont);
+
+		// A speciation above others, keeping the epochs below, then the lowest, keeping none, and the root, which changes the slice lengths
+		final String[][] clades = {{"C", "E"}, {"D", "E"}, {"A", "E"}, {"B", "E"}};
+		final double[] heights = {1.3, 0.7, 2.0, 1.6};
+		for (int i = 0; i < clades.length; ++i) {
+			host.setNodeHeight(TestUtils.getNode(host, clades[i]), heights[i]);
+			Assert.assertArrayEquals(getLogLikelihoods(createModel(0.4, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, true, 1), host, symbiont), getLogLikelihoods(model, host, symbiont), 0.0);
+		}
+
+	}
+
+	@Test
+	public void testCospeciations() {
+
+		final TreeModel host = new TreeModel(TestUtils.treeFromNewick(HOST, true));
+		// The host tree itself, every node a cospeciation
+		final TreeModel symbiont = new TreeModel(TestUtils.treeFromNewick(HOST.toLowerCase(), true));
+
+		// Without host switches, the branches of the symbiont tree are those of the host tree
+		double expected = 0.0;
+		for (int i = 0; i < host.getInternalNodeCount(); ++i) {
+			final NodeRef node = host.getInternalNode(i);
+			for (int c = 0; c < host.getChildCount(node); ++c) {
+				final NodeRef child = host.getChild(node, c);
+				expected += Math.log(oneToOne(getSurvival(host, child), host.getBranchLength(child)));
+			}
+		}
+		final double rootSurvival = getSurvival(host, host.getRoot());
+		expected += Math.log(oneToOne(rootSurvival, ORIGIN - host.getNodeHeight(host.getRoot())));
+
+		final CophylogenyLikelihood cl = new CophylogenyLikelihood(host, symbiont, createModel(0.0, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, false, 1), branchRates, new Parameter.Default(ORIGIN), "host.nodeRef", "testCophylogenyLikelihood");
+		TestUtils.mapStatesByTaxon(cl);
+		Assert.assertEquals(expected, cl.getLogLikelihood(), 1E-8);
+
+		final CophylogenyLikelihood normalized = new CophylogenyLikelihood(host, symbiont, createModel(0.0, EpochDLTRSModel.DEFAULT_MINIMUM_SLICES, true, 1), branchRates, new Parameter.Default(ORIGIN), "host.nodeRef", "testCophylogenyLikelihood");
+		TestUtils.mapStatesByTaxon(normalized);
+		Assert.assertEquals(expected - Math.log(survival(rootSurvival, ORIGIN - host.getNodeHeight(host.getRoot()))), normalized.getLogLikelihood(), 1E-8);
+
+	}
+
+}
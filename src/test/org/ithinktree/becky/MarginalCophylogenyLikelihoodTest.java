@@ -0,0 +1,246 @@
+/**
+ * MarginalCophylogenyLikelihoodTest.java
+ *
+ * BECKY
+ */
+package test.org.ithinktree.becky;
+
+import org.ithinktree.becky.CophylogenyLikelihood;
+import org.ithinktree.becky.CophylogenyModel;
+import org.ithinktree.becky.MarginalCophylogenyLikelihood;
+import org.ithinktree.becky.SimpleCophylogenyModel;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dr.evolution.tree.BranchRates;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.TreeTrait;
+import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+@RunWith(JUnit4.class)
+public class MarginalCophylogenyLikelihoodTest {
+
+	private static final String HOST = "(A:1.875,(B:1.75,(C:1.5,(D:1,E:1):0.5):0.25):0.125);";
+	private static final String SYMBIONT = "((a1:0.8,c1:0.8):0.9,((b1:0.3,d1:0.3):0.3,e1:0.6):1.1);";
+
+	private TreeModel host;
+	private TreeModel symbiont;
+
+	@Before
+	public void before() {
+		host = new TreeModel(TestUtils.treeFromNewick(HOST, true));
+		symbiont = new TreeModel(TestUtils.treeFromNewick(SYMBIONT, true));
+	}
+
+	private static SimpleCophylogenyModel createModel() {
+		return new SimpleCophylogenyModel(new Parameter.Default(0.3), new Parameter.Default(0.4), new Parameter.Default(0.2), Units.Type.YEARS);
+	}
+
+	private MarginalCophylogenyLikelihood createMarginalCophylogenyLikelihood(final BranchRates branchRates) {
+		final MarginalCophylogenyLikelihood mcl = new MarginalCophylogenyLikelihood(host, symbiont, createModel(), branchRates, new Parameter.Default(2.5), "host.nodeRef");
+		for (int i = 0; i < symbiont.getExternalNodeCount(); ++i) {
+			final NodeRef tip = symbiont.getExternalNode(i);
+			mcl.setTipHost(tip, TestUtils.getNode(host, symbiont.getNodeTaxon(tip).getId().substring(0, 1).toUpperCase()));
+		}
+		return mcl;
+	}
+
+	/**
+	 * Sums the likelihoods of every assignment of hosts to the internal nodes from the given one on.
+	 * @return the log of the sum
+	 */
+	private double enumerate(final CophylogenyLikelihood cl, final int internalNode) {
+		if (internalNode == symbiont.getInternalNodeCount())
+			return cl.getLogLikelihood();
+		final NodeRef node = symbiont.getInternalNode(internalNode);
+		double logSum = Double.NEGATIVE_INFINITY;
+		for (int h = 0; h < host.getNodeCount(); ++h) {
+			cl.setStatesForNode(node, host.getNode(h));
+			final double logL = enumerate(cl, internalNode + 1);
+			if (logL == Double.NEGATIVE_INFINITY) continue;
+			final double max = Math.max(logSum, logL);
+			logSum = max + Math.log(Math.exp(logSum - max) + Math.exp(logL - max));
+		}
+		return logSum;
+	}
+
+	private double enumerate(final BranchRates branchRates) {
+		final CophylogenyLikelihood cl = new CophylogenyLikelihood(host, symbiont, createModel(), branchRates, new Parameter.Default(2.5), "host.nodeRef", "testCophylogenyLikelihood");
+		TestUtils.mapStatesByTaxon(cl);
+		return enumerate(cl, 0);
+	}
+
+	/**
+	 * Adds the likelihood of every assignment of hosts to the internal nodes from the given one
+	 * on to the posteriors of the hosts it assigns.
+	 */
+	private void enumeratePosteriors(final CophylogenyLikelihood cl, final int internalNode, final double[][] posteriors) {
+		if (internalNode == symbiont.getInternalNodeCount()) {
+			final double l = Math.exp(cl.getLogLikelihood());
+			for (int n = 0; n < posteriors.length; ++n)
+				posteriors[n][cl.getStatesForNode(symbiont.getInternalNode(n)).getNumber()] += l;
+			return;
+		}
+		for (int h = 0; h < host.getNodeCount(); ++h) {
+			cl.setStatesForNode(symbiont.getInternalNode(internalNode), host.getNode(h));
+			enumeratePosteriors(cl, internalNode + 1, posteriors);
+		}
+	}
+
+	/**
+	 * @return the posterior of each host of each internal node, by internal node and host number
+	 */
+	private double[][] enumeratePosteriors(final BranchRates branchRates) {
+		final CophylogenyLikelihood cl = new CophylogenyLikelihood(host, symbiont, createModel(), branchRates, new Parameter.Default(2.5), "host.nodeRef", "testCophylogenyLikelihood");
+		TestUtils.mapStatesByTaxon(cl);
+		final double[][] posteriors = new double[symbiont.getInternalNodeCount()][host.getNodeCount()];
+		enumeratePosteriors(cl, 0, posteriors);
+		for (double[] p : posteriors) {
+			final double total = MathUtils.getTotal(p);
+			for (int h = 0; h < p.length; ++h)
+				p[h] /= total;
+		}
+		return posteriors;
+	}
+
+	private NodeRef[] getSampledHosts(final TreeTrait<NodeRef> trait) {
+		final NodeRef[] hosts = new NodeRef[symbiont.getNodeCount()];
+		for (int i = 0; i < hosts.length; ++i) {
+			final NodeRef node = symbiont.getNode(i);
+			hosts[i] = trait.getTrait(symbiont, node);
+			Assert.assertTrue(CophylogenyModel.Utils.isContemporaneous(host, hosts[i], symbiont.getNodeHeight(node)));
+		}
+		return hosts;
+	}
+
+	/**
+	 * @return whether the next draw of the random number generator is the first for the seed
+	 */
+	private static boolean isUndrawn(final long seed) {
+		final double next = MathUtils.nextDouble();
+		MathUtils.setSeed(seed);
+		return next == MathUtils.nextDouble();
+	}
+
+	@Test
+	public void testMatchesEnumeration() {
+		final BranchRates branchRates = new TestUtils.SimpleBranchRates(1.0);
+		final double logL = createMarginalCophylogenyLikelihood(branchRates).getLogLikelihood();
+		Assert.assertFalse(Double.isInfinite(logL) || Double.isNaN(logL));
+		Assert.assertEquals(enumerate(branchRates), logL, 1E-10);
+	}
+
+	@Test
+	public void testDoesNotUnderflow() {
+		// Fast enough that the likelihood is far out of the range of a double
+		final BranchRates branchRates = new TestUtils.SimpleBranchRates(400.0);
+		final double logL = createMarginalCophylogenyLikelihood(branchRates).getLogLikelihood();
+		Assert.assertTrue(logL < -800.0);
+		Assert.assertEquals(enumerate(branchRates), logL, 1E-12 * -logL);
+	}
+
+	@Test
+	public void testUpdatesMatchFreshEvaluation() {
+
+		final BranchRates branchRates = new TestUtils.SimpleBranchRates(1.0);
+		final MarginalCophylogenyLikelihood mcl = createMarginalCophylogenyLikelihood(branchRates);
+		final double logL = mcl.getLogLikelihood();
+
+		// A height, which only reaches the node and its ancestors
+		mcl.storeModelState();
+		symbiont.setNodeHeight(TestUtils.getNode(symbiont, "b1", "d1"), 0.45);
+		final double moved = mcl.getLogLikelihood();
+		Assert.assertFalse(moved == logL);
+		Assert.assertEquals(createMarginalCophylogenyLikelihood(branchRates).getLogLikelihood(), moved, 1E-12 * -moved);
+
+		// The restore brings back the heights the model reads without reading the tree
+		symbiont.setNodeHeight(TestUtils.getNode(symbiont, "b1", "d1"), 0.3);
+		mcl.restoreModelState();
+		Assert.assertEquals(logL, mcl.getLogLikelihood(), 0.0);
+		symbiont.setNodeHeight(TestUtils.getNode(symbiont, "b1", "e1"), 0.65);
+		final double parentMoved = mcl.getLogLikelihood();
+		Assert.assertEquals(createMarginalCophylogenyLikelihood(branchRates).getLogLikelihood(), parentMoved, 1E-12 * -parentMoved);
+
+	}
+
+	@Test
+	public void testTracebackMatchesPosteriors() {
+
+		final BranchRates branchRates = new TestUtils.SimpleBranchRates(1.0);
+		final double[][] posteriors = enumeratePosteriors(branchRates);
+		// The traceback's generator is seeded from the chain's
+		MathUtils.setSeed(11);
+		final MarginalCophylogenyLikelihood mcl = createMarginalCophylogenyLikelihood(branchRates);
+		@SuppressWarnings("unchecked")
+		final TreeTrait<NodeRef> trait = mcl.getTreeTrait("host.nodeRef");
+
+		final int draws = 10000;
+		final double[][] frequencies = new double[posteriors.length][host.getNodeCount()];
+		for (int d = 0; d < draws; ++d) {
+			final NodeRef[] hosts = getSampledHosts(trait);
+			for (int n = 0; n < frequencies.length; ++n)
+				frequencies[n][hosts[symbiont.getInternalNode(n).getNumber()].getNumber()] += 1.0 / draws;
+			// A restore draws afresh
+			mcl.storeModelState();
+			mcl.restoreModelState();
+		}
+
+		// Within four standard errors, the root first
+		final int root = symbiont.getInternalNodeCount() - 1;
+		Assert.assertTrue(symbiont.isRoot(symbiont.getInternalNode(root)));
+		for (int n = root; n >= 0; --n) {
+			for (int h = 0; h < host.getNodeCount(); ++h) {
+				final double p = posteriors[n][h];
+				Assert.assertEquals(p, frequencies[n][h], 4.0 * Math.sqrt(p * (1.0 - p) / draws) + 1E-12);
+			}
+		}
+
+	}
+
+	@Test
+	public void testTracebackIsLazy() {
+
+		MathUtils.setSeed(13);
+		final MarginalCophylogenyLikelihood mcl = createMarginalCophylogenyLikelihood(new TestUtils.SimpleBranchRates(1.0));
+		@SuppressWarnings("unchecked")
+		final TreeTrait<NodeRef> trait = mcl.getTreeTrait("host.nodeRef");
+
+		// Neither evaluating nor reading the trait draws from the chain's generator
+		MathUtils.setSeed(17);
+		mcl.getLogLikelihood();
+		final NodeRef[] hosts = getSampledHosts(trait);
+		Assert.assertTrue(isUndrawn(17));
+
+		// The draw is kept until the state changes
+		Assert.assertArrayEquals(hosts, getSampledHosts(trait));
+
+		// The traceback's generator is seeded from the chain's once, when it is created
+		MathUtils.setSeed(13);
+		final MarginalCophylogenyLikelihood same = createMarginalCophylogenyLikelihood(new TestUtils.SimpleBranchRates(1.0));
+		@SuppressWarnings("unchecked")
+		final TreeTrait<NodeRef> sameTrait = same.getTreeTrait("host.nodeRef");
+		Assert.assertArrayEquals(hosts, getSampledHosts(sameTrait));
+
+		// A restore draws again, from the restored state
+		MathUtils.setSeed(17);
+		mcl.storeModelState();
+		symbiont.setNodeHeight(symbiont.getRoot(), 2.2);
+		getSampledHosts(trait);
+		symbiont.setNodeHeight(symbiont.getRoot(), 1.7);
+		mcl.restoreModelState();
+		getSampledHosts(trait);
+		Assert.assertTrue(isUndrawn(17));
+
+	}
+
+}
@@ -0,0 +1,155 @@
+/**
+ * MultiSymbiontCophylogenyLikelihoodTest.java
+ *
+ * BECKY
+ */
+package test.org.ithinktree.becky;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ithinktree.becky.CophylogenyLikelihood;
+import org.ithinktree.becky.MultiSymbiontCophylogenyLikelihood;
+import org.ithinktree.becky.SimpleCophylogenyModel;
+import org.ithinktree.becky.xml.CophylogenyLikelihoodParser;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dr.evolution.tree.BranchRates;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+@RunWith(JUnit4.class)
+public class MultiSymbiontCophylogenyLikelihoodTest {
+
+	private static final String[] SYMBIONTS = {
+		"((a1:0.8,b1:0.8):0.9,((c1:0.6,d1:0.6):0.3,(d2:0.4,e1:0.4):0.5):0.8);",
+		"((a1:1.2,(b1:0.7,c1:0.7):0.5):0.4,(d1:0.9,e1:0.9):0.7);",
+		"(((a1:0.3,a2:0.3):0.5,b1:0.8):0.9,(((c1:0.2,c2:0.2):0.4,d1:0.6):0.3,((d2:0.4,e1:0.4):0.3,e2:0.7):0.2):0.8);"
+	};
+
+	/**
+	 * Counts its full evaluations.
+	 */
+	@SuppressWarnings("serial")
+	private static final class CountingCophylogenyLikelihood extends CophylogenyLikelihood {
+		private int evaluationCount = 0;
+		private CountingCophylogenyLikelihood(final Tree hostTree, final MutableTree symbiontTree, final SimpleCophylogenyModel model, final BranchRates branchRates) {
+			super(CophylogenyLikelihoodParser.COPHYLOGENY_LIKELIHOOD, hostTree, symbiontTree, model, branchRates, new Parameter.Default(2.5), "host.nodeRef");
+		}
+		@Override
+		protected double calculateLogLikelihood() {
+			++evaluationCount;
+			return super.calculateLogLikelihood();
+		}
+	}
+
+	private TreeModel host;
+	private TreeModel[] symbionts;
+	private Parameter duplicationRate;
+	private BranchRates branchRates;
+
+	@Before
+	public void before() {
+		host = new TreeModel(TestUtils.treeFromNewick("(A:1.875,(B:1.75,(C:1.5,(D:1,E:1):0.5):0.25):0.125);", true));
+		symbionts = new TreeModel[SYMBIONTS.length];
+		for (int i = 0; i < symbionts.length; ++i)
+			symbionts[i] = new TreeModel(TestUtils.treeFromNewick(SYMBIONTS[i], true));
+		duplicationRate = new Parameter.Default(0.3);
+		branchRates = new TestUtils.SimpleBranchRates(1.0);
+	}
+
+	private List<CountingCophylogenyLikelihood> createCophylogenyLikelihoods() {
+		final SimpleCophylogenyModel model = new SimpleCophylogenyModel(duplicationRate, new Parameter.Default(0.4), new Parameter.Default(0.2), Units.Type.YEARS);
+		final List<CountingCophylogenyLikelihood> cls = new ArrayList<CountingCophylogenyLikelihood>(symbionts.length);
+		for (TreeModel symbiont : symbionts) {
+			final CountingCophylogenyLikelihood cl = new CountingCophylogenyLikelihood(host, symbiont, model, branchRates);
+			TestUtils.mapStatesByTaxon(cl);
+			cls.add(cl);
+		}
+		return cls;
+	}
+
+	private static int[] getEvaluationCounts(final List<CountingCophylogenyLikelihood> cls) {
+		final int[] counts = new int[cls.size()];
+		for (int i = 0; i < counts.length; ++i)
+			counts[i] = cls.get(i).evaluationCount;
+		return counts;
+	}
+
+	/**
+	 * Asserts that the likelihoods whose symbiont trees are flagged were evaluated once more, and only those.
+	 */
+	private static void assertEvaluated(final int[] before, final List<CountingCophylogenyLikelihood> cls, final boolean... evaluated) {
+		final int[] after = getEvaluationCounts(cls);
+		for (int i = 0; i < after.length; ++i)
+			Assert.assertEquals(before[i] + (evaluated[i] ? 1 : 0), after[i]);
+	}
+
+	@Test
+	public void testMultiSymbiontCophylogenyLikelihood() {
+
+		final List<CountingCophylogenyLikelihood> serialComponents = createCophylogenyLikelihoods();
+		final List<CountingCophylogenyLikelihood> parallelComponents = createCophylogenyLikelihoods();
+		// Each symbiont tree runs its clades on the threads shared with the others
+		for (CountingCophylogenyLikelihood cl : parallelComponents)
+			cl.setParallelism(3, 1);
+		final MultiSymbiontCophylogenyLikelihood serial = new MultiSymbiontCophylogenyLikelihood(new ArrayList<CophylogenyLikelihood>(serialComponents), 1);
+		final MultiSymbiontCophylogenyLikelihood parallel = new MultiSymbiontCophylogenyLikelihood(new ArrayList<CophylogenyLikelihood>(parallelComponents), 3);
+
+		for (int step = 0; step < 4; ++step) {
+
+			final int[] serialCounts = getEvaluationCounts(serialComponents);
+			final int[] parallelCounts = getEvaluationCounts(parallelComponents);
+			final boolean[] evaluated;
+			switch (step) {
+			case 0:
+				evaluated = new boolean[]{true, true, true};
+				break;
+			case 1:
+				// One symbiont tree
+				symbionts[1].setNodeHeight(TestUtils.getNode(symbionts[1], "b1", "c1"), 0.9);
+				evaluated = new boolean[]{false, true, false};
+				break;
+			case 2:
+				// The shared model
+				duplicationRate.setParameterValue(0, 0.45);
+				evaluated = new boolean[]{true, true, true};
+				break;
+			default:
+				// The shared host tree
+				host.setNodeHeight(TestUtils.getNode(host, "A", "E"), 2.0);
+				evaluated = new boolean[]{true, true, true};
+			}
+
+			final double logL = serial.getLogLikelihood();
+			double sum = 0.0;
+			for (CophylogenyLikelihood cl : serialComponents)
+				sum += cl.getLogLikelihood();
+			Assert.assertEquals(sum, logL, 0.0);
+			Assert.assertFalse(Double.isInfinite(logL) || Double.isNaN(logL));
+			Assert.assertEquals(logL, parallel.getLogLikelihood(), 0.0);
+			assertEvaluated(serialCounts, serialComponents, evaluated);
+			assertEvaluated(parallelCounts, parallelComponents, evaluated);
+
+			// Nothing left to evaluate
+			Assert.assertEquals(logL, serial.getLogLikelihood(), 0.0);
+			Assert.assertEquals(logL, parallel.getLogLikelihood(), 0.0);
+			assertEvaluated(serialCounts, serialComponents, evaluated);
+			assertEvaluated(parallelCounts, parallelComponents, evaluated);
+
+		}
+
+	}
+
+}
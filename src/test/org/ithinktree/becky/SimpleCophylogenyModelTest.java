@@ -10,6 +10,8 @@ import java.lang.reflect.Method;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.ithinktree.becky.CophylogenyLikelihood;
 import org.ithinktree.becky.SimpleCophylogenyModel;
+import org.ithinktree.becky.SimpleStochasticCophylogenyModel;
+import org.ithinktree.becky.StochasticLikelihoodNoDescendants.Sampling;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -25,6 +27,7 @@ import dr.evolution.tree.Tree;
 import dr.evolution.util.Units;
 import dr.inference.model.Parameter;
 import dr.math.MachineAccuracy;
+import dr.math.MathUtils;
 
 /**
  * @author Arman D. Bilge
@@ -61,6 +64,23 @@ public class SimpleCophylogenyModelTest {
 		host = TestUtils.DEFAULT_TREE;
 	}
 		
+	/**
+	 * Invokes the private method of the model with the given name and number of arguments.
+	 */
+	private static Object invoke(final SimpleCophylogenyModel model, final String name, final Object... args) {
+		for (Method m : SimpleCophylogenyModel.class.getDeclaredMethods()) {
+			if (!m.getName().equals(name) || m.getParameterTypes().length != args.length) continue;
+			m.setAccessible(true);
+			try {
+				return m.invoke(model, args);
+			} catch (Exception e) {
+				Assert.fail("Fatal reflection error invoking method: " + ExceptionUtils.getStackTrace(e));
+			}
+		}
+		Assert.fail("Fatal reflection error retrieving method: " + name);
+		return null;
+	}
+	    
 	@SuppressWarnings("unused")
     private CophylogenyLikelihood createCophylogenyLikelihood(final Tree symbiont) {
 		return new CophylogenyLikelihood(host, (MutableTree) symbiont, model, branchRates, origin, "host.nodeRef", "testCophylogenyLikelihood");
@@ -153,6 +173,174 @@ public class SimpleCophylogenyModelTest {
 	    Assert.assertEquals(actualLikelihood, likelihood, MachineAccuracy.EPSILON);
 	}
 	
+	@Test
+	public void testExtinctionEnginesAgree() {
+		
+		final SimpleCophylogenyModel enumerationModel = new SimpleCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, SimpleCophylogenyModel.ExtinctionEngine.ENUMERATION, Units.Type.YEARS);
+		try {
+			enumerationModel.calculateNodeLogLikelihood(null, null, null, null, null, null, null, null, null);
+		} catch (Exception e) {
+			// Expected; do nothing
+		}
+		
+		// Losing a cherry: either along its own branch, or along both of its children's
+		final double overallRate = duplicationRate.getParameterValue(0) + hostSwitchRate.getParameterValue(0) + lossRate.getParameterValue(0);
+		final double tipLoss = lossRate.getParameterValue(0) / overallRate * (1 - Math.exp(-overallRate * 1.0));
+		final double cherryNoEvents = Math.exp(-overallRate * 0.5);
+		final double cherryLoss = lossRate.getParameterValue(0) / overallRate * (1 - cherryNoEvents) + cherryNoEvents * tipLoss * tipLoss;
+		Assert.assertEquals(cherryLoss, (Double) invoke(model, "likelihoodLineageLoss", host, TestUtils.DE, 1.0, false), 1E-12);
+		Assert.assertEquals(cherryNoEvents * tipLoss * tipLoss, (Double) invoke(model, "likelihoodLineageLoss", host, TestUtils.DE, 1.0, true), 1E-12);
+		Assert.assertEquals(cherryLoss, (Double) invoke(enumerationModel, "likelihoodLineageLoss", host, TestUtils.DE, 1.0, false), 1E-12);
+		
+		final Tree[] trees = {host, TestUtils.treeFromNewick("(((A:0.5,B:0.5):1.25,(C:1.0,D:1.0):0.75):0.5,((E:0.25,F:0.25):1.5,(G:1.5,(H:0.75,I:0.75):0.75):0.25):0.5);", true)};
+		for (Tree tree : trees) {
+			for (int i = 0; i < tree.getNodeCount(); ++i) {
+				final NodeRef n = tree.getNode(i);
+				for (double rate : new double[]{0.5, 1.0, 2.0}) {
+					for (boolean excludeRoot : new boolean[]{false, true}) {
+						Assert.assertEquals((Double) invoke(enumerationModel, "likelihoodLineageLoss", tree, n, rate, excludeRoot), (Double) invoke(model, "likelihoodLineageLoss", tree, n, rate, excludeRoot), 1E-12);
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testLineageLossCacheBounded() {
+		
+		// A symbiont tree with more branches than that many tables raises the bound to hold all their rates, twice
+		Assert.assertEquals(SimpleCophylogenyModel.MIN_RATE_TABLES, model.getMaxRateTables());
+		String newick = "s0:1.0";
+		for (int i = 1; i < SimpleCophylogenyModel.MIN_RATE_TABLES; ++i)
+			newick = "(" + newick + ",s" + i + ":1.0):1.0";
+		final Tree symbiont = TestUtils.treeFromNewick(newick + ";", false);
+		model.createContext(symbiont);
+		Assert.assertEquals(2 * symbiont.getNodeCount(), model.getMaxRateTables());
+		
+		// More rates than are kept, as under a relaxed clock, asked for twice over
+		final int rateCount = 2 * model.getMaxRateTables() + 7;
+		final NodeRef n = TestUtils.CDE;
+		invoke(model, "updateVariables");
+		for (int pass = 0; pass < 2; ++pass) {
+			for (int r = 0; r < rateCount; ++r) {
+				final double rate = 0.5 + r / (double) rateCount;
+				final SimpleCophylogenyModel fresh = new SimpleCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, Units.Type.YEARS);
+				invoke(fresh, "updateVariables");
+				Assert.assertEquals((Double) invoke(fresh, "likelihoodLineageLoss", host, n, rate, false), (Double) invoke(model, "likelihoodLineageLoss", host, n, rate, false), 0.0);
+				Assert.assertEquals((Double) invoke(fresh, "likelihoodLineageLoss", host, n, rate, true), (Double) invoke(model, "likelihoodLineageLoss", host, n, rate, true), 0.0);
+			}
+		}
+		
+	}
+	
+	@Test
+	public void testOdeExtinctionEngine() {
+
+		// With losses alone, integrating agrees with summing over the subtree
+		final Parameter zero = new Parameter.Default(0.0);
+		final SimpleCophylogenyModel lossModel = new SimpleCophylogenyModel(zero, zero, lossRate, Units.Type.YEARS);
+		final SimpleCophylogenyModel odeLossModel = new SimpleCophylogenyModel(zero, zero, lossRate, SimpleCophylogenyModel.ExtinctionEngine.ODE, Units.Type.YEARS);
+		// With two host lineages, a switch is as good as a duplication, so the birth-death solution applies
+		final SimpleCophylogenyModel odeModel = new SimpleCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, SimpleCophylogenyModel.ExtinctionEngine.ODE, Units.Type.YEARS);
+		final Tree pair = TestUtils.treeFromNewick("(A:0.75,B:0.75);", true);
+		final double birthRate = duplicationRate.getParameterValue(0) + hostSwitchRate.getParameterValue(0);
+		final double deathRate = lossRate.getParameterValue(0);
+		for (SimpleCophylogenyModel cm : new SimpleCophylogenyModel[]{lossModel, odeLossModel, odeModel})
+			invoke(cm, "updateVariables");
+		for (double rate : new double[]{0.5, 1.0, 2.0}) {
+			for (Tree tree : new Tree[]{host, pair}) {
+				for (int i = 0; i < tree.getNodeCount(); ++i) {
+					final NodeRef n = tree.getNode(i);
+					for (boolean excludeRoot : new boolean[]{false, true})
+						Assert.assertEquals((Double) invoke(lossModel, "likelihoodLineageLoss", tree, n, rate, excludeRoot), (Double) invoke(odeLossModel, "likelihoodLineageLoss", tree, n, rate, excludeRoot), 1E-9);
+				}
+			}
+			final double growth = Math.exp((birthRate - deathRate) * rate * 0.75);
+			final double expected = deathRate * (growth - 1) / (birthRate * growth - deathRate);
+			final NodeRef tip = pair.getExternalNode(0);
+			Assert.assertEquals(expected, (Double) invoke(odeModel, "likelihoodLineageLoss", pair, tip, rate, false), 1E-9);
+			Assert.assertEquals(0.0, (Double) invoke(odeModel, "likelihoodLineageLoss", pair, tip, rate, true), 0.0);
+			Assert.assertEquals(expected * expected, (Double) invoke(odeModel, "likelihoodLineageLoss", pair, pair.getRoot(), rate, false), 1E-9);
+		}
+
+	}
+
+	@Test
+	public void testMonteCarloExtinction() {
+
+		final int iterations = 20000;
+		final SimpleCophylogenyModel odeModel = new SimpleCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, SimpleCophylogenyModel.ExtinctionEngine.ODE, Units.Type.YEARS);
+		final SimpleCophylogenyModel serialModel = new SimpleStochasticCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, iterations, Units.Type.YEARS);
+		final SimpleCophylogenyModel parallelModel = new SimpleStochasticCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, iterations, 4, Units.Type.YEARS);
+		for (SimpleCophylogenyModel cm : new SimpleCophylogenyModel[]{odeModel, serialModel, parallelModel})
+			invoke(cm, "updateVariables");
+		for (int i = 0; i < host.getNodeCount(); ++i) {
+			final NodeRef n = host.getNode(i);
+			if (host.isRoot(n)) continue;
+			final double expected = (Double) invoke(odeModel, "likelihoodLineageLoss", host, n, 1.0, false);
+			MathUtils.setSeed(666 + i);
+			final double serial = (Double) invoke(serialModel, "likelihoodLineageLoss", host, n, 1.0, false);
+			MathUtils.setSeed(666 + i);
+			final double parallel = (Double) invoke(parallelModel, "likelihoodLineageLoss", host, n, 1.0, false);
+			// The estimate depends on the seed alone
+			Assert.assertEquals(serial, parallel, 0.0);
+			Assert.assertEquals(expected, serial, 5 * Math.sqrt(expected * (1 - expected) / iterations));
+		}
+
+	}
+
+	@Test
+	public void testPseudoMarginalEstimates() {
+
+		final int iterations = 20000;
+		final SimpleCophylogenyModel odeModel = new SimpleCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, SimpleCophylogenyModel.ExtinctionEngine.ODE, Units.Type.YEARS);
+		final Parameter seeds = new Parameter.Default(host.getNodeCount(), 0.5);
+		invoke(odeModel, "updateVariables");
+		for (Sampling sampling : Sampling.values()) {
+			final SimpleStochasticCophylogenyModel first = new SimpleStochasticCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, iterations, 2, sampling, seeds, Units.Type.YEARS);
+			final SimpleStochasticCophylogenyModel second = new SimpleStochasticCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, iterations, 1, sampling, seeds, Units.Type.YEARS);
+			invoke(first, "updateVariables");
+			invoke(second, "updateVariables");
+			for (int i = 0; i < host.getNodeCount(); ++i) {
+				final NodeRef n = host.getNode(i);
+				if (host.isRoot(n)) continue;
+				final double expected = (Double) invoke(odeModel, "likelihoodLineageLoss", host, n, 1.0, false);
+				final double estimate = (Double) invoke(first, "likelihoodLineageLoss", host, n, 1.0, false);
+				// The same seeds give the same estimate, so current and proposed states share it
+				Assert.assertEquals(estimate, (Double) invoke(second, "likelihoodLineageLoss", host, n, 1.0, false), 0.0);
+				Assert.assertEquals(expected, estimate, 5 * Math.sqrt(expected * (1 - expected) / iterations));
+			}
+			final NodeRef n = host.getExternalNode(0);
+			final double estimate = (Double) invoke(first, "likelihoodLineageLoss", host, n, 1.0, false);
+			seeds.setParameterValue(n.getNumber(), 0.25);
+			Assert.assertFalse(estimate == (Double) invoke(first, "likelihoodLineageLoss", host, n, 1.0, false));
+			seeds.setParameterValue(n.getNumber(), 0.5);
+			Assert.assertEquals(estimate, (Double) invoke(first, "likelihoodLineageLoss", host, n, 1.0, false), 0.0);
+			Assert.assertFalse(Double.isNaN(Double.parseDouble(first.getColumns()[0].getFormatted())));
+		}
+
+	}
+
+	@Test
+	public void testCommonRandomNumbers() {
+
+		final int iterations = 20000;
+		final Parameter seeds = new Parameter.Default(host.getNodeCount(), 0.5);
+		for (Sampling sampling : Sampling.values()) {
+			final SimpleStochasticCophylogenyModel model = new SimpleStochasticCophylogenyModel(duplicationRate, hostSwitchRate, lossRate, iterations, 1, sampling, seeds, Units.Type.YEARS);
+			invoke(model, "updateVariables");
+			for (int i = 0; i < host.getNodeCount(); ++i) {
+				final NodeRef n = host.getNode(i);
+				if (host.isRoot(n)) continue;
+				final double estimate = (Double) invoke(model, "likelihoodLineageLoss", host, n, 1.0, false);
+				final double error = Math.sqrt(estimate * (1 - estimate) / iterations);
+				// Nearby rates share the random numbers, so their estimates differ by far less than either's error
+				Assert.assertEquals(estimate, (Double) invoke(model, "likelihoodLineageLoss", host, n, 1.001, false), 0.2 * error);
+			}
+		}
+
+	}
+
 	@Test
 	public void testCorrectness() {
 	    
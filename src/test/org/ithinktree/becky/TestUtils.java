@@ -6,9 +6,11 @@
 package test.org.ithinktree.becky;
 
 import java.io.StringReader;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.ithinktree.becky.CophylogenyLikelihood;
 import org.junit.Assert;
 
 import dr.evolution.io.NewickImporter;
@@ -17,6 +19,10 @@ import dr.evolution.tree.BranchRates;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.inference.model.AbstractModel;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
 import dr.math.MathUtils;
 
 /**
@@ -104,6 +110,65 @@ public class TestUtils {
         
     }
 	
+    /**
+     * A rate for each branch, by node number, changing which reports the node.
+     */
+    @SuppressWarnings("serial")
+    public static final class NodeBranchRates extends AbstractModel implements BranchRates {
+        private final Parameter rates;
+        public NodeBranchRates(final int nodeCount, final double rate) {
+            super("nodeBranchRates");
+            rates = new Parameter.Default(nodeCount, rate);
+            addVariable(rates);
+        }
+        public Parameter getRatesParameter() {
+            return rates;
+        }
+        public double getBranchRate(Tree t, NodeRef n) {
+            return rates.getParameterValue(n.getNumber());
+        }
+        protected void handleModelChangedEvent(Model model, Object object, int index) {}
+        @SuppressWarnings("rawtypes")
+        protected void handleVariableChangedEvent(Variable variable, int index, Variable.ChangeType type) {}
+        protected void storeState() {}
+        protected void restoreState() {}
+        protected void acceptState() {}
+    }
+    
+    /**
+     * Maps each tip of the symbiont tree onto the host tip named by the first letter of its
+     * taxon in upper case, and each internal node onto the host lineage of its first child.
+     */
+    public static final void mapStatesByTaxon(final CophylogenyLikelihood cophylogenyLikelihood) {
+        final Tree symbiontTree = cophylogenyLikelihood.getSymbiontTree();
+        mapStatesByTaxon(cophylogenyLikelihood, symbiontTree, symbiontTree.getRoot());
+    }
+    
+    private static NodeRef mapStatesByTaxon(final CophylogenyLikelihood cophylogenyLikelihood, final Tree symbiontTree, final NodeRef node) {
+        final Tree hostTree = cophylogenyLikelihood.getHostTree();
+        NodeRef host = null;
+        if (symbiontTree.isExternal(node)) {
+            final String id = symbiontTree.getNodeTaxon(node).getId().substring(0, 1).toUpperCase();
+            for (int i = 0; i < hostTree.getExternalNodeCount(); ++i) {
+                if (hostTree.getNodeTaxon(hostTree.getExternalNode(i)).getId().equals(id))
+                    host = hostTree.getExternalNode(i);
+            }
+            Assert.assertNotNull("FATAL: No host tip " + id + ".", host);
+        } else {
+            host = mapStatesByTaxon(cophylogenyLikelihood, symbiontTree, symbiontTree.getChild(node, 0));
+            mapStatesByTaxon(cophylogenyLikelihood, symbiontTree, symbiontTree.getChild(node, 1));
+            final double height = symbiontTree.getNodeHeight(node);
+            while (!hostTree.isRoot(host) && hostTree.getNodeHeight(hostTree.getParent(host)) <= height)
+                host = hostTree.getParent(host);
+        }
+        cophylogenyLikelihood.setStatesForNode(node, host);
+        return host;
+    }
+	
+    public static final NodeRef getNode(final Tree tree, final String... taxa) {
+        return Tree.Utils.getCommonAncestorNode(tree, new HashSet<String>(Arrays.asList(taxa)));
+    }
+    
     public static final void reduceDecimalPrecision(final MutableTree t) {
         for (int i = 0; i < t.getNodeCount(); ++i) {
             final NodeRef n = t.getNode(i);
@@ -0,0 +1,153 @@
+/**
+ * CophylogenyLikelihoodWrapperForJPrIMEDLTRSModelTest.java
+ *
+ * BECKY
+ */
+package test.org.ithinktree.becky.jprimewrappers;
+
+import org.ithinktree.becky.jprimewrappers.CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import test.org.ithinktree.becky.TestUtils;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+@RunWith(JUnit4.class)
+public class CophylogenyLikelihoodWrapperForJPrIMEDLTRSModelTest {
+
+	private static final String HOST = "(A:1.875,(B:1.75,(C:1.5,(D:1,E:1):0.5):0.25):0.125);";
+	private static final String GUEST = "((a1:0.8,b1:0.8):0.9,((c1:0.6,d1:0.6):0.3,(d2:0.4,e1:0.4):0.5):0.8);";
+	private static final String HOST_ATTRIBUTE_NAME = "host";
+
+	private TreeModel host;
+	private TreeModel guest;
+	private Taxa guestTaxa;
+	private Parameter duplicationRate;
+	private Parameter lossRate;
+	private Parameter transferRate;
+	private CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel wrapper;
+
+	@Before
+	public void before() {
+		host = new TreeModel(TestUtils.treeFromNewick(HOST, true));
+		guest = new TreeModel(TestUtils.treeFromNewick(GUEST, true));
+		guestTaxa = new Taxa();
+		for (int i = 0; i < guest.getExternalNodeCount(); ++i) {
+			final Taxon taxon = guest.getNodeTaxon(guest.getExternalNode(i));
+			taxon.setAttribute(HOST_ATTRIBUTE_NAME, host.getNodeTaxon(TestUtils.getNode(host, taxon.getId().substring(0, 1).toUpperCase())));
+			guestTaxa.addTaxon(taxon);
+		}
+		duplicationRate = new Parameter.Default(0.3);
+		lossRate = new Parameter.Default(0.2);
+		transferRate = new Parameter.Default(0.4);
+		wrapper = createWrapper();
+	}
+
+	private CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel createWrapper() {
+		return new CophylogenyLikelihoodWrapperForJPrIMEDLTRSModel("testCophylogenyLikelihood", host, guest, duplicationRate, lossRate, transferRate, false, guestTaxa, HOST_ATTRIBUTE_NAME);
+	}
+
+	private void store() {
+		wrapper.storeModelState();
+		host.storeModelState();
+		guest.storeModelState();
+	}
+
+	private void restore() {
+		wrapper.restoreModelState();
+		host.restoreModelState();
+		guest.restoreModelState();
+	}
+
+	private void accept() {
+		wrapper.acceptModelState();
+		host.acceptModelState();
+		guest.acceptModelState();
+	}
+
+	/**
+	 * Asserts that the incrementally calculated likelihood is that of a wrapper that never saw the earlier states.
+	 */
+	private double assertMatchesFresh() {
+		final double logL = wrapper.getLogLikelihood();
+		Assert.assertFalse(Double.isInfinite(logL) || Double.isNaN(logL));
+		Assert.assertEquals(createWrapper().getLogLikelihood(), logL, 1E-10);
+		return logL;
+	}
+
+	@Test
+	public void testIncrementalMatchesFresh() {
+
+		final double initial = assertMatchesFresh();
+
+		// A guest height, rejected
+		store();
+		guest.setNodeHeight(TestUtils.getNode(guest, "c1", "d1"), 0.7);
+		Assert.assertTrue(assertMatchesFresh() != initial);
+		restore();
+		Assert.assertEquals(initial, assertMatchesFresh(), 1E-10);
+
+		// A host height, accepted
+		store();
+		host.setNodeHeight(TestUtils.getNode(host, "D", "E"), 1.2);
+		final double hostChanged = assertMatchesFresh();
+		Assert.assertTrue(hostChanged != initial);
+		accept();
+
+		// A rate and then a guest height, evaluated in turn, rejected
+		store();
+		duplicationRate.setParameterValue(0, 0.45);
+		assertMatchesFresh();
+		guest.setNodeHeight(TestUtils.getNode(guest, "d2", "e1"), 0.3);
+		assertMatchesFresh();
+		duplicationRate.setParameterValue(0, 0.3);
+		restore();
+		Assert.assertEquals(hostChanged, assertMatchesFresh(), 1E-10);
+
+		// The same, accepted
+		store();
+		lossRate.setParameterValue(0, 0.35);
+		assertMatchesFresh();
+		final NodeRef a1b1 = TestUtils.getNode(guest, "a1", "b1");
+		guest.setNodeHeight(a1b1, 1.0);
+		final double twiceChanged = assertMatchesFresh();
+		accept();
+
+		// Both trees, evaluated only once, rejected
+		store();
+		host.setNodeHeight(TestUtils.getNode(host, "C", "E"), 1.4);
+		guest.setNodeHeight(a1b1, 1.2);
+		transferRate.setParameterValue(0, 0.6);
+		Assert.assertTrue(assertMatchesFresh() != twiceChanged);
+		transferRate.setParameterValue(0, 0.4);
+		restore();
+		Assert.assertEquals(twiceChanged, assertMatchesFresh(), 1E-10);
+
+		// A change stored before it was evaluated, rejected
+		transferRate.setParameterValue(0, 0.5);
+		store();
+		guest.setNodeHeight(a1b1, 0.9);
+		assertMatchesFresh();
+		restore();
+		assertMatchesFresh();
+
+		// And one accepted without being evaluated
+		store();
+		host.setNodeHeight(TestUtils.getNode(host, "B", "E"), 1.7);
+		accept();
+		assertMatchesFresh();
+
+	}
+
+}
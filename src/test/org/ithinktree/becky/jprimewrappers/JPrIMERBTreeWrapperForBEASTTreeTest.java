@@ -0,0 +1,181 @@
+/**
+ * JPrIMERBTreeWrapperForBEASTTreeTest.java
+ *
+ * BECKY
+ */
+package test.org.ithinktree.becky.jprimewrappers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ithinktree.becky.HostTreeIndex;
+import org.ithinktree.becky.jprimewrappers.JPrIMERBTreeWrapperForBEASTTree;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import se.cbb.jprime.topology.RootedTree;
+import test.org.ithinktree.becky.TestUtils;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.tree.TreeModel;
+
+/**
+ * @author Arman D. Bilge
+ *
+ */
+@RunWith(JUnit4.class)
+public class JPrIMERBTreeWrapperForBEASTTreeTest {
+
+	private static final String TREE = "((A:1,B:1):0.5,(C:0.75,(D:0.5,E:0.5):0.25):0.75);";
+
+	private static List<Integer> getAncestors(final Tree tree, final int i, final boolean includeSelf) {
+		final List<Integer> ancestors = new ArrayList<Integer>();
+		NodeRef node = tree.getNode(i);
+		if (!includeSelf) node = tree.getParent(node);
+		for (; node != null; node = tree.getParent(node))
+			ancestors.add(node.getNumber());
+		return ancestors;
+	}
+
+	private static void addDescendants(final Tree tree, final NodeRef node, final boolean leavesOnly, final Set<Integer> descendants) {
+		if (!leavesOnly || tree.isExternal(node))
+			descendants.add(node.getNumber());
+		for (int c = 0; c < tree.getChildCount(node); ++c)
+			addDescendants(tree, tree.getChild(node, c), leavesOnly, descendants);
+	}
+
+	private static Set<Integer> getDescendants(final Tree tree, final int i, final boolean properOnly, final boolean leavesOnly) {
+		final Set<Integer> descendants = new HashSet<Integer>();
+		addDescendants(tree, tree.getNode(i), leavesOnly, descendants);
+		if (properOnly) descendants.remove(i);
+		return descendants;
+	}
+
+	private static int getArcHeight(final Tree tree, final NodeRef node) {
+		int height = 0;
+		for (int c = 0; c < tree.getChildCount(node); ++c)
+			height = Math.max(height, getArcHeight(tree, tree.getChild(node, c)) + 1);
+		return height;
+	}
+
+	/**
+	 * Asserts that a list holds the subtree of a node, each after its parent.
+	 */
+	private static void assertTopologicalOrdering(final Tree tree, final int i, final List<Integer> ordering) {
+		Assert.assertEquals(getDescendants(tree, i, false, false), new HashSet<Integer>(ordering));
+		Assert.assertEquals(ordering.size(), new HashSet<Integer>(ordering).size());
+		Assert.assertEquals(i, (int) ordering.get(0));
+		for (int k = 1; k < ordering.size(); ++k)
+			Assert.assertTrue(ordering.subList(0, k).contains(tree.getParent(tree.getNode(ordering.get(k))).getNumber()));
+	}
+
+	/**
+	 * Asserts that the wrapper answers every query as the tree does.
+	 */
+	private static void assertWraps(final Tree tree, final JPrIMERBTreeWrapperForBEASTTree wrapper) {
+
+		final int n = tree.getNodeCount();
+		Assert.assertEquals(n, wrapper.getNoOfVertices());
+		Assert.assertEquals(tree.getRoot().getNumber(), wrapper.getRoot());
+		Assert.assertEquals(getArcHeight(tree, tree.getRoot()), wrapper.getHeight());
+		Assert.assertEquals(getDescendants(tree, tree.getRoot().getNumber(), false, true), new HashSet<Integer>(wrapper.getLeaves()));
+		Assert.assertEquals(tree.getExternalNodeCount(), wrapper.getNoOfLeaves());
+
+		for (int i = 0; i < n; ++i) {
+
+			final NodeRef node = tree.getNode(i);
+			Assert.assertEquals(tree.isRoot(node), wrapper.isRoot(i));
+			Assert.assertEquals(tree.isExternal(node), wrapper.isLeaf(i));
+			Assert.assertEquals(tree.isRoot(node) ? RootedTree.NULL : tree.getParent(node).getNumber(), wrapper.getParent(i));
+			Assert.assertEquals(getArcHeight(tree, node), wrapper.getHeight(i));
+			Assert.assertEquals(tree.getChildCount(node), wrapper.getNoOfChildren(i));
+			for (int c = 0; c < tree.getChildCount(node); ++c)
+				Assert.assertEquals(tree.getChild(node, c).getNumber(), (int) wrapper.getChildren(i).get(c));
+			if (!tree.isExternal(node)) {
+				Assert.assertEquals(tree.getChild(node, 0).getNumber(), wrapper.getLeftChild(i));
+				Assert.assertEquals(tree.getChild(node, 1).getNumber(), wrapper.getRightChild(i));
+				Assert.assertEquals(wrapper.getRightChild(i), wrapper.getSibling(wrapper.getLeftChild(i)));
+				Assert.assertEquals(wrapper.getLeftChild(i), wrapper.getSibling(wrapper.getRightChild(i)));
+			}
+
+			for (boolean flag : new boolean[]{false, true}) {
+				// The vertex itself is among its ancestors if the flag is set
+				final List<Integer> ancestors = getAncestors(tree, i, flag);
+				Assert.assertEquals(ancestors, wrapper.getAncestors(i, flag));
+				Assert.assertEquals(ancestors.size(), wrapper.getNoOfAncestors(i, flag));
+				final Set<Integer> descendants = getDescendants(tree, i, flag, false);
+				Assert.assertEquals(descendants, new HashSet<Integer>(wrapper.getDescendants(i, flag)));
+				Assert.assertEquals(descendants.size(), wrapper.getDescendants(i, flag).size());
+				Assert.assertEquals(descendants.size(), wrapper.getNoOfDescendants(i, flag));
+				// And precedes the leaves below it if the flag is not
+				final List<Integer> leaves = new ArrayList<Integer>();
+				if (!flag) leaves.add(i);
+				for (NodeRef leaf : Tree.Utils.getExternalNodes(tree, node))
+					leaves.add(leaf.getNumber());
+				final List<Integer> descendantLeaves = wrapper.getDescendantLeaves(i, flag);
+				Assert.assertEquals(leaves.size(), descendantLeaves.size());
+				if (!flag) Assert.assertEquals(i, (int) descendantLeaves.get(0));
+				Assert.assertEquals(new HashSet<Integer>(leaves), new HashSet<Integer>(descendantLeaves));
+				Assert.assertEquals(leaves.size(), wrapper.getNoOfDescendantLeaves(i, flag));
+			}
+			assertTopologicalOrdering(tree, i, wrapper.getDescendants(i, false));
+			assertTopologicalOrdering(tree, i, wrapper.getTopologicalOrdering(i));
+
+			for (int j = 0; j < n; ++j) {
+				final List<Integer> ancestors = getAncestors(tree, i, true);
+				int lca = j;
+				while (!ancestors.contains(lca))
+					lca = tree.getParent(tree.getNode(lca)).getNumber();
+				Assert.assertEquals(lca, wrapper.getLCA(i, j));
+				Assert.assertEquals(lca, wrapper.getLCA(j, i));
+				Assert.assertEquals(i != j && lca == i, wrapper.hasPath(i, j));
+				Assert.assertEquals(!tree.isRoot(node) && tree.getParent(node).getNumber() == j, wrapper.hasArc(i, j));
+			}
+
+		}
+
+	}
+
+	@Test
+	public void testWrapsTree() {
+
+		final TreeModel tree = new TreeModel(TestUtils.treeFromNewick(TREE, true));
+		final JPrIMERBTreeWrapperForBEASTTree wrapper = new JPrIMERBTreeWrapperForBEASTTree(tree);
+		assertWraps(tree, wrapper);
+
+		// Heights that reorder the speciations, each followed by a copy of the new version
+		final String[][] clades = {{"D", "E"}, {"A", "B"}, {"C", "E"}};
+		final double[] heights = {0.9, 0.6, 1.1};
+		for (int k = 0; k < clades.length; ++k) {
+			final int version = HostTreeIndex.forTree(tree).getVersion();
+			tree.setNodeHeight(TestUtils.getNode(tree, clades[k]), heights[k]);
+			Assert.assertTrue(HostTreeIndex.forTree(tree).getVersion() != version);
+			wrapper.update();
+			assertWraps(tree, wrapper);
+			// Another wrapper of the tree shares the copy
+			assertWraps(tree, new JPrIMERBTreeWrapperForBEASTTree(tree));
+		}
+
+		// B and C swap places, which a stale copy would miss
+		final int version = HostTreeIndex.forTree(tree).getVersion();
+		final NodeRef b = TestUtils.getNode(tree, "B");
+		final NodeRef c = TestUtils.getNode(tree, "C");
+		final NodeRef ab = tree.getParent(b);
+		final NodeRef ce = tree.getParent(c);
+		tree.beginTreeEdit();
+		tree.removeChild(ab, b);
+		tree.removeChild(ce, c);
+		tree.addChild(ab, c);
+		tree.addChild(ce, b);
+		tree.endTreeEdit();
+		Assert.assertTrue(HostTreeIndex.forTree(tree).getVersion() != version);
+		wrapper.update();
+		assertWraps(tree, wrapper);
+
+	}
+
+}